@@ -3,6 +3,7 @@ package cli;
 import convert.ConversionService;
 
 import java.io.*;
+import java.lang.reflect.Array;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
 import java.lang.reflect.TypeVariable;
@@ -230,8 +231,13 @@ public class Shell implements Runnable, Closeable {
 			throw new IllegalArgumentException(String.format("command '%s' is not registered.", parts[0]));
 		}
 
-		Object[] args = new Object[parts.length - 1];
                 Class<?>[] paramTypes = cmdDef.targetMethod.getParameterTypes();
+                if(cmdDef.targetMethod.isVarArgs()) {
+                    return invocationHandler.invoke(cmdDef.targetObject, cmdDef.targetMethod,
+                                                    convertVarArgs(parts, paramTypes));
+                }
+
+		Object[] args = new Object[parts.length - 1];
                 if(paramTypes.length + 1 < parts.length) {
                     throw new IllegalArgumentException("wrong number of arguments");
                 }
@@ -241,6 +247,28 @@ public class Shell implements Runnable, Closeable {
 		return invocationHandler.invoke(cmdDef.targetObject, cmdDef.targetMethod, args);
 	}
 
+        /**
+         * Converts the arguments of a command taking variable arguments, the trailing ones are
+         * collected into an array.
+         */
+        private Object[] convertVarArgs(String[] parts, Class<?>[] paramTypes) {
+                int fixed = paramTypes.length - 1;
+                if(parts.length - 1 < fixed) {
+                    throw new IllegalArgumentException("wrong number of arguments");
+                }
+                Object[] args = new Object[paramTypes.length];
+                for (int i = 0; i < fixed; i++) {
+                    args[i] = conversionService.convert(parts[i + 1], paramTypes[i]);
+                }
+                Class<?> type = paramTypes[fixed].getComponentType();
+                Object rest = Array.newInstance(type, parts.length - 1 - fixed);
+                for (int i = fixed + 1; i < parts.length; i++) {
+                    Array.set(rest, i - 1 - fixed, conversionService.convert(parts[i], type));
+                }
+                args[fixed] = rest;
+                return args;
+        }
+
 	/**
 	 * Defines a {@link Method} to be invoked on a certain object.
 	 */
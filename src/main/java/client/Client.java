@@ -17,6 +17,8 @@ import java.util.Arrays;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.MissingResourceException;
+import java.util.List;
+import java.util.concurrent.Callable;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
@@ -24,10 +26,12 @@ import java.util.concurrent.ExecutionException;
 import java.util.UUID;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.BufferedReader;
 import java.io.PrintWriter;
 import java.io.FileWriter;
 import java.io.FileReader;
+import java.io.FileInputStream;
 import java.io.BufferedWriter;
 import java.io.InputStreamReader;
 import java.io.InputStream;
@@ -49,8 +53,10 @@ import java.net.*;
 import cli.Command;
 import cli.Shell;
 
+import util.ChecksumUtils;
 import util.Config;
 import util.FileServerConnection;
+import util.FramedConnection;
 
 import client.IClientCli;
 
@@ -71,6 +77,13 @@ public class Client {
 
     private String downloadDir;
 
+    // "raw" for zero-copy downloads, "stream" for chunked downloads,
+    // "object" for single message downloads
+    private String downloadMode;
+
+    // time in ms to wait for a file server to answer a download
+    private Integer readTimeout;
+
     private String proxy;
 
     private Integer tcpPort;
@@ -81,13 +94,8 @@ public class Client {
     
     private ExecutorService pool;
 
-    private Socket proxySocket;
-
-    private PrintWriter out;
-    private BufferedReader in;
-
-    private ObjectOutputStream oos;
-    private ObjectInputStream ois;
+    // framed connection to the proxy
+    private FramedConnection proxyConnection;
 
     private UUID sid;
 
@@ -126,6 +134,10 @@ public class Client {
             proxy = config.getString(key);
             key = "proxy.tcp.port";
             tcpPort = config.getInt(key);
+            key = "download.mode";
+            downloadMode = config.getString(key, "raw");
+            key = "fileserver.readTimeout";
+            readTimeout = config.getInt(key, 30000);
         } catch (MissingResourceException x) {
             if(key == name) {
                 logger.fatal("Config " + key + 
@@ -159,6 +171,10 @@ public class Client {
             proxy = config.getString(key);
             key = "proxy.tcp.port";
             tcpPort = config.getInt(key);
+            key = "download.mode";
+            downloadMode = config.getString(key, "raw");
+            key = "fileserver.readTimeout";
+            readTimeout = config.getInt(key, 30000);
         } catch (MissingResourceException x) {
             if(key == name) {
                 logger.fatal("Config " + key + 
@@ -177,17 +193,9 @@ public class Client {
         pool = Executors.newFixedThreadPool(10);
 
         // connect to proxy
-        proxySocket = null;
+        proxyConnection = null;
         try {
-            proxySocket = new Socket(proxy, tcpPort);
-
-            oos = new ObjectOutputStream(proxySocket.getOutputStream());
-            ois = new ObjectInputStream(proxySocket.getInputStream());
-
-            out = new PrintWriter(proxySocket.getOutputStream(), true);
-            in =  new BufferedReader(
-                    new InputStreamReader(proxySocket.getInputStream()));
-
+            proxyConnection = new FramedConnection(proxy, tcpPort);
         } catch(UnknownHostException x) {
             logger.info("Host not known.");
             logger.info("Shutting down client.");
@@ -239,11 +247,11 @@ public class Client {
             logger.debug("password is " + password);
 
             LoginRequest req = new LoginRequest(username, password);
-            oos.writeObject(req);
+            FramedConnection.Call call = proxyConnection.submit(req);
 
             LoginResponse resp;
             try {
-                Object o = ois.readObject();
+                Object o = call.get();
                 if(o instanceof LoginResponse) {
                     resp = (LoginResponse) o;
                     logger.debug(resp.getType());
@@ -271,11 +279,11 @@ public class Client {
         @Command
         public Response credits() throws IOException {
             CreditsRequest req = new CreditsRequest(sid);
-            oos.writeObject(req);
+            FramedConnection.Call call = proxyConnection.submit(req);
 
             Response response = null;
             try {
-                Object o = ois.readObject();
+                Object o = call.get();
                 if(o instanceof CreditsResponse) {
                     CreditsResponse cresp = (CreditsResponse) o;
                     response = new MessageResponse("You have " + 
@@ -298,11 +306,11 @@ public class Client {
         @Command
         public Response buy(long credits) throws IOException {
             BuyRequest req = new BuyRequest(sid, credits);
-            oos.writeObject(req);
+            FramedConnection.Call call = proxyConnection.submit(req);
 
             Response response = null;
             try {
-                Object o = ois.readObject();
+                Object o = call.get();
                 if(o instanceof BuyResponse) {
                     BuyResponse bresp = (BuyResponse) o;
                     response = new MessageResponse("You now have " + 
@@ -326,11 +334,11 @@ public class Client {
         @Command
         public Response list() throws IOException {
             ListRequest req = new ListRequest(sid);
-            oos.writeObject(req);
+            FramedConnection.Call call = proxyConnection.submit(req);
 
             Response resp = null;
             try {
-                Object o = ois.readObject();
+                Object o = call.get();
                 if(o instanceof ListResponse) {
                     resp = (ListResponse) o;
                     //logger.debug(resp.toString());
@@ -351,95 +359,191 @@ public class Client {
         public Response download(String filename) throws IOException {
             DownloadTicketRequest req = 
                 new DownloadTicketRequest(sid, filename);
-            oos.writeObject(req);
+            FramedConnection.Call call = proxyConnection.submit(req);
 
 
             // get download ticket
-            DownloadTicket ticket = null;
-            Response resp = null;
+            Object o;
             try {
-                Object o = ois.readObject();
-                if(o instanceof DownloadTicketResponse) {
-                    DownloadTicketResponse tresp = (DownloadTicketResponse) o;
-                    ticket = tresp.getTicket();
-                    //logger.debug(resp.toString());
-                }
-                else if(o instanceof MessageResponse) {
-                    resp = (MessageResponse) o;
-                }
-                else {
-                    logger.error("List response corrupted.");
-                }
+                o = call.get();
             } catch (ClassNotFoundException x) {
                 logger.info("Class not found.");
+                return null;
             }
+            if(o instanceof DownloadTicketResponse) {
+                DownloadTicketResponse tresp = (DownloadTicketResponse) o;
+                return fetch(tresp.getTicket(), filename);
+            }
+            else if(o instanceof MessageResponse) {
+                return (MessageResponse) o;
+            }
+            logger.error("Download response corrupted.");
+            return null;
+        }
 
-            // request download
-            DownloadFileResponse dlresp = null;
-            if(ticket != null) {
-                String host = ticket.getAddress().getHostAddress();
-                int port = ticket.getPort();
-                DownloadFileRequest request = new DownloadFileRequest(ticket);
-                FileServerConnection fscon = 
-                    new FileServerConnection(host, port, request);
-                Response response = fscon.call();
-                if(response instanceof DownloadFileResponse) {
-                    dlresp = (DownloadFileResponse) response;
-                    byte[] content = dlresp.getContent();
-                } 
-                else if(response instanceof MessageResponse) {
-                    return (MessageResponse) response;
-                }
+        /**
+         * Downloads several files. The tickets for all of them are issued
+         * in a single request, then the files are fetched in parallel.
+         */
+        @Command
+        public Response downloadall(String... filenames) throws IOException {
+            if(filenames.length == 0) {
+                return new MessageResponse("No files given.");
             }
-            
-            // save file
-            if(dlresp != null && 
-               filename.equals(dlresp.getTicket().getFilename())) {
-                byte[] content = dlresp.getContent();
-                File file = new File(downloadDir, filename);
+
+            BatchDownloadTicketRequest req = 
+                new BatchDownloadTicketRequest(sid, Arrays.asList(filenames));
+            Object o;
+            try {
+                o = proxyConnection.call(req);
+            } catch (ClassNotFoundException x) {
+                logger.info("Class not found.");
+                return null;
+            }
+            if(o instanceof MessageResponse) {
+                return (MessageResponse) o;
+            }
+            if(!(o instanceof BatchDownloadTicketResponse)) {
+                logger.error("Download response corrupted.");
+                return null;
+            }
+            BatchDownloadTicketResponse tresp = 
+                (BatchDownloadTicketResponse) o;
+
+            // fetch the files in parallel
+            List<Future<Response>> downloads = 
+                new ArrayList<Future<Response>>();
+            for(final DownloadTicket ticket : tresp.getTickets()) {
+                downloads.add(pool.submit(new Callable<Response>() {
+                    public Response call() throws IOException {
+                        return fetch(ticket, ticket.getFilename());
+                    }
+                }));
+            }
+
+            // report one line per file
+            StringBuilder result = new StringBuilder();
+            for(int i = 0; i < downloads.size(); i++) {
+                Object response;
                 try {
-                    if(file.exists()) {
-                        file.delete();
+                    response = downloads.get(i).get();
+                } catch (InterruptedException x) {
+                    throw new InterruptedIOException("Interrupted.");
+                } catch (ExecutionException x) {
+                    logger.info("Download failed: " + x.getCause());
+                    response = null;
+                }
+                if(response == null) {
+                    response = "Download failed.";
+                }
+                result.append(tresp.getTickets().get(i).getFilename())
+                    .append(": ").append(response).append("\n");
+            }
+            for(String filename : tresp.getMissing()) {
+                result.append(filename).append(": File not found.\n");
+            }
+            return new MessageResponse(result.toString().trim());
+        }
+
+        /**
+         * Downloads a file from the file server named in the ticket.
+         */
+        private Response fetch(DownloadTicket ticket, String filename) 
+            throws IOException {
+            String host = ticket.getAddress().getHostAddress();
+            int port = ticket.getPort();
+            File file = new File(downloadDir, filename);
+            if(downloadMode.equals("raw")) {
+                FileServerConnection fscon = new FileServerConnection
+                    (host, port, new RawDownloadRequest(ticket), readTimeout);
+                Response response = fscon.receiveRaw(file);
+                if(response == null) {
+                    return new MessageResponse("Download failed.");
+                }
+                return response;
+            }
+            if(downloadMode.equals("stream")) {
+                FileServerConnection fscon = new FileServerConnection
+                    (host, port, new StreamDownloadRequest(ticket),
+                     readTimeout);
+                Response response = fscon.receive(file);
+                if(response == null) {
+                    return new MessageResponse("Download failed.");
+                }
+                return response;
+            }
+
+            DownloadFileRequest request = new DownloadFileRequest(ticket);
+            FileServerConnection fscon = 
+                new FileServerConnection(host, port, request, readTimeout);
+            Response response = fscon.call();
+            if(response instanceof DownloadFileResponse) {
+                DownloadFileResponse dlresp = (DownloadFileResponse) response;
+                // save file
+                if(filename.equals(dlresp.getTicket().getFilename())) {
+                    try {
+                        Files.write(file.toPath(), dlresp.getContent());
+                    } catch (IOException x) {
+                        logger.debug("Couldn't write file.");
+                        x.printStackTrace();
                     }
-                    file.createNewFile();
-                    FileWriter fw = new FileWriter(file);
-                    BufferedWriter bw = new BufferedWriter(fw);
-                    fw.write(new String(content), 0, content.length);
-                    bw.close();
-                } catch (IOException x) {
-                    logger.debug("Couldn't write file.");
-                    x.printStackTrace();
                 }
-                
             }
-            return resp;
+            return response;
         }
 
         @Command
         public MessageResponse upload(String filename) throws IOException {
             File file = new File(downloadDir, filename);
-            String filestring = "";
-            BufferedReader br;
-            MessageResponse response = null;
+            if(!file.isFile()) {
+                return new MessageResponse("File does not exist.");
+            }
+
+            // the content may be stored already, then it isn't sent. The
+            // version is up to the proxy
+            String hash = ChecksumUtils.hashFile(file);
             try {
-                br = new BufferedReader(new FileReader(file));
-                
-                
-                while(br.ready()) {
-                    filestring = filestring + br.readLine();
+                Object o = proxyConnection.call
+                    (new HashUploadRequest(sid, filename, 0, file.length(), 
+                                           hash));
+                boolean unknown = o instanceof UploadResponse &&
+                    ((UploadResponse) o).getType() ==
+                    UploadResponse.Type.CONTENT_UNKNOWN;
+                if(!unknown) {
+                    return o instanceof MessageResponse ?
+                        (MessageResponse) o :
+                        new UploadResponse(UploadResponse.Type.FAILED);
                 }
-                byte[] content = filestring.getBytes();
-                br.close();
-                
-                Request request = new UploadRequest(sid, filename, 1, content);
-                oos.writeObject(request);
+            } catch (ClassNotFoundException x) {
+                logger.info("Class not found.");
+                return new UploadResponse(UploadResponse.Type.FAILED);
+            }
+
+            // send header and chunks, the file is never fully in memory
+            MessageResponse response = null;
+            try(InputStream fin = new FileInputStream(file)) {
+                Request request = new StreamUploadRequest(sid, filename, 0, 
+                                                          file.length());
+                FramedConnection.Call call = proxyConnection.submit(request);
+
+                // every chunk is encoded into its own frame, so buf can be
+                // reused for the next chunk
+                byte[] buf = new byte[FileChunkRequest.MAX_SIZE];
+                int read;
+                while((read = fin.read(buf)) != -1) {
+                    byte[] data = read == buf.length ? 
+                        buf : Arrays.copyOf(buf, read);
+                    proxyConnection.send(call, new FileChunkRequest(data));
+                }
+                proxyConnection.send(call, new FileChunkRequest(new byte[0]));
 
                 try {
-                    Object o = ois.readObject();
+                    Object o = call.get();
                     if(o instanceof MessageResponse) {
                         response = (MessageResponse) o;
                     } else {
-                        response = new MessageResponse("Upload failed.");
+                        response = new UploadResponse
+                            (UploadResponse.Type.FAILED);
                     }
                 } catch (ClassNotFoundException x) {
                     logger.info("Class not found.");
@@ -448,9 +552,6 @@ public class Client {
                 
             } catch (FileNotFoundException x) {
                 response = new MessageResponse("File does not exist.");
-            } catch (IOException x) {
-                logger.debug("Couldn't read file.");
-                    x.printStackTrace();
             }
             
             return response;
@@ -459,11 +560,11 @@ public class Client {
         @Command
         public MessageResponse logout() throws IOException {
             LogoutRequest req = new LogoutRequest(sid);
-            oos.writeObject(req);
+            FramedConnection.Call call = proxyConnection.submit(req);
 
             MessageResponse resp = null;
             try {
-                Object o = ois.readObject();
+                Object o = call.get();
                 if(o instanceof MessageResponse) {
                     resp = (MessageResponse) o;
                     logger.debug(resp.toString());
@@ -484,7 +585,7 @@ public class Client {
             // clean up
             pool.shutdownNow();
             try {
-                proxySocket.close();
+                proxyConnection.close();
             } catch (IOException x) {
                 logger.info("Caught IOException.");
             }
@@ -505,9 +606,9 @@ public class Client {
             //logger.debug("muuuh");
             // proxy test
             String muh = new String("muuuh");
-            oos.writeObject(muh);
+            FramedConnection.Call call = proxyConnection.submit(muh);
             try {
-                Object o = ois.readObject();
+                Object o = call.get();
                 if(o instanceof MessageResponse) {
                     MessageResponse mresp = (MessageResponse) o;
                     logger.info(mresp.getMessage());
@@ -0,0 +1,49 @@
+package message.request;
+
+import message.Request;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Requests {@link model.DownloadTicket}s for several files at once. The
+ * credits for all files are taken together or not at all.
+ * <p/>
+ * <b>Request (client to proxy)</b>:<br/>
+ * {@code !downloadall &lt;filename1&gt; &lt;filename2&gt; ...}<br/>
+ * <b>Response (proxy to client):</b><br/>
+ * {@code !downloadall &lt;ticket1&gt; &lt;ticket2&gt; ...}<br/>
+ *
+ * @see message.response.BatchDownloadTicketResponse
+ */
+public class BatchDownloadTicketRequest implements Request {
+	private static final long serialVersionUID = -3160254795329740866L;
+
+	private final UUID sid;
+
+	private final List<String> filenames;
+
+	public BatchDownloadTicketRequest(UUID sid, List<String> filenames) {
+		this.sid = sid;
+		this.filenames = Collections.unmodifiableList(new ArrayList<String>(filenames));
+	}
+
+	public UUID getSid() {
+		return sid;
+	}
+
+	public List<String> getFilenames() {
+		return filenames;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("!downloadall");
+		for (String filename : getFilenames()) {
+			sb.append(" ").append(filename);
+		}
+		return sb.toString();
+	}
+}
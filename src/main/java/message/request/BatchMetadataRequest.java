@@ -0,0 +1,42 @@
+package message.request;
+
+import message.Request;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Retrieves size, highest available version and content hash of several
+ * files on a certain server in a single round trip.
+ * <p/>
+ * <b>Request</b>:<br/>
+ * {@code !metadata &lt;filename1&gt; &lt;filename2&gt; ...}<br/>
+ * <b>Response:</b><br/>
+ * {@code !metadata &lt;filename1&gt; &lt;file_size&gt; &lt;version&gt; &lt;hash&gt;}<br/>
+ * {@code ...}<br/>
+ *
+ * @see message.response.BatchMetadataResponse
+ */
+public class BatchMetadataRequest implements Request {
+	private static final long serialVersionUID = 6405217925087203551L;
+
+	private final List<String> filenames;
+
+	public BatchMetadataRequest(List<String> filenames) {
+		this.filenames = Collections.unmodifiableList(new ArrayList<String>(filenames));
+	}
+
+	public List<String> getFilenames() {
+		return filenames;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("!metadata");
+		for (String filename : getFilenames()) {
+			sb.append(" ").append(filename);
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,44 @@
+package message.request;
+
+import message.Request;
+
+/**
+ * Retrieves the changes of the catalog of a file server since a certain
+ * catalog version, so the proxy can keep its view of the files current
+ * without listing them all.
+ * <p/>
+ * <b>Request</b>:<br/>
+ * {@code !changes &lt;epoch&gt; &lt;version&gt;}<br/>
+ * <b>Response:</b><br/>
+ * {@code !changes &lt;version&gt; &lt;filename1&gt; ... -&lt;removed1&gt; ...}<br/>
+ *
+ * @see message.response.CatalogChangesResponse
+ */
+public class CatalogChangesRequest implements Request {
+	private static final long serialVersionUID = -2481709513734951626L;
+
+	private final long epoch;
+	private final long since;
+
+	/**
+	 * @param epoch the epoch of the catalog the version belongs to
+	 * @param since the version the requester knows, negative to get all files
+	 */
+	public CatalogChangesRequest(long epoch, long since) {
+		this.epoch = epoch;
+		this.since = since;
+	}
+
+	public long getEpoch() {
+		return epoch;
+	}
+
+	public long getSince() {
+		return since;
+	}
+
+	@Override
+	public String toString() {
+		return "!changes " + getEpoch() + " " + getSince();
+	}
+}
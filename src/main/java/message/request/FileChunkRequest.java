@@ -0,0 +1,38 @@
+package message.request;
+
+import message.Request;
+import message.response.FileChunkResponse;
+
+/**
+ * A bounded part of a file's content sent during a chunked upload.<br/>
+ * An empty chunk marks the end of the transfer.
+ *
+ * @see StreamUploadRequest
+ */
+public class FileChunkRequest implements Request {
+	private static final long serialVersionUID = 3209153375893302771L;
+
+	/**
+	 * Maximum number of content bytes carried by a single chunk.
+	 */
+	public static final int MAX_SIZE = FileChunkResponse.MAX_SIZE;
+
+	private final byte[] data;
+
+	public FileChunkRequest(byte[] data) {
+		this.data = data;
+	}
+
+	public byte[] getData() {
+		return data;
+	}
+
+	public boolean isLast() {
+		return data.length == 0;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("!chunk %d", data.length);
+	}
+}
@@ -0,0 +1,63 @@
+package message.request;
+
+import message.Request;
+
+import java.util.UUID;
+
+/**
+ * Uploads a file by the SHA-256 hash of its content instead of the content
+ * itself. Succeeds only if the content is stored already, otherwise the
+ * file has to be uploaded with a {@link StreamUploadRequest}.
+ * <p/>
+ * <b>Request</b>:<br/>
+ * {@code !upload &lt;filename&gt; &lt;size&gt; &lt;hash&gt;}<br/>
+ * <b>Response:</b><br/>
+ * {@code !upload &lt;message&gt;}<br/>
+ *
+ * @see StreamUploadRequest
+ */
+public class HashUploadRequest implements Request {
+	private static final long serialVersionUID = 6102785240512436629L;
+
+	private final UUID sid;
+	private final String filename;
+	private final int version;
+	private final long size;
+	private final String hash;
+
+	public HashUploadRequest(UUID sid, String filename, int version, long size, String hash) {
+		this.sid = sid;
+		this.filename = filename;
+		this.version = version;
+		this.size = size;
+		this.hash = hash;
+	}
+
+	public UUID getSid() {
+		return sid;
+	}
+
+	public String getFilename() {
+		return filename;
+	}
+
+	public int getVersion() {
+		return version;
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	/**
+	 * Returns the hex encoded SHA-256 hash of the content.
+	 */
+	public String getHash() {
+		return hash;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("!upload %s %d %d %s", getFilename(), getVersion(), getSize(), getHash());
+	}
+}
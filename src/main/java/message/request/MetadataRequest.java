@@ -0,0 +1,33 @@
+package message.request;
+
+import message.Request;
+
+/**
+ * Retrieves size, highest available version and content hash of a
+ * particular file on a certain server in a single round trip.
+ * <p/>
+ * <b>Request</b>:<br/>
+ * {@code !metadata &lt;filename&gt;}<br/>
+ * <b>Response:</b><br/>
+ * {@code !metadata &lt;filename&gt; &lt;file_size&gt; &lt;version&gt; &lt;hash&gt;}<br/>
+ *
+ * @see message.response.MetadataResponse
+ */
+public class MetadataRequest implements Request {
+	private static final long serialVersionUID = 5528097301617349213L;
+
+	private final String filename;
+
+	public MetadataRequest(String filename) {
+		this.filename = filename;
+	}
+
+	public String getFilename() {
+		return filename;
+	}
+
+	@Override
+	public String toString() {
+		return "!metadata " + getFilename();
+	}
+}
@@ -0,0 +1,20 @@
+package message.request;
+
+import message.Request;
+
+/**
+ * Checks whether a connection to a file server is still usable.
+ * <p/>
+ * <b>Request</b>:<br/>
+ * {@code !ping}<br/>
+ * <b>Response:</b><br/>
+ * {@code !pong}<br/>
+ */
+public class PingRequest implements Request {
+	private static final long serialVersionUID = -4205870123926317445L;
+
+	@Override
+	public String toString() {
+		return "!ping";
+	}
+}
@@ -0,0 +1,39 @@
+package message.request;
+
+import message.Request;
+import model.DownloadTicket;
+
+/**
+ * Downloads the file for the given {@link DownloadTicket} as raw bytes.
+ * <p/>
+ * The server does not answer with a serialized response. Instead it writes
+ * a status byte directly to the socket. {@link #OK} is followed by the file
+ * size as {@code long} and exactly that many bytes of content, {@link #ERROR}
+ * is followed by a modified UTF-8 error message.
+ * <p/>
+ * <b>Request (client to server)</b>:<br/>
+ * {@code !download &lt;ticket&gt;}<br/>
+ * <b>Response (server to client):</b><br/>
+ * {@code &lt;status&gt; &lt;size&gt; &lt;content&gt;}<br/>
+ */
+public class RawDownloadRequest implements Request {
+	private static final long serialVersionUID = 7728145617102349921L;
+
+	public static final byte OK = 0;
+	public static final byte ERROR = 1;
+
+	private final DownloadTicket ticket;
+
+	public RawDownloadRequest(DownloadTicket ticket) {
+		this.ticket = ticket;
+	}
+
+	public DownloadTicket getTicket() {
+		return ticket;
+	}
+
+	@Override
+	public String toString() {
+		return "!download " + ticket;
+	}
+}
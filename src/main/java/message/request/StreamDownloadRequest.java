@@ -0,0 +1,35 @@
+package message.request;
+
+import message.Request;
+import model.DownloadTicket;
+
+/**
+ * Downloads the file for the given {@link DownloadTicket} as a sequence of
+ * bounded chunks instead of a single message.
+ * <p/>
+ * <b>Request (client to server)</b>:<br/>
+ * {@code !download &lt;ticket&gt;}<br/>
+ * <b>Response (server to client):</b><br/>
+ * {@code !data &lt;filename&gt; &lt;size&gt;}<br/>
+ * followed by {@link message.response.FileChunkResponse chunks} terminated by an empty chunk.
+ *
+ * @see message.response.StreamDownloadResponse
+ */
+public class StreamDownloadRequest implements Request {
+	private static final long serialVersionUID = -2361848871627384017L;
+
+	private final DownloadTicket ticket;
+
+	public StreamDownloadRequest(DownloadTicket ticket) {
+		this.ticket = ticket;
+	}
+
+	public DownloadTicket getTicket() {
+		return ticket;
+	}
+
+	@Override
+	public String toString() {
+		return "!download " + ticket;
+	}
+}
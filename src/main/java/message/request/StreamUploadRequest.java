@@ -0,0 +1,53 @@
+package message.request;
+
+import message.Request;
+
+import java.util.UUID;
+
+/**
+ * Header of a chunked upload. The announced number of bytes follows as a
+ * sequence of {@link FileChunkRequest}s terminated by an empty chunk.
+ * <p/>
+ * <b>Request</b>:<br/>
+ * {@code !upload &lt;filename&gt; &lt;size&gt;}<br/>
+ * <b>Response:</b><br/>
+ * {@code !upload &lt;message&gt;}<br/>
+ *
+ * @see UploadRequest
+ */
+public class StreamUploadRequest implements Request {
+	private static final long serialVersionUID = -3890262215461930417L;
+
+	private final UUID sid;
+	private final String filename;
+	private final int version;
+	private final long size;
+
+	public StreamUploadRequest(UUID sid, String filename, int version, long size) {
+		this.sid = sid;
+		this.filename = filename;
+		this.version = version;
+		this.size = size;
+	}
+
+	public UUID getSid() {
+		return sid;
+	}
+
+	public String getFilename() {
+		return filename;
+	}
+
+	public int getVersion() {
+		return version;
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("!upload %s %d %d", getFilename(), getVersion(), getSize());
+	}
+}
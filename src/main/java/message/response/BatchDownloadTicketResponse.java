@@ -0,0 +1,56 @@
+package message.response;
+
+import message.Response;
+import model.DownloadTicket;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Requests {@link model.DownloadTicket}s for several files at once. The
+ * credits for all files are taken together or not at all.
+ * <p/>
+ * <b>Request (client to proxy)</b>:<br/>
+ * {@code !downloadall &lt;filename1&gt; &lt;filename2&gt; ...}<br/>
+ * <b>Response (proxy to client):</b><br/>
+ * {@code !downloadall &lt;ticket1&gt; &lt;ticket2&gt; ...}<br/>
+ * Files that don't exist get no ticket and are listed as missing.
+ *
+ * @see message.request.BatchDownloadTicketRequest
+ */
+public class BatchDownloadTicketResponse implements Response {
+	private static final long serialVersionUID = 2937640357731298416L;
+
+	private final List<DownloadTicket> tickets;
+
+	private final List<String> missing;
+
+	public BatchDownloadTicketResponse(List<DownloadTicket> tickets, List<String> missing) {
+		this.tickets = Collections.unmodifiableList(new ArrayList<DownloadTicket>(tickets));
+		this.missing = Collections.unmodifiableList(new ArrayList<String>(missing));
+	}
+
+	public List<DownloadTicket> getTickets() {
+		return tickets;
+	}
+
+	/**
+	 * Returns the names of the requested files that weren't found.
+	 */
+	public List<String> getMissing() {
+		return missing;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("!downloadall");
+		for (DownloadTicket ticket : getTickets()) {
+			sb.append("\n").append(ticket);
+		}
+		for (String filename : getMissing()) {
+			sb.append("\n").append(filename).append(": File not found.");
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,47 @@
+package message.response;
+
+import message.Response;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Retrieves size, highest available version and content hash of several
+ * files on a certain server in a single round trip.
+ * <p/>
+ * <b>Request</b>:<br/>
+ * {@code !metadata &lt;filename1&gt; &lt;filename2&gt; ...}<br/>
+ * <b>Response:</b><br/>
+ * {@code !metadata &lt;filename1&gt; &lt;file_size&gt; &lt;version&gt; &lt;hash&gt;}<br/>
+ * {@code ...}<br/>
+ * Files the server doesn't have are left out.
+ *
+ * @see message.request.BatchMetadataRequest
+ */
+public class BatchMetadataResponse implements Response {
+	private static final long serialVersionUID = -1472213939140958352L;
+
+	private final List<MetadataResponse> entries;
+
+	public BatchMetadataResponse(List<MetadataResponse> entries) {
+		this.entries = Collections.unmodifiableList(new ArrayList<MetadataResponse>(entries));
+	}
+
+	public List<MetadataResponse> getEntries() {
+		return entries;
+	}
+
+	@Override
+	public String toString() {
+		if (getEntries().isEmpty()) {
+			return "No files found.";
+		}
+
+		StringBuilder sb = new StringBuilder();
+		for (MetadataResponse entry : getEntries()) {
+			sb.append(entry).append("\n");
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,80 @@
+package message.response;
+
+import message.Response;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Lists the files of a catalog that changed since the requested version.
+ * <p/>
+ * If the file server can't tell the changes since that version, because
+ * it belongs to another epoch (the server restarted) or is older than the
+ * changes the server keeps, the response is a snapshot: it lists all files
+ * and the requester replaces what it knew.
+ *
+ * @see message.request.CatalogChangesRequest
+ */
+public class CatalogChangesResponse implements Response {
+	private static final long serialVersionUID = 5286014931276403395L;
+
+	private final long epoch;
+	private final long version;
+	private final boolean snapshot;
+	private final List<MetadataResponse> present;
+	private final List<String> removed;
+
+	/**
+	 * @param epoch    the epoch of the catalog
+	 * @param version  the version of the catalog the response brings the requester to
+	 * @param snapshot whether all files are listed instead of the changes
+	 * @param present  the files that were added or changed, all files in a snapshot; without hash
+	 * @param removed  the files that were removed
+	 */
+	public CatalogChangesResponse(long epoch, long version, boolean snapshot, List<MetadataResponse> present, List<String> removed) {
+		this.epoch = epoch;
+		this.version = version;
+		this.snapshot = snapshot;
+		this.present = Collections.unmodifiableList(new ArrayList<MetadataResponse>(present));
+		this.removed = Collections.unmodifiableList(new ArrayList<String>(removed));
+	}
+
+	public long getEpoch() {
+		return epoch;
+	}
+
+	public long getVersion() {
+		return version;
+	}
+
+	public boolean isSnapshot() {
+		return snapshot;
+	}
+
+	/**
+	 * Returns name, size and version of the files present, their hash is not computed.
+	 */
+	public List<MetadataResponse> getPresent() {
+		return present;
+	}
+
+	public List<String> getRemoved() {
+		return removed;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("!changes ").append(getVersion());
+		if (isSnapshot()) {
+			sb.append(" snapshot");
+		}
+		for (MetadataResponse file : getPresent()) {
+			sb.append(" ").append(file.getFilename());
+		}
+		for (String filename : getRemoved()) {
+			sb.append(" -").append(filename);
+		}
+		return sb.toString();
+	}
+}
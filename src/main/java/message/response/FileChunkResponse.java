@@ -0,0 +1,37 @@
+package message.response;
+
+import message.Response;
+
+/**
+ * A bounded part of a file's content sent during a chunked transfer.<br/>
+ * An empty chunk marks the end of the transfer.
+ *
+ * @see StreamDownloadResponse
+ */
+public class FileChunkResponse implements Response {
+	private static final long serialVersionUID = -6403355018836225151L;
+
+	/**
+	 * Maximum number of content bytes carried by a single chunk.
+	 */
+	public static final int MAX_SIZE = 64 * 1024;
+
+	private final byte[] data;
+
+	public FileChunkResponse(byte[] data) {
+		this.data = data;
+	}
+
+	public byte[] getData() {
+		return data;
+	}
+
+	public boolean isLast() {
+		return data.length == 0;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("!chunk %d", data.length);
+	}
+}
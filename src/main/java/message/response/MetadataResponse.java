@@ -0,0 +1,54 @@
+package message.response;
+
+import message.Response;
+
+/**
+ * Retrieves size, highest available version and content hash of a
+ * particular file on a certain server in a single round trip.
+ * <p/>
+ * <b>Request</b>:<br/>
+ * {@code !metadata &lt;filename&gt;}<br/>
+ * <b>Response:</b><br/>
+ * {@code !metadata &lt;filename&gt; &lt;file_size&gt; &lt;version&gt; &lt;hash&gt;}<br/>
+ *
+ * @see message.request.MetadataRequest
+ */
+public class MetadataResponse implements Response {
+	private static final long serialVersionUID = -8469315062339561272L;
+
+	private final String filename;
+	private final long size;
+	private final int version;
+	private final String hash;
+
+	public MetadataResponse(String filename, long size, int version, String hash) {
+		this.filename = filename;
+		this.size = size;
+		this.version = version;
+		this.hash = hash;
+	}
+
+	public String getFilename() {
+		return filename;
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	public int getVersion() {
+		return version;
+	}
+
+	/**
+	 * Returns the hex encoded SHA-256 hash of the file's content.
+	 */
+	public String getHash() {
+		return hash;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("!metadata %s %d %d %s", filename, size, version, hash);
+	}
+}
@@ -0,0 +1,40 @@
+package message.response;
+
+import message.Response;
+import model.DownloadTicket;
+
+/**
+ * Header of a chunked download. The announced number of bytes follows as a
+ * sequence of {@link FileChunkResponse}s terminated by an empty chunk.
+ * <p/>
+ * <b>Request (client to server)</b>:<br/>
+ * {@code !download &lt;ticket&gt;}<br/>
+ * <b>Response (server to client):</b><br/>
+ * {@code !data &lt;filename&gt; &lt;size&gt;}<br/>
+ *
+ * @see message.request.StreamDownloadRequest
+ */
+public class StreamDownloadResponse implements Response {
+	private static final long serialVersionUID = 4417382290115726103L;
+
+	private final DownloadTicket ticket;
+	private final long size;
+
+	public StreamDownloadResponse(DownloadTicket ticket, long size) {
+		this.ticket = ticket;
+		this.size = size;
+	}
+
+	public DownloadTicket getTicket() {
+		return ticket;
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("!data %s %d", ticket.getFilename(), size);
+	}
+}
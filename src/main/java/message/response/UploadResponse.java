@@ -0,0 +1,45 @@
+package message.response;
+
+/**
+ * Tells how an upload ended, as a status to act on and as a message to
+ * show.
+ * <p/>
+ * <b>Request</b>:<br/>
+ * {@code !upload &lt;filename&gt;}<br/>
+ * <b>Response:</b><br/>
+ * {@code Uploaded.}<br/>
+ * or<br/>
+ * {@code Content unknown.}
+ *
+ * @see message.request.UploadRequest
+ * @see message.request.HashUploadRequest
+ * @see message.request.StreamUploadRequest
+ */
+public class UploadResponse extends MessageResponse {
+	private static final long serialVersionUID = -2937340171559034427L;
+
+	public enum Type {
+		UPLOADED("Uploaded."),
+		// an upload by hash whose content isn't stored, it has to be sent
+		CONTENT_UNKNOWN("Content unknown."),
+		INCOMPLETE("Upload incomplete."),
+		FAILED("Upload failed.");
+
+		String message;
+
+		Type(String message) {
+			this.message = message;
+		}
+	}
+
+	private final Type type;
+
+	public UploadResponse(Type type) {
+		super(type.message);
+		this.type = type;
+	}
+
+	public Type getType() {
+		return type;
+	}
+}
@@ -12,6 +12,8 @@ public final class DownloadTicket implements Serializable {
 	private String username;
 	private String filename;
 	private String checksum;
+	// signed by the proxy, see util.TicketSigner
+	private byte[] token;
 	private InetAddress address;
 	private int port;
 
@@ -27,6 +29,15 @@ public final class DownloadTicket implements Serializable {
 		this.port = port;
 	}
 
+	public DownloadTicket(String username, String filename, byte[] token, 
+                              InetAddress address, int port) {
+		this.username = username;
+		this.filename = filename;
+		this.token = token;
+		this.address = address;
+		this.port = port;
+	}
+
 	public String getUsername() {
 		return username;
 	}
@@ -51,6 +62,17 @@ public final class DownloadTicket implements Serializable {
 		this.checksum = checksum;
 	}
 
+	/**
+	 * Returns the signed ticket the file server verifies.
+	 */
+	public byte[] getToken() {
+		return token;
+	}
+
+	public void setToken(byte[] token) {
+		this.token = token;
+	}
+
 	public InetAddress getAddress() {
 		return address;
 	}
@@ -69,6 +91,10 @@ public final class DownloadTicket implements Serializable {
 
 	@Override
 	public String toString() {
+		if (getChecksum() == null) {
+			return String.format("%s@%s:%d/%s", getUsername(), getAddress().getHostAddress(),
+					getPort(), getFilename());
+		}
 		return String.format("%s@%s:%d/%s#%s", getUsername(), getAddress().getHostAddress(),
 				getPort(), getFilename(), getChecksum());
 	}
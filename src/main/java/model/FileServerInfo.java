@@ -13,19 +13,29 @@ public class FileServerInfo implements Serializable {
 	private int port;
 	private long usage;
 	private boolean online;
+	private long replicaLatency;
+	private long replicaFailures;
 
 	public FileServerInfo(InetAddress address, int port, long usage, boolean online) {
+		this(address, port, usage, online, 0, 0);
+	}
+
+	public FileServerInfo(InetAddress address, int port, long usage, boolean online,
+			long replicaLatency, long replicaFailures) {
 		this.address = address;
 		this.port = port;
 		this.usage = usage;
 		this.online = online;
+		this.replicaLatency = replicaLatency;
+		this.replicaFailures = replicaFailures;
 	}
 
 	@Override
 	public String toString() {
-		return String.format("%1$-15s %2$-5d %3$-7s %4$13d",
+		return String.format("%1$-15s %2$-5d %3$-7s %4$13d %5$6dms %6$4d failed",
 				getAddress().getHostAddress(), getPort(),
-				isOnline() ? "online" : "offline", getUsage());
+				isOnline() ? "online" : "offline", getUsage(),
+				getReplicaLatency(), getReplicaFailures());
 	}
 
 	public InetAddress getAddress() {
@@ -43,4 +53,18 @@ public class FileServerInfo implements Serializable {
 	public boolean isOnline() {
 		return online;
 	}
+
+	/**
+	 * Returns the average time in ms it took to replicate an upload to the server.
+	 */
+	public long getReplicaLatency() {
+		return replicaLatency;
+	}
+
+	/**
+	 * Returns the number of uploads the server failed to acknowledge.
+	 */
+	public long getReplicaFailures() {
+		return replicaFailures;
+	}
 }
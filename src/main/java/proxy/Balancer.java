@@ -0,0 +1,20 @@
+package proxy;
+
+import java.util.Collection;
+
+/**
+ * Chooses the file server a download is sent to.
+ * <p/>
+ * Implementations are selected by the {@code balancer} key of the proxy
+ * config, see {@link Balancers}.
+ */
+interface Balancer {
+    /**
+     * Chooses one of the online candidates.
+     *
+     * @param candidates the file servers to choose from, e.g. the replicas
+     * of a file, {@code null} to choose from all online servers
+     * @return the chosen server, {@code null} if no candidate is online
+     */
+    FileServer select(Collection<FileServer> candidates);
+}
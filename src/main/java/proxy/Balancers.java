@@ -0,0 +1,147 @@
+package proxy;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Creates the {@link Balancer} named in the proxy config.
+ * <p/>
+ * All of them weigh the current load of the servers, the transfers in
+ * progress as kept by the {@link FileServerIndex}, rather than the bytes
+ * served since the start.
+ */
+final class Balancers {
+    // the server with the least outstanding transfers
+    public static final String LEAST_OUTSTANDING = "least-outstanding";
+
+    // the less loaded of two random servers
+    public static final String POWER_OF_TWO = "power-of-two";
+
+    // like POWER_OF_TWO, the load weighted by the average latency
+    public static final String EWMA = "ewma";
+
+    private Balancers() {
+    }
+
+    /**
+     * Returns whether a balancer of the given name exists.
+     */
+    public static boolean isBalancer(String name) {
+        return LEAST_OUTSTANDING.equals(name) || POWER_OF_TWO.equals(name) ||
+            EWMA.equals(name);
+    }
+
+    /**
+     * Creates the named balancer.
+     *
+     * @throws IllegalArgumentException if there is no such balancer
+     */
+    public static Balancer create(String name, FileServerIndex index) {
+        if(LEAST_OUTSTANDING.equals(name)) {
+            return new LeastOutstanding(index);
+        } else if(POWER_OF_TWO.equals(name)) {
+            return new PowerOfTwo(index);
+        } else if(EWMA.equals(name)) {
+            return new Ewma(index);
+        }
+        throw new IllegalArgumentException("Unknown balancer " + name + ".");
+    }
+
+    /**
+     * Picks the server with the fewest outstanding transfers. Among all
+     * servers it is the head of the index, among candidates (a handful of
+     * replicas) the candidates are compared.
+     */
+    static class LeastOutstanding implements Balancer {
+        private FileServerIndex index;
+
+        LeastOutstanding(FileServerIndex index) {
+            this.index = index;
+        }
+
+        public FileServer select(Collection<FileServer> candidates) {
+            if(candidates == null) {
+                return index.getLeastLoaded();
+            }
+            FileServer least = null;
+            for(FileServer fs : candidates) {
+                if(fs.isOnline() && (least == null ||
+                   fs.getOutstanding() < least.getOutstanding())) {
+                    least = fs;
+                }
+            }
+            return least;
+        }
+    }
+
+    /**
+     * Picks two servers at random and takes the one with the lower
+     * {@link #cost}. Spreads the load nearly as well as always taking the
+     * least loaded server, but concurrent selections don't all pile onto
+     * the same one.
+     */
+    static class PowerOfTwo implements Balancer {
+        private FileServerIndex index;
+
+        PowerOfTwo(FileServerIndex index) {
+            this.index = index;
+        }
+
+        public FileServer select(Collection<FileServer> candidates) {
+            List<FileServer> servers;
+            if(candidates == null) {
+                servers = index.getOnline();
+            } else {
+                servers = new ArrayList<FileServer>(candidates.size());
+                for(FileServer fs : candidates) {
+                    if(fs.isOnline()) {
+                        servers.add(fs);
+                    }
+                }
+            }
+
+            int n = servers.size();
+            if(n == 0) {
+                return null;
+            } else if(n == 1) {
+                return servers.get(0);
+            }
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int i = random.nextInt(n);
+            int j = random.nextInt(n - 1);
+            if(j >= i) {
+                j++;
+            }
+            FileServer a = servers.get(i);
+            FileServer b = servers.get(j);
+            return cost(a) <= cost(b) ? a : b;
+        }
+
+        double cost(FileServer fs) {
+            return fs.getOutstanding();
+        }
+    }
+
+    /**
+     * Power of two choices weighing the outstanding transfers with the
+     * moving average of the latency, so a slow server gets less work than
+     * an equally loaded fast one.
+     */
+    static class Ewma extends PowerOfTwo {
+        // latency in ms assumed for servers that answer faster or haven't
+        // answered yet, keeps the cost from collapsing to 0
+        private static final double MIN_LATENCY = 1;
+
+        Ewma(FileServerIndex index) {
+            super(index);
+        }
+
+        @Override
+        double cost(FileServer fs) {
+            return Math.max(fs.getLatency(), MIN_LATENCY) *
+                (fs.getOutstanding() + 1);
+        }
+    }
+}
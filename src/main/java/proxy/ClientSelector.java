@@ -0,0 +1,735 @@
+package proxy;
+
+import message.Response;
+import message.response.MessageResponse;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import java.net.InetSocketAddress;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import util.Frames;
+import util.Protocol;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Non-blocking front end accepting client connections.
+ * <p/>
+ * A single thread accepts connections, answers their {@link Protocol}
+ * handshake and reads {@link Frames frames} from all of them. Only once a
+ * frame is complete it is put into the inbox of its {@link Session}, which
+ * a worker drains by decoding and handling the requests in order.
+ * Responses are queued and written by the selector thread as the socket
+ * accepts them. An idle client costs a channel and a few bytes of buffer,
+ * not a thread.
+ * <p/>
+ * If a session has {@link #MAX_PENDING} unhandled frames the selector stops
+ * reading from it until the worker caught up, so a fast client can't flood
+ * the proxy with requests.
+ * <p/>
+ * Multiplexed sessions have up to {@link #MAX_IN_FLIGHT} requests handled
+ * concurrently, each response is sent as soon as it is ready and tagged
+ * with the id of its request. Messages carrying the id of a request in
+ * flight, like upload chunks, are passed on to that request. Their inboxes
+ * are drained by threads of their own that never block, while the
+ * requests run on the workers: a request waiting for its chunks can't
+ * hold up the thread that delivers them.
+ */
+class ClientSelector implements Runnable {
+    // number of unhandled frames after which a session isn't read anymore
+    public static final int MAX_PENDING = 32;
+
+    // number of unhandled frames after which reading resumes
+    public static final int RESUME_PENDING = MAX_PENDING / 2;
+
+    // number of requests of a multiplexed session handled concurrently
+    public static final int MAX_IN_FLIGHT = 32;
+
+    // marks the end of a session in its inbox
+    private static final byte[] CLOSED = new byte[0];
+
+    private Logger logger;
+
+    private int port;
+    private ExecutorService workers;
+    private HandlerFactory factory;
+
+    // drain the inboxes of multiplexed sessions
+    private ExecutorService drainers;
+
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+
+    // changes to interest ops requested by workers, applied by the selector
+    private Queue<Runnable> changes;
+
+    private volatile boolean stopped = false;
+
+    /**
+     * @param port     the port to listen on
+     * @param workers  the pool handling requests
+     * @param factory  creates the handler of each new session
+     */
+    public ClientSelector(int port, ExecutorService workers,
+                          HandlerFactory factory) {
+        logger = Logger.getLogger(ClientSelector.class);
+        this.port = port;
+        this.workers = workers;
+        this.factory = factory;
+        drainers = Executors.newFixedThreadPool
+            (Runtime.getRuntime().availableProcessors());
+        changes = new ConcurrentLinkedQueue<Runnable>();
+    }
+
+    /**
+     * run method
+     */
+    public void run() {
+        logger.info("Creating server socket.");
+        try {
+            selector = Selector.open();
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.socket().bind(new InetSocketAddress(port));
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException x) {
+            logger.warn("Could not listen on port: " + port);
+            cleanup();
+            return;
+        }
+
+        logger.debug("Listening on port " + port + ".");
+        try {
+            while(!stopped && !Thread.interrupted()) {
+                selector.select();
+                Runnable change;
+                while((change = changes.poll()) != null) {
+                    change.run();
+                }
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while(it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if(!key.isValid()) {
+                        continue;
+                    }
+                    if(key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Session session = (Session) key.attachment();
+                    try {
+                        if(key.isReadable()) {
+                            session.read();
+                        }
+                        if(key.isValid() && key.isWritable()) {
+                            session.flush();
+                        }
+                    } catch (IOException x) {
+                        logger.debug("Lost client: " + x.getMessage());
+                        session.close();
+                    }
+                }
+            }
+        } catch (ClosedSelectorException x) {
+            logger.info("Interrupted. Stopping...");
+        } catch (IOException x) {
+            logger.info("Caught IOException while selecting.");
+        }
+
+        cleanup();
+        logger.info("Shutting down.");
+    }
+
+    /**
+     * Stops accepting and closes all client connections.
+     */
+    public void close() {
+        stopped = true;
+        if(selector != null) {
+            selector.wakeup();
+        }
+    }
+
+    private void cleanup() {
+        try {
+            if(selector != null && selector.isOpen()) {
+                for(SelectionKey key : selector.keys()) {
+                    if(key.attachment() instanceof Session) {
+                        ((Session) key.attachment()).close();
+                    }
+                }
+                selector.close();
+            }
+        } catch (IOException x) {
+            logger.info("Caught IOException on closing selector.");
+        }
+        try {
+            if(serverChannel != null) {
+                serverChannel.close();
+            }
+        } catch (IOException x) {
+            logger.info("Caught IOException on closing socket");
+        }
+        drainers.shutdown();
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if(channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+        Session session = new Session(channel, key);
+        session.handler = factory.create(session);
+        key.attach(session);
+        logger.debug("Accepted " + channel.socket().getRemoteSocketAddress() +
+                     ".");
+    }
+
+    /**
+     * Applies a change to interest ops on the selector thread.
+     */
+    private void change(Runnable change) {
+        changes.add(change);
+        selector.wakeup();
+    }
+
+    /**
+     * Handles the requests of one session. Before
+     * {@link Protocol#MULTIPLEXED} calls happen one at a time in the order
+     * the requests arrived, afterwards requests are handled concurrently
+     * unless they are {@link #isExclusive exclusive}.
+     */
+    interface Handler {
+        /**
+         * Handles a request and returns the response to send.
+         *
+         * @param chunks the messages the client sends along with the
+         * request, e.g. the chunks of an upload
+         */
+        Response handle(Object request, Chunks chunks) throws Exception;
+
+        /**
+         * Returns whether the request changes the state of the session, so
+         * it must not overlap with any other request of the session.
+         */
+        boolean isExclusive(Object request);
+
+        /**
+         * Called once after the connection was closed and all requests
+         * were handled.
+         */
+        void closed();
+    }
+
+    interface HandlerFactory {
+        Handler create(Session session);
+    }
+
+    /**
+     * The messages following a request.
+     */
+    interface Chunks {
+        /**
+         * Takes the next message.
+         *
+         * @throws EOFException if the connection was closed
+         * @throws InterruptedIOException if nothing arrived in time
+         */
+        Object next(long timeout) throws IOException, ClassNotFoundException;
+    }
+
+    /**
+     * A client connection with its partially read frame, its inbox and
+     * its queued responses.
+     */
+    class Session implements Runnable {
+        private SocketChannel channel;
+        private SelectionKey key;
+        private Handler handler;
+
+        // only touched by the selector thread
+        private ByteBuffer handshake = ByteBuffer.allocate(2);
+        private ByteBuffer header = ByteBuffer.allocate(Frames.HEADER_SIZE);
+        private ByteBuffer body;
+        // announced length of the body, which grows up to it as it's read
+        private int bodyLength;
+        private volatile boolean paused = false;
+
+        private BlockingQueue<byte[]> inbox;
+        private Queue<ByteBuffer> outbox;
+
+        // whether a worker is draining the inbox
+        private AtomicBoolean scheduled = new AtomicBoolean(false);
+
+        // negotiated protocol version, 0 until the handshake was read
+        private volatile int version = 0;
+
+        private volatile boolean closed = false;
+
+        // messages following the requests in flight, by request id
+        private Map<Integer, BlockingQueue<Object>> streams;
+
+        // number of requests handled concurrently, guarded by streams
+        private int inFlight = 0;
+
+        // whether the request in flight is exclusive, guarded by streams
+        private boolean exclusive = false;
+
+        // whether the inbox reached its end, guarded by streams
+        private boolean finished = false;
+
+        // message that couldn't be dispatched yet, only touched by the
+        // worker draining the inbox
+        private volatile Frames.Envelope parked;
+
+        Session(SocketChannel channel, SelectionKey key) {
+            this.channel = channel;
+            this.key = key;
+            inbox = new LinkedBlockingQueue<byte[]>();
+            outbox = new ConcurrentLinkedQueue<ByteBuffer>();
+            streams = new ConcurrentHashMap<Integer, BlockingQueue<Object>>();
+        }
+
+        /**
+         * Reads whatever is available and queues completed frames.
+         */
+        void read() throws IOException {
+            if(version == 0) {
+                if(channel.read(handshake) < 0) {
+                    throw new EOFException("Connection closed.");
+                }
+                if(handshake.hasRemaining()) {
+                    return;
+                }
+                version = Protocol.select(handshake.get(0) & 0xFF, 
+                                          handshake.get(1) & 0xFF);
+                handshake = null;
+                outbox.add(ByteBuffer.wrap(new byte[] { (byte) version }));
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            }
+            while(true) {
+                if(body == null) {
+                    if(channel.read(header) < 0) {
+                        throw new EOFException("Connection closed.");
+                    }
+                    if(header.hasRemaining()) {
+                        break;
+                    }
+                    header.flip();
+                    bodyLength = Frames.checkLength(header.getInt(),
+                                                    Frames.MAX_REQUEST_SIZE);
+                    body = ByteBuffer.allocate
+                        (Math.min(bodyLength, Frames.ALLOCATION_STEP));
+                    header.clear();
+                }
+                if(!body.hasRemaining() && body.capacity() < bodyLength) {
+                    ByteBuffer grown = ByteBuffer.allocate
+                        ((int) Math.min(bodyLength, 2L * body.capacity()));
+                    body.flip();
+                    body = grown.put(body);
+                }
+                if(channel.read(body) < 0) {
+                    throw new EOFException("Connection closed.");
+                }
+                if(body.position() < bodyLength) {
+                    if(body.hasRemaining()) {
+                        break;
+                    }
+                    continue;
+                }
+                inbox.add(body.array());
+                body = null;
+                schedule();
+
+                if(inbox.size() >= MAX_PENDING) {
+                    paused = true;
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                    break;
+                }
+            }
+        }
+
+        /**
+         * Writes queued responses as far as the socket accepts them.
+         */
+        void flush() throws IOException {
+            ByteBuffer frame;
+            while((frame = outbox.peek()) != null) {
+                channel.write(frame);
+                if(frame.hasRemaining()) {
+                    return;
+                }
+                outbox.poll();
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        }
+
+        /**
+         * Closes the connection, the handler is notified once the worker
+         * reached the end of the inbox.
+         */
+        synchronized void close() {
+            if(closed) {
+                return;
+            }
+            closed = true;
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException x) {
+                logger.info("Caught IOException on closing channel.");
+            }
+            inbox.add(CLOSED);
+            schedule();
+        }
+
+        /**
+         * Queues a response to the request with the given id to be written
+         * by the selector thread.
+         */
+        public void send(int id, Object message) throws IOException {
+            if(!channel.isOpen()) {
+                return;
+            }
+            outbox.add(Frames.encode(id, message, version));
+            change(new Runnable() {
+                public void run() {
+                    if(key.isValid()) {
+                        key.interestOps(key.interestOps() |
+                                        SelectionKey.OP_WRITE);
+                    }
+                }
+            });
+        }
+
+        private boolean isMultiplexed() {
+            return version >= Protocol.MULTIPLEXED;
+        }
+
+        /**
+         * Has a thread drain the inbox. Before {@link Protocol#MULTIPLEXED}
+         * that is a worker, since the requests are handled while draining.
+         */
+        private void schedule() {
+            if(scheduled.compareAndSet(false, true)) {
+                try {
+                    if(isMultiplexed()) {
+                        drainers.submit(this);
+                    } else {
+                        workers.submit(this);
+                    }
+                } catch (RejectedExecutionException x) {
+                    // shutting down
+                }
+            }
+        }
+
+        private void resume() {
+            if(inbox.size() > RESUME_PENDING) {
+                return;
+            }
+            change(new Runnable() {
+                public void run() {
+                    if(paused && key.isValid()) {
+                        paused = false;
+                        key.interestOps(key.interestOps() |
+                                        SelectionKey.OP_READ);
+                    }
+                }
+            });
+        }
+
+        /**
+         * Drains the inbox. A multiplexed session never waits for its
+         * requests here: a message that can't be dispatched yet is parked
+         * and the session scheduled again once a request made room for it.
+         */
+        public void run() {
+            while(true) {
+                Frames.Envelope envelope = parked;
+                if(envelope != null) {
+                    if(closed) {
+                        // the requests in flight end once CLOSED is read
+                        parked = null;
+                        continue;
+                    }
+                    if(!dispatch(envelope)) {
+                        scheduled.set(false);
+                        // a request may have made room before scheduled
+                        // was reset
+                        if((!closed && !isReady(envelope)) ||
+                           !scheduled.compareAndSet(false, true)) {
+                            return;
+                        }
+                        continue;
+                    }
+                    parked = null;
+                    continue;
+                }
+
+                byte[] frame = inbox.poll();
+                if(frame == null) {
+                    scheduled.set(false);
+                    // a frame may have arrived before scheduled was reset
+                    if(inbox.isEmpty() ||
+                       !scheduled.compareAndSet(false, true)) {
+                        return;
+                    }
+                    continue;
+                }
+                if(frame == CLOSED) {
+                    finish();
+                    return;
+                }
+                if(paused) {
+                    resume();
+                }
+
+                try {
+                    envelope = Frames.decode(frame, version);
+                } catch (IOException x) {
+                    logger.info("Caught IOException: " + x.getMessage());
+                    close();
+                    continue;
+                } catch (ClassNotFoundException x) {
+                    logger.info("Class not found.");
+                    close();
+                    continue;
+                }
+
+                if(isMultiplexed()) {
+                    parked = envelope;
+                } else {
+                    // the following frames of the inbox belong to the request
+                    respond(envelope.getId(), envelope.getMessage(),
+                            new Chunks() {
+                        public Object next(long timeout)
+                            throws IOException, ClassNotFoundException {
+                            return nextFrame(timeout);
+                        }
+                    });
+                }
+            }
+        }
+
+        /**
+         * Hands a request to a worker, or a message to the request it
+         * belongs to, without blocking.
+         *
+         * @return false if the message has to wait: the request it belongs
+         * to has no room for it, too many requests are in flight, or an
+         * exclusive request is or would be in flight with others
+         */
+        private boolean dispatch(Frames.Envelope envelope) {
+            final int id = envelope.getId();
+            final Object request = envelope.getMessage();
+
+            BlockingQueue<Object> stream = streams.get(id);
+            if(stream != null) {
+                return stream.offer(request);
+            }
+
+            final boolean alone = handler.isExclusive(request);
+            final BlockingQueue<Object> chunks = 
+                new LinkedBlockingQueue<Object>(MAX_PENDING);
+            synchronized(streams) {
+                if(!canStart(alone)) {
+                    return false;
+                }
+                if(alone) {
+                    exclusive = true;
+                } else {
+                    streams.put(id, chunks);
+                }
+                inFlight++;
+            }
+            Runnable task = new Runnable() {
+                public void run() {
+                    try {
+                        respond(id, request, alone ? null : new Chunks() {
+                            public Object next(long timeout)
+                                throws IOException {
+                                return nextChunk(chunks, timeout);
+                            }
+                        });
+                    } finally {
+                        ended(id);
+                    }
+                }
+            };
+            try {
+                workers.submit(task);
+            } catch (RejectedExecutionException x) {
+                ended(id);
+            }
+            return true;
+        }
+
+        /**
+         * Returns whether a parked message could be dispatched now.
+         */
+        private boolean isReady(Frames.Envelope envelope) {
+            BlockingQueue<Object> stream = streams.get(envelope.getId());
+            if(stream != null) {
+                return stream.remainingCapacity() > 0;
+            }
+            synchronized(streams) {
+                return canStart(handler.isExclusive(envelope.getMessage()));
+            }
+        }
+
+        /**
+         * Returns whether a request can be started, must hold streams.
+         */
+        private boolean canStart(boolean alone) {
+            if(alone) {
+                return inFlight == 0;
+            }
+            return !exclusive && inFlight < MAX_IN_FLIGHT;
+        }
+
+        /**
+         * Schedules the session again if a message waits for room.
+         */
+        private void wake() {
+            if(parked != null) {
+                schedule();
+            }
+        }
+
+        /**
+         * Called when a request in flight ended. The last one after the
+         * inbox reached its end notifies the handler.
+         */
+        private void ended(int id) {
+            boolean last;
+            synchronized(streams) {
+                streams.remove(id);
+                exclusive = false;
+                inFlight--;
+                last = finished && inFlight == 0;
+            }
+            if(last) {
+                handler.closed();
+            } else {
+                wake();
+            }
+        }
+
+        /**
+         * Handles a request and sends its response. Failing requests close
+         * the session.
+         */
+        private void respond(int id, Object request, Chunks chunks) {
+            Response response;
+            try {
+                response = handler.handle(request, chunks);
+            } catch (IOException x) {
+                logger.info("Caught IOException: " + x.getMessage());
+                close();
+                return;
+            } catch (Exception x) {
+                logger.info("Caught Exception: ");
+                x.printStackTrace();
+                close();
+                return;
+            }
+
+            try {
+                if(response != null) {
+                    send(id, response);
+                } else {
+                    String msg = "Dwarfes attacked us, we were defenseless!";
+                    send(id, new MessageResponse(msg));
+                }
+            } catch (IOException x) {
+                logger.info("Couldn't encode response.");
+                close();
+            }
+        }
+
+        /**
+         * Ends the requests in flight. The handler is notified now if none
+         * are, otherwise by the last of them.
+         */
+        private void finish() {
+            for(BlockingQueue<Object> stream : streams.values()) {
+                stream.clear();
+                stream.offer(CLOSED);
+            }
+            synchronized(streams) {
+                finished = true;
+                if(inFlight > 0) {
+                    return;
+                }
+            }
+            handler.closed();
+        }
+
+        private Object nextFrame(long timeout)
+            throws IOException, ClassNotFoundException {
+            byte[] frame;
+            try {
+                frame = inbox.poll(timeout, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException x) {
+                throw new InterruptedIOException("Interrupted.");
+            }
+            if(frame == null) {
+                throw new InterruptedIOException("Client timed out.");
+            }
+            if(frame == CLOSED) {
+                // leave the marker for the worker loop
+                inbox.add(CLOSED);
+                throw new EOFException("Connection closed.");
+            }
+            resume();
+            return Frames.decode(frame, version).getMessage();
+        }
+
+        private Object nextChunk(BlockingQueue<Object> chunks, long timeout)
+            throws IOException {
+            Object chunk;
+            try {
+                chunk = chunks.poll(timeout, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException x) {
+                throw new InterruptedIOException("Interrupted.");
+            }
+            if(chunk == null) {
+                throw new InterruptedIOException("Client timed out.");
+            }
+            if(chunk == CLOSED) {
+                throw new EOFException("Connection closed.");
+            }
+            // the stream may have been full
+            wake();
+            return chunk;
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package proxy;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The credit balance of a user. All changes are compare-and-set on a
+ * single {@link AtomicLong}, so concurrent sessions of a user neither lose
+ * updates nor overdraw the account, and nothing is locked.
+ * <p/>
+ * Credits can be {@link #reserve reserved} while a ticket is crafted; they
+ * are taken from the balance right away and are either kept by
+ * {@link Reservation#commit} or given back by {@link Reservation#refund}.
+ * <p/>
+ * Deposits and committed reservations are passed on to the
+ * {@link Journal}, if there is one.
+ */
+class CreditAccount {
+    private final AtomicLong balance;
+
+    private volatile Journal journal;
+
+    public CreditAccount(long credits) {
+        balance = new AtomicLong(credits);
+    }
+
+    public long get() {
+        return balance.get();
+    }
+
+    /**
+     * Sets the balance without journaling it, e.g. when restoring it.
+     */
+    public void set(long credits) {
+        balance.set(credits);
+    }
+
+    public void setJournal(Journal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Adds credits.
+     *
+     * @return the new balance
+     */
+    public long deposit(long amount) {
+        long credits = balance.addAndGet(amount);
+        journal(amount);
+        return credits;
+    }
+
+    /**
+     * Takes credits if the balance covers them.
+     *
+     * @return whether the credits were taken
+     */
+    private boolean withdraw(long amount) {
+        while(true) {
+            long current = balance.get();
+            if(current < amount) {
+                return false;
+            }
+            if(balance.compareAndSet(current, current - amount)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Holds credits until the reservation is committed or refunded.
+     *
+     * @return the reservation, {@code null} if the balance doesn't cover
+     * the amount
+     */
+    public Reservation reserve(long amount) {
+        if(!withdraw(amount)) {
+            return null;
+        }
+        return new Reservation(amount);
+    }
+
+    private void journal(long delta) {
+        Journal journal = this.journal;
+        if(journal != null) {
+            journal.record(delta);
+        }
+    }
+
+    /**
+     * Records committed changes of a balance.
+     */
+    interface Journal {
+        void record(long delta);
+    }
+
+    /**
+     * Credits taken from the balance that may still be given back.
+     */
+    class Reservation {
+        // credits held, 0 once committed or refunded
+        private final AtomicLong held;
+
+        private Reservation(long amount) {
+            held = new AtomicLong(amount);
+        }
+
+        public long getHeld() {
+            return held.get();
+        }
+
+        /**
+         * Gives back part of the held credits, e.g. for a file of a batch
+         * that got no ticket.
+         */
+        public void release(long amount) {
+            while(true) {
+                long current = held.get();
+                long released = Math.min(current, amount);
+                if(held.compareAndSet(current, current - released)) {
+                    balance.addAndGet(released);
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Keeps the held credits.
+         */
+        public void commit() {
+            long amount = held.getAndSet(0);
+            if(amount != 0) {
+                journal(-amount);
+            }
+        }
+
+        /**
+         * Gives back the held credits, does nothing after a commit.
+         */
+        public void refund() {
+            balance.addAndGet(held.getAndSet(0));
+        }
+    }
+}
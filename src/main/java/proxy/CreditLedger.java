@@ -0,0 +1,387 @@
+package proxy;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Makes credit changes survive restarts of the proxy.
+ * <p/>
+ * Every committed change of a balance is appended to a log as the name of
+ * the user and the amount. A single writer thread writes whatever queued
+ * up meanwhile and syncs it to disk once, so concurrent requests share the
+ * cost of an fsync (group commit). Callers return once their change is on
+ * disk.
+ * <p/>
+ * From time to time the writer dumps the balances into a snapshot and
+ * starts a new log, so recovery reads the snapshot and the changes since
+ * instead of the whole history. Logs are numbered by generation, a
+ * snapshot names the first generation it doesn't contain. Snapshots are
+ * written to a temporary file and renamed, so a crash leaves either the
+ * old or the new one.
+ */
+class CreditLedger implements Runnable {
+    private static final String SNAPSHOT = "snapshot";
+    private static final String LOG_PREFIX = "ledger-";
+    private static final String LOG_SUFFIX = ".log";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // queue markers
+    private static final Object COMPACT = new Object();
+    private static final Object STOP = new Object();
+
+    // time in ms to wait for the writer on close
+    private static final long CLOSE_TIMEOUT = 5000;
+
+    private Logger logger;
+
+    private Path dir;
+
+    private BlockingQueue<Object> queue;
+
+    private volatile boolean closed = false;
+
+    private CountDownLatch stopped = new CountDownLatch(1);
+
+    // only touched by the writer after recovery
+    private Map<String, Long> balances;
+    private long generation;
+    private FileOutputStream file;
+    private DataOutputStream out;
+
+    public CreditLedger(Path dir) {
+        logger = Logger.getLogger(CreditLedger.class);
+        this.dir = dir;
+        queue = new LinkedBlockingQueue<Object>();
+    }
+
+    /**
+     * Restores the balances of the users from the snapshot and the logs,
+     * then starts a new generation with a fresh snapshot and journals all
+     * further changes. Has to be called before the writer runs.
+     */
+    public void recover(UserRegistry users) throws IOException {
+        Files.createDirectories(dir);
+
+        long first = 0;
+        Path snapshot = dir.resolve(SNAPSHOT);
+        if(Files.exists(snapshot)) {
+            first = readSnapshot(snapshot, users);
+        }
+
+        // replay the changes since the snapshot
+        List<Long> generations = listLogs();
+        long replayed = 0;
+        for(long g : generations) {
+            if(g >= first) {
+                replayed += replay(logPath(g), users);
+            }
+        }
+        logger.info("Recovered credits, replayed " + replayed +
+                    " changes.");
+
+        balances = new HashMap<String, Long>();
+        for(User user : users.values()) {
+            balances.put(user.getName(), user.getCredits());
+        }
+        generation = first;
+        if(!generations.isEmpty()) {
+            generation = Math.max(generation,
+                                  generations.get(generations.size() - 1));
+        }
+        rotate();
+
+        for(User user : users.values()) {
+            final String name = user.getName();
+            user.setJournal(new CreditAccount.Journal() {
+                public void record(long delta) {
+                    CreditLedger.this.record(name, delta);
+                }
+            });
+        }
+    }
+
+    /**
+     * Appends a change and waits until it is on disk.
+     */
+    public void record(String username, long delta) {
+        if(closed) {
+            logger.warn("Ledger closed, change of " + username +
+                        " is not durable.");
+            return;
+        }
+        Change change = new Change(username, delta);
+        queue.add(change);
+        try {
+            while(!change.written.await(CLOSE_TIMEOUT, 
+                                        TimeUnit.MILLISECONDS)) {
+                // the writer stopped before it got to the change
+                if(stopped.getCount() == 0) {
+                    logger.warn("Change of " + username + 
+                                " is not durable.");
+                    return;
+                }
+            }
+        } catch (InterruptedException x) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Asks the writer to take a snapshot and start a new log.
+     */
+    public void compact() {
+        queue.add(COMPACT);
+    }
+
+    /**
+     * Takes a last snapshot and stops the writer.
+     */
+    public void close() {
+        closed = true;
+        queue.add(STOP);
+        try {
+            stopped.await(CLOSE_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException x) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public void run() {
+        List<Object> batch = new ArrayList<Object>();
+        try {
+            while(true) {
+                batch.add(queue.take());
+                queue.drainTo(batch);
+
+                boolean compact = false;
+                boolean stop = false;
+                try {
+                    for(Object o : batch) {
+                        if(o == COMPACT) {
+                            compact = true;
+                        } else if(o == STOP) {
+                            stop = true;
+                        } else {
+                            write((Change) o);
+                        }
+                    }
+                    // one sync for the whole batch
+                    out.flush();
+                    file.getChannel().force(false);
+                } catch (IOException x) {
+                    logger.error("Couldn't write credit ledger: " +
+                                 x.getMessage());
+                }
+                // a failed write is logged, the callers can't do better
+                release(batch);
+                batch.clear();
+
+                if(compact || stop) {
+                    try {
+                        rotate();
+                    } catch (IOException x) {
+                        logger.error("Couldn't compact credit ledger: " +
+                                     x.getMessage());
+                    }
+                }
+                if(stop) {
+                    out.close();
+                    return;
+                }
+            }
+        } catch (InterruptedException x) {
+            logger.info("Ledger writer interrupted.");
+        } catch (IOException x) {
+            logger.info("Couldn't close credit ledger.");
+        } finally {
+            // don't leave anyone waiting
+            release(batch);
+            stopped.countDown();
+        }
+    }
+
+    private void release(List<Object> batch) {
+        for(Object o : batch) {
+            if(o instanceof Change) {
+                ((Change) o).written.countDown();
+            }
+        }
+    }
+
+    private void write(Change change) throws IOException {
+        out.writeUTF(change.username);
+        out.writeLong(change.delta);
+        Long balance = balances.get(change.username);
+        balances.put(change.username,
+                     (balance == null ? 0 : balance) + change.delta);
+    }
+
+    /**
+     * Starts the next log generation and writes the snapshot naming it,
+     * older logs are obsolete afterwards.
+     */
+    private void rotate() throws IOException {
+        generation++;
+        if(out != null) {
+            out.close();
+        }
+        file = new FileOutputStream(logPath(generation).toFile(), true);
+        out = new DataOutputStream(new BufferedOutputStream(file));
+
+        writeSnapshot();
+
+        for(long g : listLogs()) {
+            if(g < generation) {
+                Files.deleteIfExists(logPath(g));
+            }
+        }
+        logger.debug("Credit ledger at generation " + generation + ".");
+    }
+
+    private void writeSnapshot() throws IOException {
+        Path tmp = dir.resolve(SNAPSHOT + ".tmp");
+        try(FileOutputStream fos = new FileOutputStream(tmp.toFile());
+            BufferedWriter writer = new BufferedWriter
+                (new OutputStreamWriter(fos, UTF8))) {
+            writer.write("generation " + generation);
+            writer.newLine();
+            List<String> names = new ArrayList<String>(balances.keySet());
+            Collections.sort(names);
+            for(String name : names) {
+                writer.write(name + " " + balances.get(name));
+                writer.newLine();
+            }
+            writer.flush();
+            fos.getChannel().force(false);
+        }
+        Files.move(tmp, dir.resolve(SNAPSHOT),
+                   StandardCopyOption.REPLACE_EXISTING,
+                   StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Sets the balances stored in a snapshot.
+     *
+     * @return the first log generation not contained in the snapshot
+     */
+    private long readSnapshot(Path snapshot, UserRegistry users)
+        throws IOException {
+        try(BufferedReader reader = Files.newBufferedReader(snapshot, UTF8)) {
+            String header = reader.readLine();
+            if(header == null || !header.startsWith("generation ")) {
+                throw new IOException("Snapshot corrupted.");
+            }
+            long first = Long.parseLong(header.substring(11).trim());
+            String line;
+            while((line = reader.readLine()) != null) {
+                int space = line.lastIndexOf(' ');
+                if(space < 0) {
+                    continue;
+                }
+                User user = users.get(line.substring(0, space));
+                if(user != null) {
+                    user.setCredits(Long.parseLong(line.substring(space + 1)));
+                }
+            }
+            return first;
+        } catch (NumberFormatException x) {
+            throw new IOException("Snapshot corrupted.");
+        }
+    }
+
+    /**
+     * Applies the changes of a log.
+     *
+     * @return the number of changes applied
+     */
+    private long replay(Path log, UserRegistry users) throws IOException {
+        long count = 0;
+        try(InputStream fin = Files.newInputStream(log);
+            DataInputStream in =
+                new DataInputStream(new BufferedInputStream(fin))) {
+            while(true) {
+                String name;
+                long delta;
+                try {
+                    name = in.readUTF();
+                    delta = in.readLong();
+                } catch (EOFException x) {
+                    // end of log or a change torn by a crash, which was
+                    // never acknowledged
+                    break;
+                }
+                User user = users.get(name);
+                if(user != null) {
+                    user.addCredits(delta);
+                }
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private List<Long> listLogs() throws IOException {
+        List<Long> generations = new ArrayList<Long>();
+        try(DirectoryStream<Path> stream =
+            Files.newDirectoryStream(dir, LOG_PREFIX + "*" + LOG_SUFFIX)) {
+            for(Path path : stream) {
+                String name = path.getFileName().toString();
+                try {
+                    generations.add(Long.parseLong
+                        (name.substring(LOG_PREFIX.length(),
+                                        name.length() - LOG_SUFFIX.length())));
+                } catch (NumberFormatException x) {
+                    logger.warn("Ignoring " + name + ".");
+                }
+            }
+        }
+        Collections.sort(generations);
+        return generations;
+    }
+
+    private Path logPath(long generation) {
+        return dir.resolve(LOG_PREFIX + generation + LOG_SUFFIX);
+    }
+
+    /**
+     * A change of a balance waiting to be written.
+     */
+    private static class Change {
+        final String username;
+        final long delta;
+        final CountDownLatch written = new CountDownLatch(1);
+
+        Change(String username, long delta) {
+            this.username = username;
+            this.delta = delta;
+        }
+    }
+}
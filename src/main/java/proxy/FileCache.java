@@ -0,0 +1,292 @@
+package proxy;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import message.response.MetadataResponse;
+
+/**
+ * Caches which files exist on the file servers and their metadata.
+ * <p/>
+ * The names of all known files are always kept together with the servers
+ * listing them (the locations), they back {@code !list} and tell the proxy
+ * where to look for a file. Size, version, hash and the servers holding a
+ * replica of that version are kept for at most {@code capacity} files, the
+ * least recently used entry is evicted first. A complete entry lets the
+ * proxy issue a download ticket without contacting a file server.
+ * <p/>
+ * The cache also hands out the versions of uploads, so concurrent uploads
+ * of a file get distinct versions.
+ */
+class FileCache {
+    // the servers listing a file in any version
+    private ConcurrentMap<String, Set<FileServer>> locations;
+
+    // guarded by itself
+    private LinkedHashMap<String, Entry> entries;
+
+    // the last version handed out per file
+    private ConcurrentMap<String, AtomicInteger> versions;
+
+    public FileCache(final int capacity) {
+        locations = new ConcurrentHashMap<String, Set<FileServer>>();
+        versions = new ConcurrentHashMap<String, AtomicInteger>();
+        entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            // Entry alone would be the inherited Map.Entry here
+            protected boolean removeEldestEntry
+                (Map.Entry<String, FileCache.Entry> e) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Returns the names of all known files.
+     */
+    public Set<String> getNames() {
+        return new TreeSet<String>(locations.keySet());
+    }
+
+    /**
+     * Returns the file servers that listed a file, empty if none did.
+     */
+    public Set<FileServer> getLocations(String filename) {
+        Set<FileServer> servers = locations.get(filename);
+        if(servers == null) {
+            return Collections.emptySet();
+        }
+        return Collections.unmodifiableSet(servers);
+    }
+
+    /**
+     * Returns the cached entry of a file or {@code null}.
+     */
+    public Entry get(String filename) {
+        synchronized(entries) {
+            return entries.get(filename);
+        }
+    }
+
+    /**
+     * Stores the metadata of a file, replacing the known replicas. An
+     * entry of a newer version is kept, e.g. if a later upload finished
+     * first.
+     *
+     * @return the cached entry
+     */
+    public Entry put(String filename, long size, int version, String hash,
+                     Collection<FileServer> replicas) {
+        Entry entry = new Entry(filename, size, version, hash, replicas);
+        for(FileServer fs : replicas) {
+            locate(filename, fs);
+        }
+        synchronized(entries) {
+            Entry cached = entries.get(filename);
+            if(cached != null && cached.version > version) {
+                return cached;
+            }
+            entries.put(filename, entry);
+        }
+        return entry;
+    }
+
+    /**
+     * Hands out the version of an upload of a file: one more than the
+     * newest known or handed out before.
+     *
+     * @param known the newest version of the file known to exist
+     */
+    public int nextVersion(String filename, int known) {
+        AtomicInteger last = versions.get(filename);
+        if(last == null) {
+            AtomicInteger created = new AtomicInteger();
+            last = versions.putIfAbsent(filename, created);
+            if(last == null) {
+                last = created;
+            }
+        }
+        while(true) {
+            int current = last.get();
+            int next = Math.max(current, known) + 1;
+            if(last.compareAndSet(current, next)) {
+                return next;
+            }
+        }
+    }
+
+    /**
+     * Adds the file names listed by a file server.
+     */
+    public void addListing(FileServer fs, Collection<String> filenames) {
+        for(String filename : filenames) {
+            locate(filename, fs);
+        }
+    }
+
+    /**
+     * Records that a file server holds the current version of a file.
+     */
+    public void addReplica(String filename, FileServer fs) {
+        locate(filename, fs);
+        Entry entry = get(filename);
+        if(entry != null) {
+            entry.replicas.add(fs);
+        }
+    }
+
+    /**
+     * Forgets the metadata of a file, e.g. because a file server reported
+     * something different than the cache.
+     */
+    public void invalidate(String filename) {
+        synchronized(entries) {
+            entries.remove(filename);
+        }
+    }
+
+    /**
+     * Replaces the files a file server lists with its complete listing.
+     * Replicas the server no longer has are dropped from the cached
+     * entries, names no server lists anymore are removed.
+     */
+    public void replaceListing(FileServer fs, Collection<String> filenames) {
+        Set<String> gone = listedBy(fs);
+        gone.removeAll(filenames);
+        addListing(fs, filenames);
+        removeListing(fs, gone);
+    }
+
+    /**
+     * Applies the changes of the catalog of a file server.
+     *
+     * @param present  the files added or changed, without hash
+     * @param removed  the files removed
+     * @param snapshot whether present lists all files of the server
+     */
+    public void applyChanges(FileServer fs, Collection<MetadataResponse> present,
+                             Collection<String> removed, boolean snapshot) {
+        Set<String> gone = snapshot ? listedBy(fs) : new HashSet<String>();
+        gone.addAll(removed);
+        for(MetadataResponse file : present) {
+            String filename = file.getFilename();
+            gone.remove(filename);
+            locate(filename, fs);
+            // the server may hold another version than cached by now
+            Entry entry = get(filename);
+            if(entry != null && (entry.version != file.getVersion() ||
+                                 entry.size != file.getSize())) {
+                entry.replicas.remove(fs);
+            }
+        }
+        removeListing(fs, gone);
+    }
+
+    /**
+     * Forgets the files of a file server, e.g. because it went offline.
+     */
+    public void removeServer(FileServer fs) {
+        removeListing(fs, listedBy(fs));
+    }
+
+    /**
+     * Removes a file server from the locations and replicas of files.
+     * Names no server lists anymore are removed.
+     */
+    private void removeListing(FileServer fs, Collection<String> filenames) {
+        for(String filename : filenames) {
+            Set<FileServer> servers = locations.get(filename);
+            if(servers != null) {
+                servers.remove(fs);
+                if(servers.isEmpty() && locations.remove(filename, servers)) {
+                    invalidate(filename);
+                    versions.remove(filename);
+                    continue;
+                }
+            }
+            Entry entry = get(filename);
+            if(entry != null) {
+                entry.replicas.remove(fs);
+            }
+        }
+    }
+
+    private Set<String> listedBy(FileServer fs) {
+        Set<String> filenames = new HashSet<String>();
+        for(Map.Entry<String, Set<FileServer>> location : 
+                locations.entrySet()) {
+            if(location.getValue().contains(fs)) {
+                filenames.add(location.getKey());
+            }
+        }
+        return filenames;
+    }
+
+    private void locate(String filename, FileServer fs) {
+        while(true) {
+            Set<FileServer> servers = locations.get(filename);
+            if(servers == null) {
+                servers = new CopyOnWriteArraySet<FileServer>();
+                Set<FileServer> known = 
+                    locations.putIfAbsent(filename, servers);
+                if(known != null) {
+                    servers = known;
+                }
+            }
+            servers.add(fs);
+            // the set is dropped once empty, it may have been meanwhile
+            if(locations.get(filename) == servers) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Metadata of a single file.
+     */
+    static class Entry {
+        private final String filename;
+        private final long size;
+        private final int version;
+        private final String hash;
+        private final Set<FileServer> replicas;
+
+        Entry(String filename, long size, int version, String hash,
+              Collection<FileServer> replicas) {
+            this.filename = filename;
+            this.size = size;
+            this.version = version;
+            this.hash = hash;
+            this.replicas = new CopyOnWriteArraySet<FileServer>(replicas);
+        }
+
+        public String getFilename() {
+            return filename;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public int getVersion() {
+            return version;
+        }
+
+        public String getHash() {
+            return hash;
+        }
+
+        public Set<FileServer> getReplicas() {
+            return replicas;
+        }
+    }
+}
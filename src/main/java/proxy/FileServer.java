@@ -1,30 +1,74 @@
 package proxy;
 
-import java.util.Date;
-import java.util.Calendar;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.log4j.Logger;
 import org.apache.log4j.BasicConfigurator;
 
 class FileServer {
+    // time constant in ms of the latency average
+    private static final double LATENCY_DECAY = 10000;
+
+    private static final AtomicInteger ids = new AtomicInteger();
+
     private Logger logger;
 
+    // tells servers with equal load apart
+    private final int id;
+
     private String host;
     private Integer port;
-    private long usage;
+    // bytes downloaded, added to by concurrent downloads
+    private final AtomicLong usage = new AtomicLong();
     private Integer tcpPort;
-    private boolean online;
-    private Date lastAlive;
+    private volatile boolean online;
+    // System.nanoTime of the last keep-alive
+    private volatile long lastSeen;
+
+    // load, changed through the FileServerIndex only: requests of the
+    // proxy in progress, tickets issued since the last load report and
+    // transfers in progress as last reported
+    private volatile int calls;
+    private volatile int tickets;
+    private volatile int transfers;
+    private volatile boolean reportsLoad = false;
+
+    // as last reported by the server
+    private volatile long freeSpace;
+    private volatile long bytesPerSecond;
+    private volatile long catalogEpoch;
+    private volatile long catalogVersion;
+
+    // catalog epoch and version the file cache reflects, -1 before the
+    // first sync
+    private volatile long syncedEpoch = 0;
+    private volatile long syncedVersion = -1;
+    private AtomicBoolean syncing = new AtomicBoolean(false);
+
+    // moving average of the request latency in ms, guarded by this
+    private double latency;
+    private long latencyUpdated;
+    private boolean hasLatency = false;
+
+    // replication statistics
+    private long replicas;
+    private long replicaFailures;
+    private long replicaLatency;
 
     public FileServer(String host, Integer port,  Integer tcpPort) {
         logger = Logger.getLogger(FileServer.class);
+        this.id = ids.incrementAndGet();
         this.host = host;
         this.port = port;
-        this.usage = 0;
         this.tcpPort = tcpPort;
         online = true;
-        Calendar cal = Calendar.getInstance();
-        this.lastAlive = cal.getTime();
+        lastSeen = System.nanoTime();
+    }
+
+    public int getId() {
+        return id;
     }
 
     public String getHost() {
@@ -36,7 +80,7 @@ class FileServer {
     }
 
     public long getUsage() {
-        return usage;
+        return usage.get();
     }
 
     public Integer getTcpPort() {
@@ -47,8 +91,8 @@ class FileServer {
         return online;
     }
 
-    public Date getLastAlive() {
-        return lastAlive;
+    public long getLastSeen() {
+        return lastSeen;
     }
 
     public void setOnline() {
@@ -59,16 +103,166 @@ class FileServer {
         this.online = false;
     }
 
-    public void setUsage(long usage) {
-        this.usage = usage;
+    public void addUsage(long bytes) {
+        usage.addAndGet(bytes);
+    }
+
+    public void setLastSeen(long lastSeen) {
+        this.lastSeen = lastSeen;
+    }
+
+    /**
+     * Returns the number of transfers in progress or about to start.
+     */
+    public int getOutstanding() {
+        return calls + tickets + transfers;
+    }
+
+    int getCalls() {
+        return calls;
+    }
+
+    int getTickets() {
+        return tickets;
+    }
+
+    int getTransfers() {
+        return transfers;
+    }
+
+    void setLoad(int calls, int tickets, int transfers) {
+        this.calls = calls;
+        this.tickets = tickets;
+        this.transfers = transfers;
+    }
+
+    /**
+     * Returns whether the server reports its load with its keep-alives.
+     */
+    public boolean reportsLoad() {
+        return reportsLoad;
+    }
+
+    void setReportsLoad() {
+        reportsLoad = true;
+    }
+
+    public long getFreeSpace() {
+        return freeSpace;
+    }
+
+    public long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    public long getCatalogVersion() {
+        return catalogVersion;
+    }
+
+    public long getSyncedEpoch() {
+        return syncedEpoch;
     }
 
-    public void setLastAlive(Date lastAlive) {
-        this.lastAlive = lastAlive;
+    public long getSyncedVersion() {
+        return syncedVersion;
+    }
+
+    /**
+     * Records the catalog version the file cache was brought to,
+     * {@code -1} to sync from scratch next time.
+     */
+    public void setSynced(long epoch, long version) {
+        this.syncedEpoch = epoch;
+        this.syncedVersion = version;
+    }
+
+    /**
+     * Returns whether the file cache lags behind the catalog the server
+     * last reported.
+     */
+    public boolean needsSync() {
+        return reportsLoad && (syncedEpoch != catalogEpoch ||
+                               syncedVersion != catalogVersion);
+    }
+
+    /**
+     * Claims the sync of the catalog.
+     *
+     * @return {@code false} if a sync is running already
+     */
+    public boolean startSync() {
+        return syncing.compareAndSet(false, true);
+    }
+
+    public void endSync() {
+        syncing.set(false);
+    }
+
+    /**
+     * Stores the capacity a server reported with its keep-alive.
+     */
+    public void setCapacity(long freeSpace, long bytesPerSecond, 
+                            long catalogEpoch, long catalogVersion) {
+        this.freeSpace = freeSpace;
+        this.bytesPerSecond = bytesPerSecond;
+        this.catalogEpoch = catalogEpoch;
+        this.catalogVersion = catalogVersion;
+    }
+
+    /**
+     * Adds the latency of a request to the moving average. Older samples
+     * lose weight with the time passed, not with the number of requests,
+     * so a server that was slow a while ago isn't avoided forever.
+     */
+    public synchronized void recordLatency(long nanos) {
+        long now = System.nanoTime();
+        double ms = nanos / 1000000.0;
+        if(!hasLatency) {
+            latency = ms;
+            hasLatency = true;
+        } else {
+            double weight = 
+                Math.exp(-(now - latencyUpdated) / 1000000.0 / LATENCY_DECAY);
+            latency = latency * weight + ms * (1 - weight);
+        }
+        latencyUpdated = now;
+    }
+
+    /**
+     * Returns the average request latency in ms, 0 before the first
+     * request.
+     */
+    public synchronized double getLatency() {
+        return latency;
     }
     
+    /**
+     * Records the outcome of replicating an upload to this server.
+     *
+     * @param latency time in ms the replica took
+     * @param success whether the server acknowledged the upload
+     */
+    public synchronized void recordReplica(long latency, boolean success) {
+        replicas++;
+        replicaLatency += latency;
+        if(!success) {
+            replicaFailures++;
+        }
+    }
+
+    /**
+     * Returns the average replication latency in ms.
+     */
+    public synchronized long getReplicaLatency() {
+        return replicas == 0 ? 0 : replicaLatency / replicas;
+    }
+
+    public synchronized long getReplicaFailures() {
+        return replicaFailures;
+    }
+
     public void print() {
         logger.debug("FileServer " + host + ":" + port);
-        logger.debug("  usage: " + usage);
+        logger.debug("  usage: " + usage.get());
     }
 }
\ No newline at end of file
@@ -0,0 +1,153 @@
+package proxy;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * Keeps the online file servers at hand for the {@link Balancer}s.
+ * <p/>
+ * The online servers are kept in an immutable list that is replaced on
+ * every change of the online state, so readers never copy or filter it.
+ * Besides they are kept ordered by the number of outstanding transfers.
+ * The order is updated as the load changes, which is why the load of a
+ * server must only be changed through this index.
+ * <p/>
+ * The outstanding transfers of a server are the requests of the proxy in
+ * progress, the transfers in progress the server last reported and the
+ * download tickets issued since. Tickets of a server that doesn't report
+ * its load count until their lease {@link #expire expires}.
+ */
+class FileServerIndex {
+    private static final Comparator<FileServer> BY_LOAD =
+        new Comparator<FileServer>() {
+            public int compare(FileServer a, FileServer b) {
+                if(a.getOutstanding() != b.getOutstanding()) {
+                    return a.getOutstanding() < b.getOutstanding() ? -1 : 1;
+                }
+                return Integer.compare(a.getId(), b.getId());
+            }
+        };
+
+    // replaced as a whole, never modified
+    private volatile List<FileServer> online = Collections.emptyList();
+
+    // guarded by this
+    private TreeSet<FileServer> byLoad = new TreeSet<FileServer>(BY_LOAD);
+
+    /**
+     * Adds a new file server, which is indexed if it is online.
+     */
+    public synchronized void add(FileServer fs) {
+        if(fs.isOnline()) {
+            index(fs);
+        }
+    }
+
+    /**
+     * Sets a file server online.
+     */
+    public synchronized void setOnline(FileServer fs) {
+        if(!fs.isOnline()) {
+            fs.setOnline();
+            index(fs);
+        }
+    }
+
+    /**
+     * Sets a file server offline.
+     */
+    public synchronized void setOffline(FileServer fs) {
+        if(fs.isOnline()) {
+            fs.setOffline();
+            byLoad.remove(fs);
+            List<FileServer> servers = new ArrayList<FileServer>(online);
+            servers.remove(fs);
+            online = Collections.unmodifiableList(servers);
+        }
+    }
+
+    /**
+     * Returns the online file servers.
+     */
+    public List<FileServer> getOnline() {
+        return online;
+    }
+
+    /**
+     * Returns the online file servers, least outstanding transfers first.
+     */
+    public synchronized List<FileServer> getByLoad() {
+        return new ArrayList<FileServer>(byLoad);
+    }
+
+    /**
+     * Returns the online file server with the least outstanding transfers,
+     * {@code null} if none is online.
+     */
+    public synchronized FileServer getLeastLoaded() {
+        return byLoad.isEmpty() ? null : byLoad.first();
+    }
+
+    /**
+     * Records that a request of the proxy to a file server started.
+     */
+    public synchronized void begin(FileServer fs) {
+        setLoad(fs, fs.getCalls() + 1, fs.getTickets(), fs.getTransfers());
+    }
+
+    /**
+     * Records that a request of the proxy to a file server ended.
+     */
+    public synchronized void end(FileServer fs) {
+        setLoad(fs, Math.max(0, fs.getCalls() - 1), fs.getTickets(),
+                fs.getTransfers());
+    }
+
+    /**
+     * Records that a download ticket for a file server was issued.
+     */
+    public synchronized void issue(FileServer fs) {
+        setLoad(fs, fs.getCalls(), fs.getTickets() + 1, fs.getTransfers());
+    }
+
+    /**
+     * Records that the lease of a ticket ended. Ignored for servers that
+     * report their load, whose tickets end with the next report.
+     */
+    public synchronized void expire(FileServer fs) {
+        if(!fs.reportsLoad()) {
+            setLoad(fs, fs.getCalls(), Math.max(0, fs.getTickets() - 1),
+                    fs.getTransfers());
+        }
+    }
+
+    /**
+     * Records the transfers in progress a file server reported. The
+     * tickets issued before have started by now or will soon, they are
+     * no longer counted.
+     */
+    public synchronized void report(FileServer fs, int transfers) {
+        fs.setReportsLoad();
+        setLoad(fs, fs.getCalls(), 0, Math.max(0, transfers));
+    }
+
+    private void setLoad(FileServer fs, int calls, int tickets, 
+                         int transfers) {
+        // reinsert, the position depends on the load
+        boolean indexed = byLoad.remove(fs);
+        fs.setLoad(calls, tickets, transfers);
+        if(indexed) {
+            byLoad.add(fs);
+        }
+    }
+
+    private void index(FileServer fs) {
+        byLoad.add(fs);
+        List<FileServer> servers = new ArrayList<FileServer>(online);
+        servers.add(fs);
+        online = Collections.unmodifiableList(servers);
+    }
+}
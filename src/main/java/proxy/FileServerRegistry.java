@@ -0,0 +1,170 @@
+package proxy;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import util.TimingWheel;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Keeps track of the file servers announcing themselves with keep-alive
+ * packets.
+ * <p/>
+ * Servers are found by host and TCP port in constant time, a keep-alive of
+ * an online server only stores the time it was seen. Every online server
+ * has a timeout in a {@link TimingWheel} instead of being checked
+ * periodically. When it fires, a server that wasn't seen for the timeout
+ * goes offline, one that was gets a new timeout counted from when it was
+ * last seen. So a server is looked at about once per timeout, however
+ * often it sends keep-alives.
+ * <p/>
+ * The wheel is driven by {@link #run}.
+ */
+class FileServerRegistry implements Runnable,
+                                    TimingWheel.Handler<FileServer> {
+    private Logger logger;
+
+    private FileServerIndex index;
+
+    private ConcurrentMap<Address, FileServer> servers;
+
+    // in order of registration
+    private List<FileServer> all;
+
+    // time in ns after which a silent server goes offline
+    private long timeout;
+
+    private TimingWheel<FileServer> wheel;
+
+    /**
+     * @param timeout time in ms after which a silent server goes offline
+     * @param tick    resolution of the timeouts in ms
+     */
+    public FileServerRegistry(FileServerIndex index, long timeout, long tick) {
+        logger = Logger.getLogger(FileServerRegistry.class);
+        this.index = index;
+        this.timeout = TimeUnit.MILLISECONDS.toNanos(timeout);
+        servers = new ConcurrentHashMap<Address, FileServer>();
+        all = new CopyOnWriteArrayList<FileServer>();
+        tick = Math.max(1, Math.min(tick, timeout));
+        wheel = new TimingWheel<FileServer>
+            (TimeUnit.MILLISECONDS.toNanos(tick), (int) (timeout / tick) + 2,
+             this);
+    }
+
+    /**
+     * Returns the file server listening on the given host and TCP port,
+     * {@code null} if there is none.
+     */
+    public FileServer get(String host, int tcpPort) {
+        return servers.get(new Address(host, tcpPort));
+    }
+
+    /**
+     * Returns all file servers, online or not.
+     */
+    public List<FileServer> getAll() {
+        return Collections.unmodifiableList(all);
+    }
+
+    /**
+     * Adds a file server that just sent its first keep-alive.
+     *
+     * @return {@code false} if a server with the same host and TCP port is
+     * known already
+     */
+    public boolean add(FileServer fs) {
+        Address address = new Address(fs.getHost(), fs.getTcpPort());
+        if(servers.putIfAbsent(address, fs) != null) {
+            return false;
+        }
+        all.add(fs);
+        fs.setLastSeen(System.nanoTime());
+        synchronized(this) {
+            index.add(fs);
+            wheel.schedule(fs, fs.getLastSeen() + timeout);
+        }
+        return true;
+    }
+
+    /**
+     * Records a keep-alive of a file server, setting it online.
+     */
+    public void alive(FileServer fs) {
+        long now = System.nanoTime();
+        fs.setLastSeen(now);
+        if(!fs.isOnline()) {
+            synchronized(this) {
+                if(!fs.isOnline()) {
+                    index.setOnline(fs);
+                    wheel.schedule(fs, now + timeout);
+                }
+            }
+        }
+    }
+
+    /**
+     * Called by the wheel when the timeout of a server fired.
+     */
+    public synchronized void expired(FileServer fs, long now) {
+        if(!fs.isOnline()) {
+            return;
+        }
+        long deadline = fs.getLastSeen() + timeout;
+        if(deadline - now <= 0) {
+            logger.info("File server " + fs.getHost() + ":" +
+                        fs.getTcpPort() + " timed out.");
+            index.setOffline(fs);
+        } else {
+            wheel.schedule(fs, deadline);
+        }
+    }
+
+    /**
+     * Advances the wheel every tick until interrupted.
+     */
+    public void run() {
+        long tick = wheel.getTick();
+        try {
+            while(!Thread.currentThread().isInterrupted()) {
+                wheel.advance(System.nanoTime());
+                TimeUnit.NANOSECONDS.sleep(tick);
+            }
+        } catch (InterruptedException x) {
+            logger.debug("Interrupted.");
+        }
+        logger.info("Stopped checking for file server timeouts.");
+    }
+
+    /**
+     * Host and TCP port of a file server.
+     */
+    private static class Address {
+        private final String host;
+        private final int tcpPort;
+
+        Address(String host, int tcpPort) {
+            this.host = host;
+            this.tcpPort = tcpPort;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(!(o instanceof Address)) {
+                return false;
+            }
+            Address other = (Address) o;
+            return tcpPort == other.tcpPort && host.equals(other.host);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * host.hashCode() + tcpPort;
+        }
+    }
+}
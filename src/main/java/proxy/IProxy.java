@@ -1,6 +1,7 @@
 package proxy;
 
 import message.Response;
+import message.request.BatchDownloadTicketRequest;
 import message.request.BuyRequest;
 import message.request.DownloadTicketRequest;
 import message.request.LoginRequest;
@@ -100,6 +101,23 @@ public interface IProxy {
 	 */
 	Response download(DownloadTicketRequest request) throws IOException;
 
+	/**
+	 * Issues download tickets for several files at once. The credits for
+	 * all files found are taken together, or the whole batch fails.
+	 * <p/>
+	 * <b>Request (client to proxy)</b>:<br/>
+	 * {@code !downloadall &lt;filename1&gt; &lt;filename2&gt; ...}<br/>
+	 * <b>Response (proxy to client):</b><br/>
+	 * {@code !downloadall &lt;ticket1&gt; &lt;ticket2&gt; ...}<br/>
+	 *
+	 * @param request the batch download ticket request
+	 * @return a {@link message.response.BatchDownloadTicketResponse BatchDownloadTicketResponse} containing the tickets<br/>
+	 * OR<br/>
+	 * a {@link MessageResponse} if an error occurred
+	 * @throws IOException if an I/O error occurs
+	 */
+	Response downloadAll(BatchDownloadTicketRequest request) throws IOException;
+
 	/**
 	 * Uploads the file with the given name.
 	 * <p/>
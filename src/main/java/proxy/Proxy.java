@@ -10,6 +10,7 @@ import model.UserInfo;
 
 import java.util.Date;
 import java.util.Calendar;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.Map;
 import java.util.HashMap;
@@ -19,8 +20,12 @@ import java.util.Scanner;
 import java.util.regex.Pattern;
 import java.util.regex.Matcher;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
 import java.util.MissingResourceException;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ExecutorService;
@@ -38,6 +43,7 @@ import java.io.InputStreamReader;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -46,6 +52,8 @@ import java.nio.file.LinkOption;
 import java.nio.charset.Charset;
 import java.nio.ByteBuffer;
 
+import java.security.MessageDigest;
+
 import java.net.*;
 
 import cli.Command;
@@ -54,6 +62,10 @@ import cli.Shell;
 import util.Config;
 import util.ChecksumUtils;
 import util.FileServerConnection;
+import util.FileServerConnectionPool;
+import util.Heartbeat;
+import util.TicketSigner;
+import util.ThreadPools;
 
 import model.FileServerInfo;
 
@@ -80,17 +92,20 @@ public class Proxy {
     // logger
     private static Logger logger;
 
-    // a list of all users
-    private ArrayList<User> users;
+    // all users by name and session id
+    private UserRegistry users;
+
+    // all fileservers by host and TCP port
+    private FileServerRegistry fileservers;
 
-    // a list of all fileservers
-    private ArrayList<FileServer> fileservers;
+    // the online file servers by load
+    private FileServerIndex index;
 
-    // file server usage
-    private Map<FileServer, Integer> fsUsage;
+    // chooses the file server of a download
+    private Balancer balancer;
 
-    // cached list of files on the the fileservers
-    private Set<String> fileCache;
+    // cached list of files on the the fileservers and their metadata
+    private FileCache fileCache;
 
     // the proxy shell
     private Shell shell;
@@ -102,11 +117,20 @@ public class Proxy {
     private KeepAliveListener keepAliveListener;
 
     // client connection listener 
-    private ClientConnectionListener CCL;
+    private ClientSelector CCL;
 
     // the thread pool
     private ExecutorService pool;
 
+    // the pool handling client requests
+    private ExecutorService workers;
+
+    // the pool replicating uploads to the file servers
+    private ExecutorService replicas;
+
+    // reusable connections to the file servers
+    private FileServerConnectionPool connectionPool;
+
     // object input stream
     private ObjectInputStream ois;
 
@@ -117,15 +141,74 @@ public class Proxy {
     // time interval after which a fileserver is set offline
     private Integer timeout;
 
-    // period in ms to check for timeouts
+    // resolution in ms of the file server timeouts
     private Integer checkPeriod;
 
+    // time in ms to wait for a file server to answer a request
+    private Integer readTimeout;
+
     // TCP port to listen for clients
     private Integer tcpPort;
 
     // UDP port to listen for keepAlive packages
     private Integer udpPort;
 
+    // number of file servers that have to acknowledge an upload
+    private Integer quorum;
+
+    // number of threads replicating uploads, one per file server and upload
+    private Integer replicaThreads;
+
+    // time in ms to wait for a slow replica of an upload before giving up
+    private Integer uploadTimeout;
+
+    // number of threads handling client requests in pool mode
+    private Integer workerThreads;
+
+    // "pool" to handle client requests on a fixed number of threads,
+    // "virtual" to handle each session on its own virtual thread
+    private String executionMode;
+
+    // maximum number of files whose metadata is cached
+    private Integer fileCacheSize;
+
+    // period in ms to refresh the file cache from the file servers
+    private Integer fileCacheRefreshPeriod;
+
+    // directory of the credit ledger, empty to keep credits in memory only
+    private String ledgerDir;
+
+    // period in ms to snapshot the credit ledger
+    private Integer ledgerSnapshotPeriod;
+
+    // journals credit changes, null if disabled
+    private CreditLedger ledger;
+
+    // binary snapshot of the user config, empty to parse the config always
+    private String userSnapshot;
+
+    // name of the load balancing strategy
+    private String balancerName;
+
+    // time in ms a download ticket counts as outstanding transfer
+    private Integer ticketLease;
+
+    // hex encoded key the tickets are signed with, shared with the file
+    // servers
+    private String ticketKey;
+
+    // time in ms a download ticket is valid
+    private Integer ticketLifetime;
+
+    // signs the download tickets
+    private TicketSigner signer;
+
+    // ends the leases of download tickets
+    private TicketLeases leases;
+
+    // runs the periodic tasks
+    private Timer timer;
+
     /**
      * main function
      */
@@ -167,6 +250,37 @@ public class Proxy {
             timeout = config.getInt(key);
             key = "fileserver.checkPeriod";
             checkPeriod = config.getInt(key);
+            key = "fileserver.readTimeout";
+            readTimeout = config.getInt(key, 30000);
+            key = "upload.quorum";
+            quorum = config.getInt(key, 1);
+            key = "upload.threads";
+            replicaThreads = config.getInt(key, 60);
+            key = "upload.timeout";
+            uploadTimeout = config.getInt(key, 10000);
+            key = "client.workers";
+            workerThreads = config.getInt(key, 30);
+            key = "execution.mode";
+            executionMode = config.getString(key, ThreadPools.POOL);
+            key = "filecache.size";
+            fileCacheSize = config.getInt(key, 10000);
+            key = "filecache.refreshPeriod";
+            fileCacheRefreshPeriod = config.getInt(key, 30000);
+            key = "ledger.dir";
+            ledgerDir = config.getString(key, "");
+            key = "ledger.snapshotPeriod";
+            ledgerSnapshotPeriod = config.getInt(key, 60000);
+            key = "user.snapshot";
+            userSnapshot = config.getString(key, "");
+            key = "balancer";
+            balancerName = config.getString(key, Balancers.LEAST_OUTSTANDING);
+            key = "balancer.ticketLease";
+            ticketLease = config.getInt(key, 10000);
+            key = "ticket.key";
+            // may be passed as a system property to keep it out of files
+            ticketKey = System.getProperty(key, config.getString(key, ""));
+            key = "ticket.lifetime";
+            ticketLifetime = config.getInt(key, 300000);
         }
         catch (MissingResourceException x) {
             if(key == name) {
@@ -177,12 +291,38 @@ public class Proxy {
             }
             System.exit(1);
         }
+        if(!ThreadPools.isMode(executionMode)) {
+            logger.fatal("Key execution.mode has to be " + ThreadPools.POOL +
+                         " or " + ThreadPools.VIRTUAL + ".");
+            System.exit(1);
+        }
+        if(!Balancers.isBalancer(balancerName)) {
+            logger.fatal("Key balancer has to be " + 
+                         Balancers.LEAST_OUTSTANDING + ", " + 
+                         Balancers.POWER_OF_TWO + " or " + Balancers.EWMA +
+                         ".");
+            System.exit(1);
+        }
+        if(ticketKey.isEmpty()) {
+            logger.fatal("Key ticket.key is not set. Generate one with " +
+                         "'openssl rand -hex 32' and set it for the proxy " +
+                         "and all file servers.");
+            System.exit(1);
+        }
+        try {
+            signer = new TicketSigner(TicketSigner.parseKey(ticketKey));
+        } catch (IllegalArgumentException x) {
+            logger.fatal("Key ticket.key has to be a hex encoded key.");
+            System.exit(1);
+        }
 
         // create lists
-        users = new ArrayList<User>();
-        fileservers = new ArrayList<FileServer>();
-        fsUsage = new HashMap<FileServer, Integer>();
-        fileCache = new HashSet<String>();
+        users = new UserRegistry();
+        index = new FileServerIndex();
+        fileservers = new FileServerRegistry(index, timeout, checkPeriod);
+        leases = new TicketLeases(index, ticketLease, checkPeriod);
+        balancer = Balancers.create(balancerName, index);
+        fileCache = new FileCache(fileCacheSize);
 
 
         logger.info(name + " configured, starting services.");
@@ -212,6 +352,37 @@ public class Proxy {
             timeout = config.getInt(key);
             key = "fileserver.checkPeriod";
             checkPeriod = config.getInt(key);
+            key = "fileserver.readTimeout";
+            readTimeout = config.getInt(key, 30000);
+            key = "upload.quorum";
+            quorum = config.getInt(key, 1);
+            key = "upload.threads";
+            replicaThreads = config.getInt(key, 60);
+            key = "upload.timeout";
+            uploadTimeout = config.getInt(key, 10000);
+            key = "client.workers";
+            workerThreads = config.getInt(key, 30);
+            key = "execution.mode";
+            executionMode = config.getString(key, ThreadPools.POOL);
+            key = "filecache.size";
+            fileCacheSize = config.getInt(key, 10000);
+            key = "filecache.refreshPeriod";
+            fileCacheRefreshPeriod = config.getInt(key, 30000);
+            key = "ledger.dir";
+            ledgerDir = config.getString(key, "");
+            key = "ledger.snapshotPeriod";
+            ledgerSnapshotPeriod = config.getInt(key, 60000);
+            key = "user.snapshot";
+            userSnapshot = config.getString(key, "");
+            key = "balancer";
+            balancerName = config.getString(key, Balancers.LEAST_OUTSTANDING);
+            key = "balancer.ticketLease";
+            ticketLease = config.getInt(key, 10000);
+            key = "ticket.key";
+            // may be passed as a system property to keep it out of files
+            ticketKey = System.getProperty(key, config.getString(key, ""));
+            key = "ticket.lifetime";
+            ticketLifetime = config.getInt(key, 300000);
         }
         catch (MissingResourceException x) {
             if(key == name) {
@@ -222,12 +393,38 @@ public class Proxy {
             }
             System.exit(1);
         }
+        if(!ThreadPools.isMode(executionMode)) {
+            logger.fatal("Key execution.mode has to be " + ThreadPools.POOL +
+                         " or " + ThreadPools.VIRTUAL + ".");
+            System.exit(1);
+        }
+        if(!Balancers.isBalancer(balancerName)) {
+            logger.fatal("Key balancer has to be " + 
+                         Balancers.LEAST_OUTSTANDING + ", " + 
+                         Balancers.POWER_OF_TWO + " or " + Balancers.EWMA +
+                         ".");
+            System.exit(1);
+        }
+        if(ticketKey.isEmpty()) {
+            logger.fatal("Key ticket.key is not set. Generate one with " +
+                         "'openssl rand -hex 32' and set it for the proxy " +
+                         "and all file servers.");
+            System.exit(1);
+        }
+        try {
+            signer = new TicketSigner(TicketSigner.parseKey(ticketKey));
+        } catch (IllegalArgumentException x) {
+            logger.fatal("Key ticket.key has to be a hex encoded key.");
+            System.exit(1);
+        }
 
         // create lists
-        users = new ArrayList<User>();
-        fileservers = new ArrayList<FileServer>();
-        fsUsage = new HashMap<FileServer, Integer>();
-        fileCache = new HashSet<String>();
+        users = new UserRegistry();
+        index = new FileServerIndex();
+        fileservers = new FileServerRegistry(index, timeout, checkPeriod);
+        leases = new TicketLeases(index, ticketLease, checkPeriod);
+        balancer = Balancers.create(balancerName, index);
+        fileCache = new FileCache(fileCacheSize);
 
         this.shell = shell;
 
@@ -245,21 +442,50 @@ public class Proxy {
         // create thread pool
         pool = Executors.newFixedThreadPool(30);
 
+        // create file server connection pool
+        connectionPool = new FileServerConnectionPool(readTimeout);
+
+        // replicas wait on slow file servers, not on the lifecycle threads
+        replicas = Executors.newFixedThreadPool(replicaThreads);
+
         // give birth to alive thread listener and start it
         keepAliveListener = new KeepAliveListener();
         logger.info("Starting to listen for keep alive messages.");
         pool.submit(keepAliveListener);
 
-        // create client connection listener
-        CCL = new ClientConnectionListener();
+        // expire file servers that stopped sending keep-alives
+        logger.info("Starting to check for fileserver timeouts.");
+        pool.submit(fileservers);
+
+        // end the leases of download tickets
+        pool.submit(leases);
+
+        timer = new Timer(true); // start as daemon
+
+        // create client connection listener, requests are handled by workers
+        workers = ThreadPools.create(executionMode, workerThreads);
+        logger.info("Handling client requests in " + executionMode + 
+                    " mode.");
+        CCL = new ClientSelector(tcpPort, workers, 
+                                 new ClientSelector.HandlerFactory() {
+            public ClientSelector.Handler create(ClientSelector.Session session) {
+                return new ClientConnection(session);
+            }
+        });
         logger.info("Starting to listen for client connections.");
         pool.submit(CCL);
 
-        // create fileserver timout checker
-        FileServerTimeoutChecker fstoc = new FileServerTimeoutChecker();
-        logger.info("Starting to check for fileserver timeouts.");
-        Timer timer = new Timer(true); // start as daemon
-        timer.schedule(fstoc, 0, checkPeriod);
+        // refresh the file cache to learn about files added outside the proxy
+        timer.schedule(new FileCacheRefresher(), fileCacheRefreshPeriod,
+                       fileCacheRefreshPeriod);
+
+        // write credit changes to disk and snapshot them now and then
+        if(ledger != null) {
+            logger.info("Journaling credits to " + ledgerDir + ".");
+            pool.submit(ledger);
+            timer.schedule(new LedgerCompactor(), ledgerSnapshotPeriod,
+                           ledgerSnapshotPeriod);
+        }
 
         // give birth to shell thread and start it
         cli = new ProxyCli();
@@ -291,105 +517,86 @@ public class Proxy {
     }
 
     /**
-     * Read user information from the config file.
+     * Read user information from the config file, or from the user
+     * snapshot if there is a current one.
      */
     private int readUserConfig() {
-        HashSet<String> usernames = new HashSet<String>();
-
-        // setup
-        String filename = new String("user.properties");
-        Path file = Paths.get("build/" + filename); 
-        Charset charset = Charset.forName("UTF-8");
-
-        // process file, read properties
-        try(BufferedReader reader = Files.newBufferedReader(file,charset)){
-                // create pattern to match property lines
-                Pattern p = Pattern.compile("^[a-z0-9]*[.].*");
-
-                // read file
-                logger.info("Reading user config.");
-                while(reader.ready()) {
-                    String line = reader.readLine();
-                    Matcher m = p.matcher(line);
-                    
-                    // extract properties and values
-                    if(m.matches())
-                    {
-                        Scanner scanner = new Scanner(line);
-                        String username = scanner.findInLine("^[a-zA-Z0-9]*");
-                        usernames.add(username);
-                    }
-
-                }
-            }
-        catch (IOException x) {
-            logger.info("IOException: %s%n", x);
-        }
+        Path file = Paths.get("build/user.properties");
+        Path snapshot = userSnapshot.isEmpty() ? null : Paths.get(userSnapshot);
 
-        // create user db
-        Iterator<String> it = usernames.iterator();
-        Config config = new Config("user");
-        try{
-            while(it.hasNext()) {
-                String username = it.next();
-                logger.info("Adding user " + username);
-                users.add(new User(username,
-                                   config.getString(username + ".password"),
-                                   config.getInt(username + ".credits")));
-                // debug
-                users.get(users.size() - 1).print();
-            }
+        logger.info("Reading user config.");
+        long start = System.nanoTime();
+        UserLoader loader = new UserLoader(users);
+        try {
+            int count = loader.load(file, snapshot);
+            logger.info("Loaded " + count + " users in " + 
+                        (System.nanoTime() - start) / 1000000 + " ms.");
+        } catch (IOException x) {
+            logger.error("Couldn't read user config: " + x.getMessage());
+            return 1;
         }
-        catch (Exception x) {
+        if(loader.getIncomplete() > 0) {
             logger.error("Your user config " +
                                "is corrupted. Make sure you have " +
                                "supplied all necessary variables.");
             return 1;
         }
+
+        // restore the credits changed since the config was written
+        if(!ledgerDir.isEmpty()) {
+            ledger = new CreditLedger(Paths.get(ledgerDir));
+            try {
+                ledger.recover(users);
+            } catch (IOException x) {
+                logger.fatal("Couldn't recover credit ledger: " + 
+                             x.getMessage());
+                System.exit(1);
+            }
+        }
         return 0;
     }
 
+    private List<FileServer> getOnlineFileservers() {
+        return index.getOnline();
+    }
+
     private FileServer getCurrentFileserver() {
-        // get first online fs
-        FileServer lowest = null;
-        for(FileServer fs : fileservers) {
-            if(fs.isOnline()) { 
-                lowest = fs; 
-                break;
-            }
-        }
-        
-        if(lowest == null) {
-            // no fileservers online
-            return null;
-        }
+        return balancer.select(null);
+    }
 
-        // search for lowest usage fs
-        for(FileServer fs : fileservers) {
-            if(!fs.isOnline()) {continue;};
-            if(lowest.getUsage() > fs.getUsage()) {
-                lowest = fs;
-            }
-        }
-            
-        return lowest;
+    /**
+     * Returns the online file servers, least loaded first.
+     */
+    private List<FileServer> getFileserversByLoad() {
+        return index.getByLoad();
     }
-            
-    private class FileServerTimeoutChecker extends TimerTask {
-        public void run() {
-            Calendar cal = Calendar.getInstance();
-            Date dateNow = cal.getTime();
-            long now = dateNow.getTime();
-
-            for(FileServer fs : fileservers) {
-                long lastAlive = fs.getLastAlive().getTime();
-                if(lastAlive + timeout < now) {
-                    fs.setOffline();
-                }
+
+    private FileServer getCurrentFileserver(Collection<FileServer> candidates) {
+        return balancer.select(candidates);
+    }
+
+    /**
+     * Sends a request to a file server, counting it as a transfer of the
+     * server and its latency into the server's average.
+     *
+     * @return the response, {@code null} if the server couldn't be reached
+     */
+    private Response callFileserver(FileServer fs, Request request) {
+        FileServerConnection fscon = new FileServerConnection
+            (connectionPool, fs.getHost(), fs.getTcpPort(), request);
+        index.begin(fs);
+        long start = System.nanoTime();
+        try {
+            Response response = fscon.call();
+            if(response != null) {
+                fs.recordLatency(System.nanoTime() - start);
             }
+            return response;
+        } finally {
+            index.end(fs);
         }
     }
-
+            
     private class KeepAliveListener implements Runnable {
         /** 
          * Member variables
@@ -413,23 +620,23 @@ public class Proxy {
                 aliveSocket = new DatagramSocket(udpPort);
                 byte[] buf = new byte[256];
                 DatagramPacket packet = new DatagramPacket(buf, buf.length);
-                ByteBuffer wrapper;
+                // reused for every packet
+                Heartbeat heartbeat = new Heartbeat();
 
                 logger.info("Starting to listen for packets.");
                 try{
                     while(true) {
-                        try {
-                            aliveSocket.receive(packet);
-                            String data = new String(packet.getData()).trim();
-                            Integer tcpPort = Integer.valueOf(data);
-                            Integer port = packet.getPort();
-                            String host = packet.getAddress().getHostAddress();
-                            /*logger.info("Packet from " + host + ":" + port + 
-                              " data: " + tcpPort);*/
-                            updateFileServer(host, port, tcpPort);
-                        } catch (NumberFormatException x) {
+                        // receive shrinks the length to the packet it got
+                        packet.setLength(buf.length);
+                        aliveSocket.receive(packet);
+                        if(!heartbeat.decode(packet.getData(), 
+                                             packet.getOffset(),
+                                             packet.getLength())) {
                             logger.info("Couldn't parse data.");
+                            continue;
                         }
+                        String host = packet.getAddress().getHostAddress();
+                        updateFileServer(host, packet.getPort(), heartbeat);
                     } 
                 } catch (IOException x) {
                     logger.info("Interrupted. closing...");
@@ -449,215 +656,192 @@ public class Proxy {
             return aliveSocket;
         }
 
-        private void updateFileServer(String host, Integer port, 
-                                      Integer tcpPort) {
+        private void updateFileServer(String host, int port, 
+                                      Heartbeat heartbeat) {
+            int tcpPort = heartbeat.getTcpPort();
             // if fs already present, set online and update timestamp
-            for(FileServer f : fileservers) {
-                if(f.getHost().equals(host) &&
-                   f.getTcpPort().equals(tcpPort)) {
-                    Calendar cal = Calendar.getInstance();
-                    f.setLastAlive(cal.getTime());
-                    f.setOnline();
+            FileServer fs = fileservers.get(host, tcpPort);
+            if(fs != null) {
+                fileservers.alive(fs);
+            } else {
+                // else add the fs
+                logger.debug("Adding new file server: " + host + ":" + port +
+                             ":" + tcpPort + ".");
+                fs = new FileServer(host, port, tcpPort);
+                if(!fileservers.add(fs)) {
                     return;
                 }
-            }
-
-            // else add the fs
-            logger.debug("Adding new file server: " + host + ":" + port + ":" +
-                         tcpPort + ".");
-            FileServer fs = new FileServer(host, port, tcpPort);
-            fileservers.add(fs);
-            fsUsage.put(fs,0);
-            pool.submit(new UpdateFileCache(fs));
-            return;
-        }
-    }
-
-    private class ClientConnectionListener implements Runnable {
-        Logger logger;
-        ServerSocket serverSocket;
-
-        public ClientConnectionListener() {
-            logger = Logger.getLogger(ClientConnectionListener.class);
-        }
-
-        /**
-         * run method
-         */
-        public void run() {
-            // start listening for connections
-            logger.info("Creating server socket.");
-            try {
-                serverSocket = new ServerSocket(tcpPort);
-            } 
-            catch (IOException x) {
-                logger.warn("Could not listen on port: " + tcpPort);
-                return;
-            }
-
-            // accept connection
-            try {
-                logger.debug("Listening on port " + tcpPort + ".");
-                for(int i = 1;; i = i+1) {
-                    Socket clientSocket = serverSocket.accept();
-                    logger.debug("Creating " + i + ". connection.");
-                    ClientConnection con = new ClientConnection(clientSocket);
-                    pool.submit(con);
+                if(!heartbeat.hasLoad()) {
+                    // an older server, its catalog isn't synced by delta
+                    pool.submit(new UpdateFileCache(fs));
                 }
-            } catch (IOException x) {
-                logger.info("Interrupted. Stopping...");
             }
 
-            // cleanup
-            try {
-                serverSocket.close();
-            } catch (IOException x) {
-                logger.info("Caught IOException on closing socket");
+            if(heartbeat.hasLoad()) {
+                index.report(fs, heartbeat.getTransfers());
+                fs.setCapacity(heartbeat.getFreeSpace(), 
+                               heartbeat.getBytesPerSecond(),
+                               heartbeat.getCatalogEpoch(),
+                               heartbeat.getCatalogVersion());
+                // at most one sync in flight per server
+                if(fs.needsSync() && fs.startSync()) {
+                    pool.submit(new CatalogSync(fs));
+                }
             }
-            logger.info("Shutting down.");
-        }
-
-        public ServerSocket getServerSocket() {
-            return serverSocket;
         }
     }
 
+    private class ClientConnection implements ClientSelector.Handler, IProxy {
+        // time in ms to wait for the next chunk of an upload
+        private static final long CHUNK_TIMEOUT = 60000;
 
-    private class ClientConnection implements Runnable, IProxy {
         /** 
          * member variables
          */
-        private Socket clientSocket;
+        private ClientSelector.Session session;
         private Logger logger;
-        private User user;
+        // only changed by exclusive requests, read by concurrent ones
+        private volatile User user;
 
         /** 
          * Constructor
          */
-        public ClientConnection(Socket clientSocket) {
-            this.clientSocket = clientSocket;
+        public ClientConnection(ClientSelector.Session session) {
+            this.session = session;
             logger = Logger.getLogger(ClientConnection.class);
         }
 
         /**
-         * run method
+         * login and logout change the user of the session
          */
-        public void run() {
-            logger.debug(clientSocket.toString());
-            try {
-                // create streams
-                ObjectInputStream ois = 
-                    new ObjectInputStream(clientSocket.getInputStream());
-                ObjectOutputStream oos = 
-                    new ObjectOutputStream(clientSocket.getOutputStream());
-
-                
-                Response response = null;
-
-                // listen for requests
-                while(!Thread.interrupted()) {
-                    // recieve request
-                    Object o = ois.readObject();
-                    
-                    // LOGIN
-                    if(o instanceof LoginRequest) {
-                        logger.debug("Got login request.");
-                        LoginRequest request = (LoginRequest) o;
-                        response = login(request);
-                    }
-                    // CREDITS
-                    else if (o instanceof CreditsRequest) {
-                        logger.debug("Got credits request.");
-                        CreditsRequest request = (CreditsRequest) o;
-                        // verify request
-                        response = verify(request.getSid());
-                        if(response == null) {
-                            response = credits();                        
-                        } 
-                    }
-                    // BUY
-                    else if (o instanceof BuyRequest) {
-                        logger.debug("Got buy request.");
-                        BuyRequest request = (BuyRequest) o;
-                        // verify request
-                        response = verify(request.getSid());
-                        if(response == null) {
-                            response = buy(request);
-                        }
-                    }
-                    // LIST
-                    else if (o instanceof ListRequest) {
-                        logger.debug("Got list request.");
-                        ListRequest request = (ListRequest) o;
-                        // verify reqeust
-                        response = verify(request.getSid()); 
-                        if(response == null) {
-                            response = list();
-                        }
-                    }
-                    // DOWNLOAD
-                    else if (o instanceof DownloadTicketRequest) {
-                        logger.debug("Got download request.");
-                        DownloadTicketRequest request = 
-                            (DownloadTicketRequest) o;
-                        // verify reqeust
-                        response = verify(request.getSid()); 
-                        if(response == null) {
-                            response = download(request);
-                        }
-                    }
-                    // UPLOAD
-                    else if (o instanceof UploadRequest) {
-                        logger.debug("Got upload request.");
-                        UploadRequest request = (UploadRequest) o;
-                        // verify reqeust
-                        response = verify(request.getSid()); 
-                        if(response == null) {
-                            response = upload(request);
-                        }
-                    }
-                    // LOGOUT
-                    else if (o instanceof LogoutRequest) {
-                        logger.debug("Got logout request.");
-                        LogoutRequest request = (LogoutRequest) o;
-                        // verify request
-                        response = verify(request.getSid());
-                        if(response == null) {
-                            response = logout();
-                        } 
-                    }
-                    // TESTING REQUEST; cow says muh!!
-                    else if (o instanceof String) {
-                        if(user == null || user.getSid() == null) {
-                            response = new MessageResponse("Ur not logged in.");
-                        } else {
-                            response = new MessageResponse("Ur in.");
-                        }
-                    }
-                    
-                    // send response back
-                    if(response != null) {
-                        oos.writeObject(response);
-                    } else {
-                        String msg = "Dwarfes attacked us, we were defenseless!";
-                        oos.writeObject(new MessageResponse(msg));
-                    }
+        public boolean isExclusive(Object request) {
+            return request instanceof LoginRequest || 
+                request instanceof LogoutRequest;
+        }
+
+        /**
+         * handles a single request
+         */
+        public Response handle(Object o, ClientSelector.Chunks chunks) 
+            throws Exception {
+            Response response = null;
+
+            // LOGIN
+            if(o instanceof LoginRequest) {
+                logger.debug("Got login request.");
+                LoginRequest request = (LoginRequest) o;
+                response = login(request);
+            }
+            // CREDITS
+            else if (o instanceof CreditsRequest) {
+                logger.debug("Got credits request.");
+                CreditsRequest request = (CreditsRequest) o;
+                // verify request
+                response = verify(request.getSid());
+                if(response == null) {
+                    response = credits();                        
+                } 
+            }
+            // BUY
+            else if (o instanceof BuyRequest) {
+                logger.debug("Got buy request.");
+                BuyRequest request = (BuyRequest) o;
+                // verify request
+                response = verify(request.getSid());
+                if(response == null) {
+                    response = buy(request);
                 }
-            } catch (IOException x) {
-                logger.info("Caught IOException.");
-            } catch (Exception x) {
-                logger.info("Caught Exception: "); 
-                x.printStackTrace();
-            } finally {
-                
-                try {
-                    logger.debug("Closing socket.");
-                    clientSocket.close();
-                } catch (IOException x) {
-                    logger.info("Caught IOException.");
+            }
+            // LIST
+            else if (o instanceof ListRequest) {
+                logger.debug("Got list request.");
+                ListRequest request = (ListRequest) o;
+                // verify reqeust
+                response = verify(request.getSid()); 
+                if(response == null) {
+                    response = list();
+                }
+            }
+            // DOWNLOAD
+            else if (o instanceof DownloadTicketRequest) {
+                logger.debug("Got download request.");
+                DownloadTicketRequest request = 
+                    (DownloadTicketRequest) o;
+                // verify reqeust
+                response = verify(request.getSid()); 
+                if(response == null) {
+                    response = download(request);
+                }
+            }
+            // DOWNLOAD ALL
+            else if (o instanceof BatchDownloadTicketRequest) {
+                logger.debug("Got batch download request.");
+                BatchDownloadTicketRequest request = 
+                    (BatchDownloadTicketRequest) o;
+                // verify reqeust
+                response = verify(request.getSid()); 
+                if(response == null) {
+                    response = downloadAll(request);
+                }
+            }
+            // UPLOAD
+            else if (o instanceof UploadRequest) {
+                logger.debug("Got upload request.");
+                UploadRequest request = (UploadRequest) o;
+                // verify reqeust
+                response = verify(request.getSid()); 
+                if(response == null) {
+                    response = upload(request);
                 }
             }
-            // clean seassion
+            // HASH UPLOAD
+            else if (o instanceof HashUploadRequest) {
+                logger.debug("Got hash upload request.");
+                HashUploadRequest request = (HashUploadRequest) o;
+                // verify reqeust
+                response = verify(request.getSid()); 
+                if(response == null) {
+                    response = upload(request);
+                }
+            }
+            // STREAM UPLOAD
+            else if (o instanceof StreamUploadRequest) {
+                logger.debug("Got stream upload request.");
+                StreamUploadRequest request = (StreamUploadRequest) o;
+                // verify reqeust
+                response = verify(request.getSid()); 
+                if(response == null) {
+                    response = upload(request, chunks);
+                } else {
+                    // keep the stream in sync
+                    skipChunks(chunks);
+                }
+            }
+            // LOGOUT
+            else if (o instanceof LogoutRequest) {
+                logger.debug("Got logout request.");
+                LogoutRequest request = (LogoutRequest) o;
+                // verify request
+                response = verify(request.getSid());
+                if(response == null) {
+                    response = logout();
+                } 
+            }
+            // TESTING REQUEST; cow says muh!!
+            else if (o instanceof String) {
+                if(user == null || user.getSid() == null) {
+                    response = new MessageResponse("Ur not logged in.");
+                } else {
+                    response = new MessageResponse("Ur in.");
+                }
+            }
+            return response;
+        }
+
+        /**
+         * cleans the session once the client is gone
+         */
+        public void closed() {
             try {
                 logout();
             } catch (IOException x) {
@@ -665,19 +849,10 @@ public class Proxy {
             }
         }
 
-        private User getUserBySid(UUID sid) {
-            for(User u : users) {
-                if(u.getSid() == sid) {
-                    return u;
-                }
-            }
-            return null;
-        }
-
         private MessageResponse verify(UUID sid) {
             if(user == null) {
                 return new MessageResponse("You are not logged in.");
-            } else if (!user.getSid().equals(sid)) {
+            } else if (users.getBySid(sid) != user) {
                 return new MessageResponse("Did you tamper with the IDs? " +
                                            "Go play somewhere else.");
             } else {
@@ -706,26 +881,16 @@ public class Proxy {
             else {
                 logger.debug("Got login request: " + request.getUsername()
                              + ":" + request.getPassword());
-                for(User u : users) {
-                    // search matching user
-                    if(u.getName().equals(request.getUsername()) &&
-                       u.getPassword().equals(request.getPassword())) {
-                        if(u.login()) {
-                            // successfull
-                            // create new session id
-                            UUID sid = UUID.randomUUID();
-                            u.setSid(sid);
-
-                            // set user for this connection
-                            user = u;
-
-                            // craft response
-                            response = new LoginResponse(
-                                LoginResponse.Type.SUCCESS, sid); 
-                        } 
-                    }
-                }
-                if(response == null) {
+                User u = users.login(request.getUsername(),
+                                     request.getPassword());
+                if(u != null) {
+                    // set user for this connection
+                    user = u;
+
+                    // craft response
+                    response = new LoginResponse(
+                        LoginResponse.Type.SUCCESS, u.getSid()); 
+                } else {
                     // no user found or wrong creds
                     response = new LoginResponse(
                         LoginResponse.Type.WRONG_CREDENTIALS);
@@ -741,106 +906,410 @@ public class Proxy {
 
         @Override
         public Response buy(BuyRequest request) throws IOException {
-            long newCredits = user.getCredits() + request.getCredits();
-            user.setCredits(newCredits);
-            return new BuyResponse(newCredits);
+            return new BuyResponse(user.addCredits(request.getCredits()));
         }
 
         @Override
         public Response list() throws IOException {
-            return new ListResponse(fileCache);
+            return new ListResponse(fileCache.getNames());
         }
 
         @Override
         public Response download(DownloadTicketRequest request) throws IOException {
-            String filename;
-            long filesize;
-            int version;
-
-            // get file size
-            Request inforequest = new InfoRequest(request.getFilename());
-            FileServer fs = getCurrentFileserver();
+            FileCache.Entry entry = resolve
+                (Collections.singleton(request.getFilename()))
+                .get(request.getFilename());
+            FileServer fs = null;
+            if(entry != null) {
+                fs = getCurrentFileserver(entry.getReplicas());
+            }
             if(fs == null) {
-                return new MessageResponse("No file server available.");
+                if(getOnlineFileservers().isEmpty()) {
+                    return new MessageResponse("No file server available.");
+                }
+                return new MessageResponse("File not found.");
+            }
+            String filename = entry.getFilename();
+            long filesize = entry.getSize();
+            int version = entry.getVersion();
+
+            // hold the credits while the ticket is crafted
+            CreditAccount.Reservation reservation = 
+                user == null ? null : user.reserve(filesize);
+            if(reservation == null) {
+                return new MessageResponse("Not enough credits.");
             }
+            try {
+                Response response = new DownloadTicketResponse
+                    (createTicket(filename, filesize, version, fs));
+                reservation.commit();
+                return response;
+            } finally {
+                // does nothing once committed
+                reservation.refund();
+            }
+        }
 
-            FileServerConnection fscon = new 
-                FileServerConnection(fs.getHost(), fs.getTcpPort(), inforequest);
-            Object o = fscon.call();
-            if(o instanceof InfoResponse) {
-                InfoResponse response = (InfoResponse) o;
-                filesize = response.getSize();
-                filename = response.getFilename();
-                logger.debug("File " + filename + " has size " + filesize);
-            } 
-            else if (o instanceof MessageResponse) {
-                return (Response) o;
-            } else {
-                logger.error("Response corrupted.");
-                return null;
+        @Override
+        public Response downloadAll(BatchDownloadTicketRequest request)
+            throws IOException {
+            Set<String> filenames = 
+                new LinkedHashSet<String>(request.getFilenames());
+            Map<String, FileCache.Entry> entries = resolve(filenames);
+
+            // take the credits for the whole batch or nothing
+            long total = 0;
+            for(FileCache.Entry entry : entries.values()) {
+                total += entry.getSize();
+            }
+            CreditAccount.Reservation reservation = 
+                user == null ? null : user.reserve(total);
+            if(reservation == null) {
+                return new MessageResponse("Not enough credits.");
             }
-  
-            // get file version
-            Request versionrequest = new VersionRequest(request.getFilename());
-            fscon = new FileServerConnection(fs.getHost(), fs.getTcpPort(), 
-                                             versionrequest);
-            o = fscon.call();
-            if(o instanceof VersionResponse) {
-                VersionResponse response = (VersionResponse) o;
-                version = response.getVersion();
-                if (!filename.equals(response.getFilename())) {
-                    logger.error("Version request on different filename.");
-                    return null;
+
+            // issue the tickets, the load grows with every ticket so the
+            // batch is spread over the replicas
+            List<DownloadTicket> tickets = new ArrayList<DownloadTicket>();
+            List<String> missing = new ArrayList<String>();
+            try {
+                for(String filename : filenames) {
+                    FileCache.Entry entry = entries.get(filename);
+                    FileServer fs = null;
+                    if(entry != null) {
+                        fs = getCurrentFileserver(entry.getReplicas());
+                        if(fs == null) {
+                            // the replicas went offline meanwhile
+                            reservation.release(entry.getSize());
+                        }
+                    }
+                    if(fs == null) {
+                        missing.add(filename);
+                        continue;
+                    }
+                    tickets.add(createTicket(filename, entry.getSize(), 
+                                             entry.getVersion(), fs));
                 }
-                logger.debug("File " + filename + " is version " + version);
-            } 
-            else if (o instanceof MessageResponse) {
-                return (MessageResponse) o;
-            } else {
-                logger.error("Response corrupted.");
-                return null;
+                reservation.commit();
+            } finally {
+                // does nothing once committed
+                reservation.refund();
             }
+            return new BatchDownloadTicketResponse(tickets, missing);
+        }
 
+        /**
+         * Looks up the metadata of files, from the cache if an online
+         * replica of the cached version is known, from the file servers
+         * otherwise.
+         * <p/>
+         * A file is only asked for at the servers listing it. Every round
+         * the balancer picks one of them per file and each picked server
+         * gets a single request for all its files. A server that lacks a
+         * file, only has an older version than known or doesn't answer is
+         * left out of the next round, until the file is found or no server
+         * listing it is left. Files no server listed (yet) are asked for
+         * at one online server.
+         *
+         * @return the entries of the files found
+         */
+        private Map<String, FileCache.Entry> resolve
+            (Collection<String> filenames) throws IOException {
+            Map<String, FileCache.Entry> entries = 
+                new HashMap<String, FileCache.Entry>();
+            // the servers asked per unresolved file
+            Map<String, Set<FileServer>> unresolved = 
+                new LinkedHashMap<String, Set<FileServer>>();
+            for(String filename : filenames) {
+                FileCache.Entry entry = fileCache.get(filename);
+                if(entry != null &&
+                   getCurrentFileserver(entry.getReplicas()) != null) {
+                    entries.put(filename, entry);
+                } else {
+                    unresolved.put(filename, new HashSet<FileServer>());
+                }
+            }
 
-            // check if user has enough credits
-            if(user != null && user.getCredits() >= filesize) {
-                // decrease user credits
-                user.setCredits(user.getCredits() - filesize);
-                // increase fs usage
-                fs.setUsage(fs.getUsage() + filesize);
-
-                // craft download ticket
-                String checksum = 
-                    ChecksumUtils.generateChecksum(user.getName(), filename,
-                                                   version, filesize);
-                InetAddress host = InetAddress.getByName(fs.getHost());
-                DownloadTicket ticket = 
-                    new DownloadTicket(user.getName(), filename, checksum,
-                                       host,fs.getTcpPort());
-                
-                // send desired response
-                return new DownloadTicketResponse(ticket);
-                
-            } else {
-                return new MessageResponse("Not enough credits.");
+            while(!unresolved.isEmpty()) {
+                // choose a server for every file, then group by server
+                Map<FileServer, List<String>> batches = 
+                    new HashMap<FileServer, List<String>>();
+                Iterator<Map.Entry<String, Set<FileServer>>> it = 
+                    unresolved.entrySet().iterator();
+                while(it.hasNext()) {
+                    Map.Entry<String, Set<FileServer>> file = it.next();
+                    Set<FileServer> asked = file.getValue();
+                    Set<FileServer> candidates = new HashSet<FileServer>
+                        (fileCache.getLocations(file.getKey()));
+                    if(candidates.isEmpty() && asked.isEmpty()) {
+                        candidates.addAll(getOnlineFileservers());
+                    }
+                    candidates.removeAll(asked);
+                    FileServer fs = getCurrentFileserver(candidates);
+                    if(fs == null) {
+                        // no server left to ask
+                        it.remove();
+                        continue;
+                    }
+                    asked.add(fs);
+                    List<String> batch = batches.get(fs);
+                    if(batch == null) {
+                        batch = new ArrayList<String>();
+                        batches.put(fs, batch);
+                    }
+                    batch.add(file.getKey());
+                }
+
+                for(Map.Entry<FileServer, List<String>> batch : 
+                        batches.entrySet()) {
+                    FileServer fs = batch.getKey();
+                    Object o = callFileserver
+                        (fs, new BatchMetadataRequest(batch.getValue()));
+                    if(!(o instanceof BatchMetadataResponse)) {
+                        logger.info("Couldn't get metadata from " + 
+                                    fs.getHost() + ":" + fs.getTcpPort() +
+                                    ".");
+                        continue;
+                    }
+                    for(MetadataResponse response : 
+                            ((BatchMetadataResponse) o).getEntries()) {
+                        String filename = response.getFilename();
+                        FileCache.Entry cached = fileCache.get(filename);
+                        if(!unresolved.containsKey(filename) ||
+                           (cached != null && 
+                            cached.getVersion() > response.getVersion())) {
+                            // not asked for or a stale replica
+                            continue;
+                        }
+                        unresolved.remove(filename);
+                        entries.put(filename, 
+                                    cacheMetadata(cached, response, fs));
+                    }
+                }
             }
+            return entries;
+        }
+
+        /**
+         * Crafts a ticket for a file on the given file server and accounts
+         * the download to the server's usage. The proxy doesn't see the
+         * download itself, so it counts as outstanding transfer of the
+         * server until the server reports its load or, for servers that
+         * don't, until the ticket lease ends.
+         */
+        private DownloadTicket createTicket(String filename, long filesize,
+                                            int version, FileServer fs)
+            throws IOException {
+            fs.addUsage(filesize);
+            leases.start(fs);
+
+            // the file server checks the signature, it doesn't ask us
+            byte[] token = signer.sign(user.getName(), filename, version,
+                                       filesize, System.currentTimeMillis() +
+                                       ticketLifetime);
+            InetAddress host = InetAddress.getByName(fs.getHost());
+            return new DownloadTicket(user.getName(), filename, token,
+                                      host, fs.getTcpPort());
         }
 
         @Override
         public MessageResponse upload(UploadRequest request) throws IOException {
-            FileServerConnection fscon;
-            for(FileServer f : fileservers) {
-                fscon = new FileServerConnection(f.getHost(), f.getTcpPort(),
-                                                 request);
-                Response response = fscon.call();
+            // the client doesn't know the version, it's the next one
+            request = new UploadRequest(request.getSid(), 
+                                        request.getFilename(),
+                                        nextVersion(request.getFilename()),
+                                        request.getContent());
+            Replicator replicator = new Replicator
+                (replicas, connectionPool, index, request,
+                 quorum, uploadTimeout);
+            replicator.setListener(new CacheUpdater(request.getFilename()));
+            replicator.start();
+            try {
+                if(!replicator.await()) {
+                    return new UploadResponse(UploadResponse.Type.FAILED);
+                }
+            } catch (InterruptedException x) {
+                throw new InterruptedIOException("Interrupted during upload.");
             }
 
             // increase user credits
-            user.setCredits(user.getCredits() + 2 * request.getContent().length);
+            user.addCredits(2 * request.getContent().length);
             
-            // add file to file cache
-            fileCache.add(request.getFilename());
-            return new MessageResponse("Uploaded.");
+            // update file cache
+            MessageDigest digest = ChecksumUtils.newDigest();
+            digest.update(request.getContent());
+            fileCache.put(request.getFilename(), request.getContent().length,
+                          request.getVersion(), 
+                          ChecksumUtils.toHex(digest.digest()),
+                          replicator.getAcked());
+            return new UploadResponse(UploadResponse.Type.UPLOADED);
+        }
+
+        /**
+         * Uploads a file by the hash of its content, which the file servers
+         * may have stored for another file. Every online file server has to
+         * have it, so the file ends up on as many servers as if its content
+         * had been sent; otherwise the client sends the content. Knowing a
+         * hash doesn't prove having the content, so no credits are earned
+         * for it: they are only paid for bytes actually received.
+         */
+        public MessageResponse upload(HashUploadRequest request) 
+            throws IOException {
+            request = new HashUploadRequest(request.getSid(),
+                                            request.getFilename(),
+                                            nextVersion(request.getFilename()),
+                                            request.getSize(),
+                                            request.getHash());
+            Replicator replicator = new Replicator
+                (replicas, connectionPool, index, request,
+                 Integer.MAX_VALUE, uploadTimeout);
+            replicator.setListener(new CacheUpdater(request.getFilename()));
+            replicator.start();
+            try {
+                if(!replicator.await()) {
+                    return new UploadResponse
+                        (UploadResponse.Type.CONTENT_UNKNOWN);
+                }
+            } catch (InterruptedException x) {
+                throw new InterruptedIOException("Interrupted during upload.");
+            }
+
+            // update file cache
+            fileCache.put(request.getFilename(), request.getSize(),
+                          request.getVersion(), request.getHash(),
+                          replicator.getAcked());
+            return new UploadResponse(UploadResponse.Type.UPLOADED);
+        }
+
+        /**
+         * Receives the chunks of an upload from the client and hands each
+         * one to the replicas as it arrives. The replicas write to their
+         * file servers in parallel, so the upload takes about as long as a
+         * single transfer.
+         */
+        public MessageResponse upload(StreamUploadRequest request,
+                                      ClientSelector.Chunks chunks) 
+            throws IOException, ClassNotFoundException {
+            request = new StreamUploadRequest(request.getSid(),
+                                              request.getFilename(),
+                                              nextVersion(request.getFilename()),
+                                              request.getSize());
+            Replicator replicator = new Replicator
+                (replicas, connectionPool, index, request,
+                 quorum, uploadTimeout);
+            replicator.setListener(new CacheUpdater(request.getFilename()));
+            replicator.start();
+
+            // forward chunks, hashing them on the way for the file cache
+            MessageDigest digest = ChecksumUtils.newDigest();
+            long received = 0;
+            boolean ended = false;
+            boolean stored;
+            try {
+                FileChunkRequest chunk = readChunk(chunks);
+                while(!chunk.isLast()) {
+                    received += chunk.getData().length;
+                    if(received > request.getSize()) {
+                        skipChunks(chunks);
+                        break;
+                    }
+                    replicator.send(chunk);
+                    digest.update(chunk.getData());
+                    chunk = readChunk(chunks);
+                }
+                if(received != request.getSize()) {
+                    logger.warn("Got " + received + " of " +
+                                request.getSize() + " bytes.");
+                    return new UploadResponse(UploadResponse.Type.INCOMPLETE);
+                }
+                // the last chunk completes the upload on the file servers
+                replicator.send(chunk);
+                ended = true;
+                stored = replicator.await();
+            } catch (InterruptedException x) {
+                throw new InterruptedIOException("Interrupted during upload.");
+            } finally {
+                if(!ended) {
+                    replicator.abort();
+                }
+            }
+            if(!stored) {
+                return new UploadResponse(UploadResponse.Type.FAILED);
+            }
+
+            // increase user credits
+            user.addCredits(2 * received);
+            
+            // update file cache
+            fileCache.put(request.getFilename(), received, 
+                          request.getVersion(),
+                          ChecksumUtils.toHex(digest.digest()),
+                          replicator.getAcked());
+            return new UploadResponse(UploadResponse.Type.UPLOADED);
+        }
+
+        /**
+         * Returns the version an upload of a file gets, one more than the
+         * newest known or given to another upload. A file that isn't
+         * cached is looked up on the file servers listing it.
+         */
+        private int nextVersion(String filename) {
+            int version = 0;
+            FileCache.Entry entry = fileCache.get(filename);
+            if(entry != null) {
+                version = entry.getVersion();
+            } else {
+                for(FileServer fs : fileCache.getLocations(filename)) {
+                    if(!fs.isOnline()) {
+                        continue;
+                    }
+                    Response response = 
+                        callFileserver(fs, new VersionRequest(filename));
+                    if(response instanceof VersionResponse) {
+                        version = Math.max(version, ((VersionResponse) 
+                                                     response).getVersion());
+                    }
+                }
+            }
+            return fileCache.nextVersion(filename, version);
+        }
+
+        /**
+         * Caches the metadata a file server reported, keeping the known
+         * replicas if it matches the cached entry.
+         *
+         * @return the entry describing the file
+         */
+        private FileCache.Entry cacheMetadata(FileCache.Entry entry, 
+                                              MetadataResponse response,
+                                              FileServer fs) {
+            if(entry != null && entry.getSize() == response.getSize() &&
+               entry.getVersion() == response.getVersion() &&
+               entry.getHash().equals(response.getHash())) {
+                fileCache.addReplica(response.getFilename(), fs);
+                return entry;
+            } else {
+                return fileCache.put(response.getFilename(), 
+                                     response.getSize(),
+                                     response.getVersion(), 
+                                     response.getHash(),
+                                     Collections.singleton(fs));
+            }
+        }
+
+        private FileChunkRequest readChunk(ClientSelector.Chunks chunks) 
+            throws IOException, ClassNotFoundException {
+            Object o = chunks.next(CHUNK_TIMEOUT);
+            if(!(o instanceof FileChunkRequest)) {
+                throw new IOException("Chunk corrupted.");
+            }
+            return (FileChunkRequest) o;
+        }
+
+        private void skipChunks(ClientSelector.Chunks chunks) 
+            throws IOException, ClassNotFoundException {
+            while(!readChunk(chunks).isLast()) {
+            }
         }
 
         @Override
@@ -848,7 +1317,7 @@ public class Proxy {
             if(user != null) {
                 logger.debug("Logging out user " + user.getName() +
                              ".");
-                user.logout();
+                users.logout(user);
                 user = null;
             }
             return new MessageResponse("Logged out.");
@@ -869,13 +1338,10 @@ public class Proxy {
             logger.debug("Updating file cache. New file server is " + 
                          fs.getHost() + ":" + fs.getTcpPort() + ".");
             Request request = new ListRequest(null);
-            FileServerConnection fscon = new FileServerConnection
-                (fs.getHost(), fs.getTcpPort(), request);
-            
-            Object o = fscon.call();
+            Object o = callFileserver(fs, request);
             if(o instanceof ListResponse) {
                 ListResponse response = (ListResponse) o;
-                fileCache.addAll(response.getFileNames());
+                fileCache.replaceListing(fs, response.getFileNames());
                 logger.debug("File cache updated.");
             } else {
                 logger.debug("Coudln't get filelist.");
@@ -883,6 +1349,102 @@ public class Proxy {
         }
     }
 
+    /**
+     * Fetches the changes of the catalog of a file server since it was
+     * last synced, which is the whole catalog on the first sync or after
+     * the server restarted.
+     */
+    class CatalogSync implements Runnable {
+        Logger logger;
+        FileServer fs;
+
+        public CatalogSync(FileServer fs) {
+            logger = Logger.getLogger(CatalogSync.class);
+            this.fs = fs;
+        }
+
+        public void run() {
+            try {
+                Request request = new CatalogChangesRequest
+                    (fs.getSyncedEpoch(), fs.getSyncedVersion());
+                Object o = callFileserver(fs, request);
+                if(o instanceof CatalogChangesResponse) {
+                    CatalogChangesResponse response = 
+                        (CatalogChangesResponse) o;
+                    fileCache.applyChanges(fs, response.getPresent(),
+                                           response.getRemoved(),
+                                           response.isSnapshot());
+                    fs.setSynced(response.getEpoch(), response.getVersion());
+                    logger.debug("Synced catalog of " + fs.getHost() + ":" +
+                                 fs.getTcpPort() + " to version " +
+                                 response.getVersion() + ".");
+                } else {
+                    logger.debug("Couldn't sync catalog: " + o);
+                }
+            } finally {
+                fs.endSync();
+            }
+        }
+    }
+
+    /**
+     * Adds file servers that acknowledged an upload to the replicas of the
+     * uploaded file, including replicas that finish after the quorum.
+     */
+    class CacheUpdater implements Replicator.Listener {
+        String filename;
+
+        public CacheUpdater(String filename) {
+            this.filename = filename;
+        }
+
+        public void replicated(FileServer fs) {
+            fileCache.addReplica(filename, fs);
+        }
+    }
+
+    /**
+     * Periodically lists the online file servers that don't sync their
+     * catalog by delta, so files added or removed outside the proxy show
+     * up in the file cache, and forgets the files of offline servers.
+     */
+    class FileCacheRefresher extends TimerTask {
+        public void run() {
+            // don't block the timer thread with network I/O
+            pool.submit(new Runnable() {
+                public void run() {
+                    refreshFileCache();
+                }
+            });
+        }
+    }
+
+    /**
+     * Periodically snapshots the credit ledger, so recovery only replays
+     * the changes since.
+     */
+    class LedgerCompactor extends TimerTask {
+        public void run() {
+            ledger.compact();
+        }
+    }
+
+    private void refreshFileCache() {
+        for(FileServer fs : fileservers.getAll()) {
+            if(!fs.isOnline()) {
+                fileCache.removeServer(fs);
+                // a full sync once it is back
+                fs.setSynced(0, -1);
+            } else if(!fs.reportsLoad()) {
+                Response response = callFileserver(fs, new ListRequest(null));
+                if(response instanceof ListResponse) {
+                    fileCache.replaceListing
+                        (fs, ((ListResponse) response).getFileNames());
+                }
+            }
+        }
+    }
+
     class ProxyCli implements IProxyCli {
         private Logger logger;
 
@@ -894,10 +1456,12 @@ public class Proxy {
         public Response fileservers() throws IOException {
             // create fileserver info array
             ArrayList<FileServerInfo> fsInfos = new ArrayList<FileServerInfo>();
-            for(FileServer fs : fileservers) {
+            for(FileServer fs : fileservers.getAll()) {
                 InetAddress addr = InetAddress.getByName(fs.getHost());
                 fsInfos.add(new FileServerInfo(addr, fs.getPort(), fs.getUsage(),
-                                               fs.isOnline()));
+                                               fs.isOnline(),
+                                               fs.getReplicaLatency(),
+                                               fs.getReplicaFailures()));
             }
 
             // send response
@@ -907,7 +1471,7 @@ public class Proxy {
         @Command
         public Response users() throws IOException {
             ArrayList<UserInfo> uinfo = new ArrayList<UserInfo>();
-            for(User u : users) {
+            for(User u : users.getUsers()) {
                 uinfo.add(new UserInfo(u.getName(), u.getCredits(), u.isLoggedIn()));
             }
             return new UserInfoResponse(uinfo);
@@ -918,18 +1482,20 @@ public class Proxy {
             logger.info("Exiting shell.");
 
             // clean up
+            CCL.close();
+            if(ledger != null) {
+                ledger.close();
+            }
             pool.shutdownNow();
+            workers.shutdownNow();
+            replicas.shutdownNow();
+            connectionPool.close();
 
             DatagramSocket aliveSocket = keepAliveListener.getAliveSocket();
             if(aliveSocket != null) {
                 logger.debug("Closing alive socket.");
                 aliveSocket.close(); // throws io exc in alive listener
             }
-            ServerSocket serverSocket = CCL.getServerSocket();
-            if(serverSocket != null) {
-                logger.debug("Closing server socket.");
-                serverSocket.close(); // throws io exc in ccl
-            }            
  
             // close System.in (blocking)
             if(in == System.in)
@@ -0,0 +1,254 @@
+package proxy;
+
+import message.Request;
+import message.Response;
+import message.response.UploadResponse;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import java.io.IOException;
+
+import util.FileServerConnection;
+import util.FileServerConnectionPool;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Replicates an upload to a set of file servers in parallel.
+ * <p/>
+ * Every file server gets its own task on the given pool. The task opens a
+ * connection, sends the header request and then every message handed to
+ * {@link #send} in order. {@link #await} returns as soon as a write quorum
+ * of file servers acknowledged the upload, the remaining replicas are
+ * finished in the background.
+ */
+class Replicator {
+    // message that tells a replica task that the upload is complete
+    private static final Object END = new Object();
+
+    // message that tells a replica task to give up
+    private static final Object ABORT = new Object();
+
+    // maximum number of messages buffered per replica
+    private static final int QUEUE_CAPACITY = 256;
+
+    private Logger logger;
+
+    private ExecutorService pool;
+    private FileServerConnectionPool connectionPool;
+    private FileServerIndex index;
+    private Request header;
+    private int quorum;
+    private long timeout;
+
+    private List<ReplicaTask> tasks;
+
+    // notified about every successful replica, including late ones
+    private Listener listener;
+
+    // guarded by this
+    private int acks = 0;
+    private int failures = 0;
+    private List<FileServer> acked;
+
+    /**
+     * @param pool    the pool to run the replica tasks on
+     * @param connectionPool the pool to take file server connections from
+     * @param index   the index to replicate to all online servers of, the
+     *                replicas count as their transfers
+     * @param header  the request opening the upload on every file server
+     * @param quorum  the number of acknowledgements to wait for
+     * @param timeout time in ms to wait for a slow replica before giving up
+     */
+    public Replicator(ExecutorService pool, 
+                      FileServerConnectionPool connectionPool,
+                      FileServerIndex index, Request header, int quorum,
+                      long timeout) {
+        logger = Logger.getLogger(Replicator.class);
+        this.pool = pool;
+        this.connectionPool = connectionPool;
+        this.index = index;
+        List<FileServer> targets = index.getOnline();
+        this.header = header;
+        this.quorum = Math.max(1, Math.min(quorum, targets.size()));
+        this.timeout = timeout;
+        acked = new ArrayList<FileServer>();
+        tasks = new ArrayList<ReplicaTask>();
+        for(FileServer fs : targets) {
+            tasks.add(new ReplicaTask(fs));
+        }
+    }
+
+    /**
+     * Sets the listener to notify about successful replicas. Has to be
+     * called before {@link #start}.
+     */
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Starts replicating to all file servers.
+     */
+    public void start() {
+        for(ReplicaTask task : tasks) {
+            pool.submit(task);
+        }
+    }
+
+    /**
+     * Hands a message to every replica that hasn't failed yet.
+     */
+    public void send(Object message) throws InterruptedException {
+        for(ReplicaTask task : tasks) {
+            task.enqueue(message);
+        }
+    }
+
+    /**
+     * Gives up the upload on every replica, none of them is finished.
+     */
+    public void abort() {
+        for(ReplicaTask task : tasks) {
+            task.abort();
+        }
+    }
+
+    /**
+     * Marks the end of the upload and waits until the write quorum is
+     * reached, every replica has finished or the timeout expired.
+     *
+     * @return {@code true} if the quorum was reached
+     */
+    public boolean await() throws InterruptedException {
+        send(END);
+
+        long deadline = System.currentTimeMillis() + timeout;
+        synchronized(this) {
+            while(acks < quorum && acks + failures < tasks.size()) {
+                long left = deadline - System.currentTimeMillis();
+                if(left <= 0) {
+                    break;
+                }
+                wait(left);
+            }
+            return acks >= quorum;
+        }
+    }
+
+    /**
+     * Returns the file servers that acknowledged the upload so far.
+     */
+    public synchronized List<FileServer> getAcked() {
+        return new ArrayList<FileServer>(acked);
+    }
+
+    private void done(FileServer fs, boolean success) {
+        synchronized(this) {
+            if(success) {
+                acks++;
+                acked.add(fs);
+            } else {
+                failures++;
+            }
+            notifyAll();
+        }
+        if(success && listener != null) {
+            listener.replicated(fs);
+        }
+    }
+
+    /**
+     * Gets notified when a file server acknowledged the upload.
+     */
+    interface Listener {
+        void replicated(FileServer fs);
+    }
+
+    private class ReplicaTask implements Runnable {
+        private FileServer fs;
+        private BlockingQueue<Object> queue;
+        private volatile boolean failed = false;
+
+        public ReplicaTask(FileServer fs) {
+            this.fs = fs;
+            queue = new LinkedBlockingQueue<Object>(QUEUE_CAPACITY);
+        }
+
+        void enqueue(Object message) throws InterruptedException {
+            if(failed) {
+                return;
+            }
+            if(!queue.offer(message, timeout, TimeUnit.MILLISECONDS)) {
+                logger.info("Replica " + fs.getHost() + ":" +
+                            fs.getTcpPort() + " is too slow, dropping it.");
+                abort();
+            }
+        }
+
+        void abort() {
+            failed = true;
+            queue.clear();
+            queue.offer(ABORT);
+        }
+
+        public void run() {
+            index.begin(fs);
+            long start = System.nanoTime();
+            FileServerConnection fscon = new FileServerConnection
+                (connectionPool, fs.getHost(), fs.getTcpPort(), header);
+            boolean success = false;
+            // the server lacks the content of a hash upload, it didn't fail
+            boolean unknown = false;
+            try {
+                fscon.open();
+                while(true) {
+                    Object message = queue.take();
+                    if(message == ABORT) {
+                        break;
+                    }
+                    if(message == END) {
+                        Response response = fscon.finish();
+                        success = isUploadAck(response);
+                        unknown = isContentUnknown(response);
+                        break;
+                    }
+                    fscon.send(message);
+                }
+            } catch (IOException x) {
+                logger.info("Lost file server " + fs.getHost() + ":" +
+                            fs.getTcpPort() + " during upload.");
+            } catch (InterruptedException x) {
+                logger.info("Interrupted while replicating.");
+            } finally {
+                fscon.close();
+                index.end(fs);
+            }
+            failed = !success;
+            queue.clear();
+
+            long latency = (System.nanoTime() - start) / 1000000;
+            fs.recordReplica(latency, success || unknown);
+            done(fs, success);
+        }
+    }
+
+    static boolean isUploadAck(Response response) {
+        return isUpload(response, UploadResponse.Type.UPLOADED);
+    }
+
+    static boolean isContentUnknown(Response response) {
+        return isUpload(response, UploadResponse.Type.CONTENT_UNKNOWN);
+    }
+
+    private static boolean isUpload(Response response,
+                                    UploadResponse.Type type) {
+        return response instanceof UploadResponse &&
+            ((UploadResponse) response).getType() == type;
+    }
+}
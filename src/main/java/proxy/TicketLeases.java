@@ -0,0 +1,86 @@
+package proxy;
+
+import java.util.concurrent.TimeUnit;
+
+import util.TimingWheel;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Ends the leases of download tickets.
+ * <p/>
+ * The proxy doesn't see a download, so its ticket counts as transfer in
+ * progress of the file server until the lease of the ticket ends. There
+ * is a lease per download and all have the same length, so they are kept
+ * in a {@link TimingWheel} instead of a timer task each: starting one is
+ * O(1) and costs a slot entry until it ends.
+ * <p/>
+ * The wheel is driven by {@link #run}.
+ */
+class TicketLeases implements Runnable,
+                              TimingWheel.Handler<TicketLeases.Lease> {
+    private Logger logger;
+
+    private FileServerIndex index;
+
+    // length of a lease in ns
+    private long lease;
+
+    private TimingWheel<Lease> wheel;
+
+    /**
+     * @param lease length of a lease in ms
+     * @param tick  resolution of the leases in ms
+     */
+    public TicketLeases(FileServerIndex index, long lease, long tick) {
+        logger = Logger.getLogger(TicketLeases.class);
+        this.index = index;
+        this.lease = TimeUnit.MILLISECONDS.toNanos(lease);
+        tick = Math.max(1, Math.min(tick, lease));
+        wheel = new TimingWheel<Lease>
+            (TimeUnit.MILLISECONDS.toNanos(tick), (int) (lease / tick) + 2,
+             this);
+    }
+
+    /**
+     * Starts the lease of a ticket just issued for a file server.
+     */
+    public void start(FileServer fs) {
+        index.issue(fs);
+        wheel.schedule(new Lease(fs), System.nanoTime() + lease);
+    }
+
+    /**
+     * Called by the wheel when a lease ended.
+     */
+    public void expired(Lease lease, long now) {
+        index.expire(lease.fs);
+    }
+
+    /**
+     * Advances the wheel every tick until interrupted.
+     */
+    public void run() {
+        long tick = wheel.getTick();
+        try {
+            while(!Thread.currentThread().isInterrupted()) {
+                wheel.advance(System.nanoTime());
+                TimeUnit.NANOSECONDS.sleep(tick);
+            }
+        } catch (InterruptedException x) {
+            logger.debug("Interrupted.");
+        }
+        logger.info("Stopped expiring ticket leases.");
+    }
+
+    /**
+     * The lease of a ticket.
+     */
+    static class Lease {
+        private final FileServer fs;
+
+        Lease(FileServer fs) {
+            this.fs = fs;
+        }
+    }
+}
@@ -1,25 +1,26 @@
 package proxy;
 
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.log4j.Logger;
 import org.apache.log4j.BasicConfigurator;
 
 class User {
-    private Logger logger;
+    // shared, there may be millions of users
+    private static final Logger logger = Logger.getLogger(User.class);
 
     private String username;
     private String password;
-    private long credits;
-    private boolean loggedIn = false;
-    private UUID sid;
+    private CreditAccount credits;
+    private AtomicBoolean loggedIn = new AtomicBoolean(false);
+    private volatile UUID sid;
 
     public User(String username, String password, long credits) {
-        logger = Logger.getLogger(User.class);
         sid = null;
         this.username = username;
         this.password = password;
-        this.credits = credits;
+        this.credits = new CreditAccount(credits);
     }
 
     String getName() {
@@ -32,11 +33,11 @@ class User {
     }
 
     long getCredits() {
-        return credits;
+        return credits.get();
     }
     
     boolean isLoggedIn() {
-        return loggedIn;
+        return loggedIn.get();
     }
 
     UUID getSid() {
@@ -48,7 +49,33 @@ class User {
     }
 
     void setCredits(long credits) {
-        this.credits = credits;
+        this.credits.set(credits);
+    }
+
+    /**
+     * Adds credits.
+     *
+     * @return the new balance
+     */
+    long addCredits(long amount) {
+        return credits.deposit(amount);
+    }
+
+    /**
+     * Passes committed credit changes on, e.g. to the credit ledger.
+     */
+    void setJournal(CreditAccount.Journal journal) {
+        credits.setJournal(journal);
+    }
+
+    /**
+     * Holds credits, e.g. while a download ticket is crafted.
+     *
+     * @return the reservation, {@code null} if the balance doesn't cover
+     * the amount
+     */
+    CreditAccount.Reservation reserve(long amount) {
+        return credits.reserve(amount);
     }
     
     void setPassword(String password) {
@@ -59,23 +86,27 @@ class User {
         this.sid = sid;
     }
 
+    /**
+     * Marks the user as logged in.
+     *
+     * @return false if the user is logged in already
+     */
     boolean login() {
-        if(loggedIn) {
+        if(!loggedIn.compareAndSet(false, true)) {
             logger.warn("User " + username + " is already logged in.");
             return false;
         }
-        loggedIn = true;
         return true;
     }
 
     void logout() {
-        loggedIn = false;
         sid = null;
+        loggedIn.set(false);
     }
 
     void print() {
         System.out.println("User " + username);
         System.out.println("  pw: " + password);
-        System.out.println("  credits: " + credits);
+        System.out.println("  credits: " + credits.get());
     }
 }
\ No newline at end of file
@@ -0,0 +1,278 @@
+package proxy;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Loads the users into a {@link UserRegistry} at startup.
+ * <p/>
+ * The user config ({@code <name>.password} and {@code <name>.credits}
+ * lines) is memory mapped and parsed in a single pass without building
+ * strings for anything but names and values. Large deployments can keep a
+ * binary snapshot of the users next to it, which is read instead as long
+ * as it is newer than the config. A snapshot starts with {@link #MAGIC}
+ * and the number of users, followed by name, password and credits of each
+ * user; strings are a length followed by UTF-8 bytes.
+ */
+class UserLoader {
+    // first bytes of a user snapshot, "USR" and the format version
+    private static final int MAGIC = 0x55535201;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private Logger logger;
+
+    private UserRegistry users;
+
+    // number of users given in the config without password or credits
+    private int incomplete = 0;
+
+    public UserLoader(UserRegistry users) {
+        logger = Logger.getLogger(UserLoader.class);
+        this.users = users;
+    }
+
+    /**
+     * Returns the number of users that were left out because the config
+     * lacks their password or credits.
+     */
+    public int getIncomplete() {
+        return incomplete;
+    }
+
+    /**
+     * Loads the users from the snapshot if it is newer than the config,
+     * from the config otherwise. In the latter case the snapshot is
+     * written for the next start.
+     *
+     * @param snapshot the user snapshot, {@code null} to use none
+     * @return the number of users loaded
+     */
+    public int load(Path config, Path snapshot) throws IOException {
+        if(snapshot != null && Files.exists(snapshot) &&
+           Files.getLastModifiedTime(snapshot).compareTo
+           (Files.getLastModifiedTime(config)) >= 0) {
+            return loadSnapshot(snapshot);
+        }
+        int count = loadConfig(config);
+        if(snapshot != null) {
+            writeSnapshot(snapshot);
+        }
+        return count;
+    }
+
+    /**
+     * Parses the user config.
+     *
+     * @return the number of users loaded
+     */
+    public int loadConfig(Path config) throws IOException {
+        Map<String, Pending> pending = new HashMap<String, Pending>();
+        try(FileChannel channel =
+            FileChannel.open(config, StandardOpenOption.READ)) {
+            ByteBuffer buf =
+                channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            int end = buf.limit();
+            int pos = 0;
+            while(pos < end) {
+                int eol = pos;
+                while(eol < end && buf.get(eol) != '\n' &&
+                      buf.get(eol) != '\r') {
+                    eol++;
+                }
+                parseLine(buf, pos, eol, pending);
+                pos = eol + 1;
+            }
+        }
+
+        users.expect(pending.size());
+        int count = 0;
+        for(Map.Entry<String, Pending> e : pending.entrySet()) {
+            Pending p = e.getValue();
+            if(p.password == null || p.credits == null) {
+                logger.error("User " + e.getKey() + " lacks password or " +
+                             "credits.");
+                incomplete++;
+                continue;
+            }
+            try {
+                if(users.add(new User(e.getKey(), p.password,
+                                      Long.parseLong(p.credits)))) {
+                    count++;
+                }
+            } catch (NumberFormatException x) {
+                logger.error("User " + e.getKey() + " has invalid credits.");
+                incomplete++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Reads a user snapshot.
+     *
+     * @return the number of users loaded
+     */
+    public int loadSnapshot(Path snapshot) throws IOException {
+        try(FileChannel channel =
+            FileChannel.open(snapshot, StandardOpenOption.READ)) {
+            MappedByteBuffer buf =
+                channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if(buf.remaining() < 8 || buf.getInt() != MAGIC) {
+                throw new IOException("Not a user snapshot.");
+            }
+            int total = buf.getInt();
+            users.expect(total);
+            int count = 0;
+            for(int i = 0; i < total; i++) {
+                String name = readString(buf);
+                String password = readString(buf);
+                if(users.add(new User(name, password, buf.getLong()))) {
+                    count++;
+                }
+            }
+            return count;
+        } catch (RuntimeException x) {
+            // truncated or corrupted
+            throw new IOException("User snapshot corrupted.");
+        }
+    }
+
+    /**
+     * Writes the users of the registry to a snapshot.
+     */
+    public void writeSnapshot(Path snapshot) throws IOException {
+        Path tmp = snapshot.resolveSibling(snapshot.getFileName() + ".tmp");
+        try(DataOutputStream out = new DataOutputStream
+            (new BufferedOutputStream(new FileOutputStream(tmp.toFile())))) {
+            out.writeInt(MAGIC);
+            out.writeInt(users.size());
+            for(User user : users.values()) {
+                writeString(out, user.getName());
+                writeString(out, user.getPassword());
+                out.writeLong(user.getCredits());
+            }
+        }
+        Files.move(tmp, snapshot, StandardCopyOption.REPLACE_EXISTING,
+                   StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Parses a {@code <name>.<attribute> = <value>} line, comments and
+     * other lines are skipped.
+     */
+    private void parseLine(ByteBuffer buf, int start, int end,
+                           Map<String, Pending> pending) {
+        start = skipBlanks(buf, start, end);
+        if(start == end || buf.get(start) == '#' || buf.get(start) == '!') {
+            return;
+        }
+        int sep = start;
+        while(sep < end && buf.get(sep) != '=' && buf.get(sep) != ':') {
+            sep++;
+        }
+        if(sep == end) {
+            return;
+        }
+        int keyEnd = trimEnd(buf, start, sep);
+        int dot = keyEnd - 1;
+        while(dot > start && buf.get(dot) != '.') {
+            dot--;
+        }
+        if(dot <= start) {
+            return;
+        }
+
+        boolean password = matches(buf, dot + 1, keyEnd, "password");
+        if(!password && !matches(buf, dot + 1, keyEnd, "credits")) {
+            return;
+        }
+        String name = decode(buf, start, dot);
+        int valueStart = skipBlanks(buf, sep + 1, end);
+        String value = decode(buf, valueStart, trimEnd(buf, valueStart, end));
+
+        Pending p = pending.get(name);
+        if(p == null) {
+            p = new Pending();
+            pending.put(name, p);
+        }
+        if(password) {
+            p.password = value;
+        } else {
+            p.credits = value;
+        }
+    }
+
+    private static int skipBlanks(ByteBuffer buf, int pos, int end) {
+        while(pos < end && (buf.get(pos) == ' ' || buf.get(pos) == '\t')) {
+            pos++;
+        }
+        return pos;
+    }
+
+    private static int trimEnd(ByteBuffer buf, int start, int end) {
+        while(end > start &&
+              (buf.get(end - 1) == ' ' || buf.get(end - 1) == '\t')) {
+            end--;
+        }
+        return end;
+    }
+
+    private static boolean matches(ByteBuffer buf, int start, int end,
+                                   String ascii) {
+        if(end - start != ascii.length()) {
+            return false;
+        }
+        for(int i = 0; i < ascii.length(); i++) {
+            if(buf.get(start + i) != ascii.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String decode(ByteBuffer buf, int start, int end) {
+        byte[] bytes = new byte[end - start];
+        for(int i = 0; i < bytes.length; i++) {
+            bytes[i] = buf.get(start + i);
+        }
+        return new String(bytes, UTF8);
+    }
+
+    private static String readString(ByteBuffer buf) {
+        byte[] bytes = new byte[buf.getInt()];
+        buf.get(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    private static void writeString(DataOutputStream out, String s)
+        throws IOException {
+        byte[] bytes = s.getBytes(UTF8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Values of a user seen so far.
+     */
+    private static class Pending {
+        String password;
+        String credits;
+    }
+}
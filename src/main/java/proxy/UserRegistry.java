@@ -0,0 +1,131 @@
+package proxy;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The users known to the proxy, indexed by name and by the session id of
+ * logged in users, so logins and session checks don't depend on the
+ * number of users.
+ */
+class UserRegistry {
+    private Logger logger;
+
+    private ConcurrentMap<String, User> users;
+
+    // logged in users by session id
+    private ConcurrentMap<UUID, User> sessions;
+
+    public UserRegistry() {
+        logger = Logger.getLogger(UserRegistry.class);
+        users = new ConcurrentHashMap<String, User>();
+        sessions = new ConcurrentHashMap<UUID, User>();
+    }
+
+    /**
+     * Sizes the indexes for the given number of users, so loading them
+     * doesn't grow the indexes step by step. Only has an effect before the
+     * first user was added.
+     */
+    public void expect(int count) {
+        if(users.isEmpty()) {
+            users = new ConcurrentHashMap<String, User>(count + count / 3 + 1);
+        }
+    }
+
+    /**
+     * Adds a user.
+     *
+     * @return false if a user with that name already exists
+     */
+    public boolean add(User user) {
+        if(users.putIfAbsent(user.getName(), user) != null) {
+            logger.warn("User " + user.getName() + " already exists.");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the user with the given name or {@code null}.
+     */
+    public User get(String username) {
+        return users.get(username);
+    }
+
+    /**
+     * Returns the logged in user with the given session id or
+     * {@code null}.
+     */
+    public User getBySid(UUID sid) {
+        if(sid == null) {
+            return null;
+        }
+        return sessions.get(sid);
+    }
+
+    /**
+     * Returns all users in no particular order.
+     */
+    public Collection<User> values() {
+        return Collections.unmodifiableCollection(users.values());
+    }
+
+    /**
+     * Returns all users ordered by name.
+     */
+    public List<User> getUsers() {
+        List<User> list = new ArrayList<User>(users.values());
+        Collections.sort(list, new Comparator<User>() {
+            public int compare(User a, User b) {
+                return a.getName().compareTo(b.getName());
+            }
+        });
+        return list;
+    }
+
+    public int size() {
+        return users.size();
+    }
+
+    /**
+     * Logs a user in and assigns it a new session id.
+     *
+     * @return the user, {@code null} if the credentials are wrong or the
+     * user is logged in already
+     */
+    public User login(String username, String password) {
+        User user = users.get(username);
+        if(user == null || password == null ||
+           !user.getPassword().equals(password)) {
+            return null;
+        }
+        // only one of concurrent logins of the same user gets here
+        if(!user.login()) {
+            return null;
+        }
+        UUID sid = UUID.randomUUID();
+        user.setSid(sid);
+        sessions.put(sid, user);
+        return user;
+    }
+
+    /**
+     * Ends the session of a user.
+     */
+    public void logout(User user) {
+        UUID sid = user.getSid();
+        if(sid != null) {
+            sessions.remove(sid, user);
+        }
+        user.logout();
+    }
+}
@@ -0,0 +1,335 @@
+package server;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import java.io.IOException;
+
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Content addressed store of the uploaded files.
+ * <p/>
+ * Every distinct content is kept once, in a read-only file of the hidden
+ * {@link #DIR} directory named by the SHA-256 hash of the content. The
+ * files in the file directory are hard links to these blobs, so files of
+ * equal content share their blocks, and an upload of content that is
+ * stored already doesn't need the content at all.
+ * <p/>
+ * Every catalog entry of a stored file holds a reference to its blob.
+ * Blobs that lost their last reference are deleted by the {@link Sweeper}
+ * once they stayed unreferenced for {@link #SWEEP_PERIOD}, so content
+ * that is uploaded again soon after is still found.
+ */
+class BlobStore {
+    // directory of the blobs, hidden so it isn't listed
+    public static final String DIR = ".blobs";
+
+    // time in ms between sweeps, and that a blob stays unreferenced before
+    public static final long SWEEP_PERIOD = 30000;
+
+    // prefix of uploads in progress
+    private static final String PART = "upload-";
+
+    private static final Pattern HASH = Pattern.compile("[0-9a-f]{64}");
+
+    private Logger logger;
+
+    private Path store;
+
+    // time in ms between sweeps
+    private long period;
+
+    // guarded by itself, like the references of its blobs
+    private Map<String, Blob> blobs;
+
+    // blobs without references in the order they lost them, guarded by
+    // blobs
+    private Set<Blob> unreferenced;
+
+    // blobs by the key of their file while a previous run is recovered,
+    // guarded by blobs
+    private Map<Object, Blob> keys;
+
+    public BlobStore(Path dir) {
+        this(dir, SWEEP_PERIOD);
+    }
+
+    BlobStore(Path dir, long period) {
+        logger = Logger.getLogger(BlobStore.class);
+        store = dir.resolve(DIR);
+        this.period = period;
+        blobs = new HashMap<String, Blob>();
+        unreferenced = new LinkedHashSet<Blob>();
+        keys = new HashMap<Object, Blob>();
+    }
+
+    /**
+     * Returns whether a string is a hex SHA-256 hash as used to name blobs.
+     */
+    public static boolean isHash(String hash) {
+        return hash != null && HASH.matcher(hash).matches();
+    }
+
+    /**
+     * Opens the blobs of a previous run, deleting uploads that didn't
+     * finish. Until {@link #endRecovery} they can be {@link #recover
+     * recovered} for the files linking to them, the others are swept.
+     */
+    public void open() throws IOException {
+        Files.createDirectories(store);
+        try(DirectoryStream<Path> stream = Files.newDirectoryStream(store)) {
+            for(Path path : stream) {
+                String hash = path.getFileName().toString();
+                if(!isHash(hash)) {
+                    Files.deleteIfExists(path);
+                    continue;
+                }
+                BasicFileAttributes attrs =
+                    Files.readAttributes(path, BasicFileAttributes.class);
+                Blob blob = new Blob(hash, path, attrs.size(),
+                                     attrs.fileKey());
+                synchronized(blobs) {
+                    blobs.put(hash, blob);
+                    unreferenced.add(blob);
+                    if(blob.key != null) {
+                        keys.put(blob.key, blob);
+                    }
+                }
+            }
+        }
+        logger.debug("Opened " + blobs.size() + " blobs.");
+    }
+
+    /**
+     * Returns the blob a file of the directory is a link to, with a new
+     * reference, {@code null} if it isn't one.
+     *
+     * @param key the {@link BasicFileAttributes#fileKey} of the file
+     */
+    public Blob recover(Object key, long size) {
+        if(key == null) {
+            return null;
+        }
+        synchronized(blobs) {
+            Blob blob = keys.get(key);
+            if(blob == null || blob.size != size ||
+               blobs.get(blob.hash) != blob) {
+                return null;
+            }
+            ref(blob);
+            return blob;
+        }
+    }
+
+    /**
+     * Ends the recovery, blobs no file links to are swept from now on.
+     */
+    public void endRecovery() {
+        synchronized(blobs) {
+            keys.clear();
+        }
+    }
+
+    /**
+     * Creates the file an upload is written to. It is then either
+     * {@link #put} or deleted.
+     */
+    public Path create() throws IOException {
+        Files.createDirectories(store);
+        return Files.createTempFile(store, PART, "");
+    }
+
+    /**
+     * Stores a completely written upload as the blob of its content, or
+     * deletes it if the content is stored already.
+     *
+     * @param hash the hex SHA-256 hash of the content
+     * @return the blob with a new reference
+     */
+    public Blob put(Path part, String hash) throws IOException {
+        if(!isHash(hash)) {
+            throw new IllegalArgumentException("Bad hash " + hash + ".");
+        }
+        boolean discard = true;
+        try {
+            synchronized(blobs) {
+                Blob blob = blobs.get(hash);
+                if(blob == null) {
+                    Path path = store.resolve(hash);
+                    Files.move(part, path, StandardCopyOption.ATOMIC_MOVE);
+                    discard = false;
+                    // the files linking to it must not change it
+                    path.toFile().setReadable(true, false);
+                    path.toFile().setWritable(false, false);
+                    BasicFileAttributes attrs = Files.readAttributes
+                        (path, BasicFileAttributes.class);
+                    blob = new Blob(hash, path, attrs.size(),
+                                    attrs.fileKey());
+                    blobs.put(hash, blob);
+                }
+                ref(blob);
+                return blob;
+            }
+        } finally {
+            if(discard) {
+                Files.deleteIfExists(part);
+            }
+        }
+    }
+
+    /**
+     * Returns the blob of the given content with a new reference,
+     * {@code null} if the content isn't stored.
+     */
+    public Blob get(String hash, long size) {
+        synchronized(blobs) {
+            Blob blob = blobs.get(hash);
+            if(blob == null || blob.size != size) {
+                return null;
+            }
+            ref(blob);
+            return blob;
+        }
+    }
+
+    /**
+     * Drops a reference to a blob.
+     */
+    public void unref(Blob blob) {
+        synchronized(blobs) {
+            // an evicted blob isn't stored anymore
+            if(blobs.get(blob.hash) != blob) {
+                return;
+            }
+            if(--blob.refs == 0) {
+                blob.unreferencedSince = System.nanoTime();
+                unreferenced.add(blob);
+            }
+        }
+    }
+
+    /**
+     * Forgets a blob whose file was changed in place, so its content no
+     * longer matches its hash. The references of it are ignored.
+     */
+    public void evict(Blob blob) {
+        synchronized(blobs) {
+            if(blobs.get(blob.hash) != blob) {
+                return;
+            }
+            logger.warn("Blob " + blob.hash + " was changed, evicting it.");
+            blobs.remove(blob.hash);
+            unreferenced.remove(blob);
+            delete(blob);
+        }
+    }
+
+    /**
+     * Deletes the blobs that have been unreferenced for a sweep period.
+     *
+     * @return the number of blobs deleted
+     */
+    public int sweep() {
+        long now = System.nanoTime();
+        long timeout = TimeUnit.MILLISECONDS.toNanos(period);
+        int swept = 0;
+        synchronized(blobs) {
+            Iterator<Blob> it = unreferenced.iterator();
+            while(it.hasNext()) {
+                Blob blob = it.next();
+                // the others lost their references later
+                if(now - blob.unreferencedSince < timeout) {
+                    break;
+                }
+                it.remove();
+                blobs.remove(blob.hash);
+                delete(blob);
+                swept++;
+            }
+        }
+        return swept;
+    }
+
+    private void ref(Blob blob) {
+        if(blob.refs++ == 0) {
+            unreferenced.remove(blob);
+        }
+    }
+
+    private void delete(Blob blob) {
+        try {
+            Files.deleteIfExists(blob.path);
+        } catch (IOException x) {
+            logger.warn("Couldn't delete blob " + blob.hash + ".");
+        }
+    }
+
+    /**
+     * Stored content.
+     */
+    static class Blob {
+        private final String hash;
+        private final Path path;
+        private final long size;
+        // identifies the file, e.g. device and inode, may be null
+        private final Object key;
+
+        // guarded by the blobs of the store
+        private int refs = 0;
+        private long unreferencedSince = System.nanoTime();
+
+        Blob(String hash, Path path, long size, Object key) {
+            this.hash = hash;
+            this.path = path;
+            this.size = size;
+            this.key = key;
+        }
+
+        public String getHash() {
+            return hash;
+        }
+
+        public Path getPath() {
+            return path;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public Object getKey() {
+            return key;
+        }
+    }
+
+    /**
+     * Sweeps the store every sweep period until interrupted.
+     */
+    class Sweeper implements Runnable {
+        public void run() {
+            try {
+                while(true) {
+                    Thread.sleep(period);
+                    int swept = sweep();
+                    if(swept > 0) {
+                        logger.debug("Swept " + swept + " blobs.");
+                    }
+                }
+            } catch (InterruptedException x) {
+                logger.info("Interrupted. Stopping...");
+            }
+        }
+    }
+}
@@ -0,0 +1,642 @@
+package server;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+
+import java.security.SecureRandom;
+
+import util.ChecksumUtils;
+import util.TicketSigner;
+
+import org.apache.log4j.Logger;
+
+/**
+ * In-memory index of the files in the file directory.
+ * <p/>
+ * The catalog is built once from the directory and afterwards kept current
+ * by uploads calling {@link #commit} and by a {@link Watcher} that picks up
+ * changes made to the directory by other means. Lookups don't touch the
+ * file system. Hidden files (partial uploads) are never listed.
+ * <p/>
+ * Every change of a file gets the next catalog version, the last
+ * {@link #MAX_CHANGES} are remembered so others can ask for the
+ * {@link #getChanges changes} since a version they know. Versions start
+ * over when the server restarts, the random epoch tells the runs apart.
+ * <p/>
+ * Uploads are kept as versions: the content is stored as a blob of the
+ * {@link BlobStore} that is never changed afterwards, then
+ * {@link #commit committed} by swapping the entry of the file, which is
+ * what readers see. The file in the directory is replaced by a link to the
+ * blob, so the directory shows the current content as before. Readers
+ * {@link #acquire} the current entry and read its
+ * {@link Entry#getPath content}, which stays until they
+ * {@link #release} it even if a newer version was committed meanwhile.
+ * Replaced versions give up their blob once the last reader is done.
+ * Files changed outside the server are read from the directory itself.
+ * <p/>
+ * The version of every upload is appended to the hidden {@link #VERSIONS}
+ * log, so files keep their versions when the server restarts. The log is
+ * compacted to the current versions on {@link #load}.
+ */
+class Catalog {
+    // version of files that were not uploaded through the proxy
+    public static final int INITIAL_VERSION = 1;
+
+    // number of changes kept for getChanges
+    public static final int MAX_CHANGES = 10000;
+
+    // log of the versions of uploaded files, hidden so it isn't listed
+    public static final String VERSIONS = ".versions.log";
+
+    private Logger logger;
+
+    private Path dir;
+
+    private BlobStore store;
+
+    private ConcurrentHashMap<String, Entry> entries;
+
+    private final long epoch;
+
+    // number of changes so far
+    private volatile long version = 0;
+
+    // the names of the last changed files, the version of the last one is
+    // the catalog version, guarded by itself
+    private ArrayDeque<String> changes;
+
+    // the last version uploaded of every file, guarded by this
+    private Map<String, Integer> versions;
+
+    // appends to the version log, guarded by this
+    private DataOutputStream versionLog;
+
+    public Catalog(Path dir, BlobStore store) {
+        logger = Logger.getLogger(Catalog.class);
+        this.dir = dir;
+        this.store = store;
+        entries = new ConcurrentHashMap<String, Entry>();
+        epoch = new SecureRandom().nextLong();
+        changes = new ArrayDeque<String>();
+        versions = new HashMap<String, Integer>();
+    }
+
+    /**
+     * Returns the epoch of the catalog, which differs for every run.
+     */
+    public long getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * Returns the version of the catalog, which grows with every file
+     * added, changed or removed.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Returns the names of the files changed after the given version, the
+     * most recently changed first.
+     *
+     * @param since a version of this epoch
+     * @return the changed files, {@code null} if the version is unknown or
+     * the changes since are no longer kept
+     */
+    public Set<String> getChanges(long since) {
+        synchronized(changes) {
+            long first = version - changes.size();
+            if(since < first || since > version) {
+                return null;
+            }
+            // the newest changes are at the end
+            Set<String> changed = new LinkedHashSet<String>();
+            Iterator<String> it = changes.descendingIterator();
+            for(long v = version; v > since; v--) {
+                changed.add(it.next());
+            }
+            return changed;
+        }
+    }
+
+    /**
+     * (Re)builds the catalog from the directory, keeping the versions of
+     * known files.
+     */
+    public void scan() throws IOException {
+        Set<String> found = new HashSet<String>();
+        try(DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for(Path path : stream) {
+                String name = path.getFileName().toString();
+                if(refresh(name) != null) {
+                    found.add(name);
+                }
+            }
+        }
+        // a file installed since it was listed isn't found, but not gone
+        synchronized(this) {
+            for(String filename : entries.keySet()) {
+                if(!found.contains(filename) &&
+                   !Files.isRegularFile(dir.resolve(filename))) {
+                    remove(filename);
+                }
+            }
+        }
+        logger.debug("Catalog of " + dir + " has " + entries.size() +
+                     " files.");
+    }
+
+    /**
+     * Returns the entry of a file or {@code null} if it doesn't exist.
+     */
+    public Entry get(String filename) {
+        return entries.get(filename);
+    }
+
+    /**
+     * Returns the names of all files.
+     */
+    public Set<String> getNames() {
+        return new HashSet<String>(entries.keySet());
+    }
+
+    /**
+     * Builds the catalog from the directory and the store of a previous
+     * run. Files that are links to a blob are stored files again, files
+     * get the versions of the log.
+     */
+    public void load() throws IOException {
+        store.open();
+        readVersions();
+        try {
+            scan();
+        } finally {
+            store.endRecovery();
+        }
+        writeVersions();
+    }
+
+    /**
+     * Closes the version log.
+     */
+    public synchronized void close() {
+        if(versionLog == null) {
+            return;
+        }
+        try {
+            versionLog.close();
+        } catch (IOException x) {
+            logger.info("Caught IOException while closing version log.");
+        }
+        versionLog = null;
+    }
+
+    private synchronized void readVersions() throws IOException {
+        Path path = dir.resolve(VERSIONS);
+        if(!Files.exists(path)) {
+            return;
+        }
+        try(DataInputStream in = new DataInputStream
+            (new BufferedInputStream(Files.newInputStream(path)))) {
+            while(true) {
+                int version = in.readInt();
+                versions.put(in.readUTF(), version);
+            }
+        } catch (EOFException x) {
+            // the end, or a record cut short by a crash
+        }
+    }
+
+    /**
+     * Replaces the version log by the versions of the current files and
+     * opens it for appending.
+     */
+    private synchronized void writeVersions() throws IOException {
+        versions.keySet().retainAll(entries.keySet());
+        Path path = dir.resolve(VERSIONS);
+        Path temp = dir.resolve(VERSIONS + ".tmp");
+        try(DataOutputStream out = new DataOutputStream
+            (new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            for(Map.Entry<String, Integer> version : versions.entrySet()) {
+                out.writeInt(version.getValue());
+                out.writeUTF(version.getKey());
+            }
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING,
+                   StandardCopyOption.ATOMIC_MOVE);
+        versionLog = new DataOutputStream(new BufferedOutputStream
+            (Files.newOutputStream(path, StandardOpenOption.APPEND)));
+    }
+
+    /**
+     * Appends the version of an upload to the log.
+     */
+    private synchronized void logVersion(String filename, int version) {
+        versions.put(filename, version);
+        if(versionLog == null) {
+            return;
+        }
+        try {
+            versionLog.writeInt(version);
+            versionLog.writeUTF(filename);
+            versionLog.flush();
+        } catch (IOException x) {
+            logger.warn("Couldn't log version " + version + " of " +
+                        filename + ", it is lost on restart.");
+        }
+    }
+
+    /**
+     * Creates the file the content of an upload is written to. It is
+     * either {@link #commit committed} or {@link #discard discarded}.
+     */
+    public Path create() throws IOException {
+        return store.create();
+    }
+
+    /**
+     * Makes a completely written upload the current version of the file.
+     * The content is stored unless it is already.
+     *
+     * @param hash the hex SHA-256 hash of the content
+     */
+    public Entry commit(String filename, int version, Path content,
+                        String hash) throws IOException {
+        BlobStore.Blob blob = store.put(content, hash);
+        try {
+            return install(filename, version, blob);
+        } catch (IOException x) {
+            store.unref(blob);
+            throw x;
+        }
+    }
+
+    /**
+     * Makes content that is stored already the current version of the
+     * file.
+     *
+     * @return the new entry, {@code null} if no content of the given hash
+     * and size is stored
+     */
+    public Entry link(String filename, int version, String hash, long size)
+        throws IOException {
+        BlobStore.Blob blob = store.get(hash, size);
+        if(blob == null) {
+            return null;
+        }
+        try {
+            return install(filename, version, blob);
+        } catch (IOException x) {
+            store.unref(blob);
+            throw x;
+        }
+    }
+
+    /**
+     * Deletes an upload that wasn't committed.
+     */
+    public void discard(Path content) throws IOException {
+        Files.deleteIfExists(content);
+    }
+
+    /**
+     * Links the file to a blob and swaps its entry. The replaced version
+     * gives up its blob once no reader holds it anymore. An upload that
+     * was overtaken by one of a newer version isn't installed.
+     */
+    private Entry install(String filename, int version, BlobStore.Blob blob)
+        throws IOException {
+        // a hidden link next to the file, moved over it in one step
+        Path link = dir.resolve("." + UUID.randomUUID() + ".link");
+        try {
+            Files.createLink(link, blob.getPath());
+        } catch (UnsupportedOperationException x) {
+            Files.copy(blob.getPath(), link);
+        }
+        Path path = dir.resolve(filename);
+        // the watcher must not see the new file before its entry
+        synchronized(this) {
+            Entry current = entries.get(filename);
+            if(current != null && current.version > version) {
+                Files.deleteIfExists(link);
+                store.unref(blob);
+                return current;
+            }
+            try {
+                Files.move(link, path, StandardCopyOption.REPLACE_EXISTING,
+                           StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException x) {
+                Files.deleteIfExists(link);
+                throw x;
+            }
+            BasicFileAttributes attrs =
+                Files.readAttributes(path, BasicFileAttributes.class);
+            Entry entry = new Entry(filename, attrs.size(), version,
+                                    attrs.lastModifiedTime().toMillis(),
+                                    blob.getPath(), blob);
+            retire(entries.put(filename, entry));
+            changed(filename);
+            logVersion(filename, version);
+            return entry;
+        }
+    }
+
+    /**
+     * Returns the current entry of a file and keeps its content from being
+     * deleted until it is {@link #release released}.
+     *
+     * @return the entry or {@code null} if the file doesn't exist
+     */
+    public Entry acquire(String filename) {
+        while(true) {
+            Entry entry = entries.get(filename);
+            if(entry == null) {
+                return null;
+            }
+            entry.readers.incrementAndGet();
+            if(!entry.retired) {
+                return entry;
+            }
+            // replaced meanwhile, the newer entry is in the map already
+            release(entry);
+        }
+    }
+
+    /**
+     * Releases an entry returned by {@link #acquire}, {@code null} is
+     * ignored.
+     */
+    public void release(Entry entry) {
+        if(entry != null && entry.readers.decrementAndGet() == 0 &&
+           entry.retired) {
+            collect(entry);
+        }
+    }
+
+    /**
+     * Marks an entry as replaced, its content goes with the last reader.
+     */
+    private void retire(Entry entry) {
+        if(entry != null) {
+            entry.retired = true;
+            // a reader acquiring now sees retired and releases again
+            if(entry.readers.get() == 0) {
+                collect(entry);
+            }
+        }
+    }
+
+    private void collect(Entry entry) {
+        // retire and the last release may both get here
+        if(entry.blob != null && entry.collected.compareAndSet(false, true)) {
+            store.unref(entry.blob);
+        }
+    }
+
+    /**
+     * Re-reads the attributes of a file. The version of a known file is
+     * kept, its hash only if the file didn't change.
+     *
+     * @return the current entry or {@code null} if the file is gone
+     */
+    public synchronized Entry refresh(String filename) throws IOException {
+        Path path = dir.resolve(filename);
+        if(filename.startsWith(".")) {
+            return null;
+        }
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (NoSuchFileException x) {
+            remove(filename);
+            return null;
+        }
+        if(!attrs.isRegularFile()) {
+            remove(filename);
+            return null;
+        }
+        long size = attrs.size();
+        long modified = attrs.lastModifiedTime().toMillis();
+        Entry old = entries.get(filename);
+        if(old != null && old.size == size && old.modified == modified) {
+            return old;
+        }
+        Entry entry;
+        if(old == null) {
+            // a link to a blob is a file stored by a previous run
+            BlobStore.Blob blob = store.recover(attrs.fileKey(), size);
+            Integer version = versions.get(filename);
+            entry = new Entry(filename, size, 
+                              version == null ? INITIAL_VERSION : version,
+                              modified, blob == null ? path : blob.getPath(),
+                              blob);
+        } else {
+            if(old.blob != null && attrs.fileKey() != null &&
+               attrs.fileKey().equals(old.blob.getKey())) {
+                // written in place, the blob is no longer what it was
+                store.evict(old.blob);
+            }
+            // changed by someone else, so no longer the stored version
+            entry = new Entry(filename, size, old.version, modified, path, 
+                              null);
+        }
+        retire(entries.put(filename, entry));
+        changed(filename);
+        return entry;
+    }
+
+    /**
+     * Removes the entry of a file that is gone, must hold this.
+     */
+    private void remove(String filename) {
+        Entry entry = entries.remove(filename);
+        if(entry != null) {
+            retire(entry);
+            changed(filename);
+        }
+    }
+
+    /**
+     * Gives a change the next version. Called after the change is made, so
+     * whoever sees the version sees the change.
+     */
+    private void changed(String filename) {
+        synchronized(changes) {
+            changes.addLast(filename);
+            if(changes.size() > MAX_CHANGES) {
+                changes.removeFirst();
+            }
+            version++;
+        }
+    }
+
+    /**
+     * Returns the content hash of an acquired entry, computed on first use.
+     */
+    public String hash(Entry entry) throws IOException {
+        String hash = entry.hash;
+        if(hash == null) {
+            hash = ChecksumUtils.hashFile(entry.path.toFile());
+            // a changed file gets a new entry, so this one stays consistent
+            entry.hash = hash;
+        }
+        return hash;
+    }
+
+    /**
+     * Attributes of a single version of a file.
+     */
+    static class Entry {
+        private final String filename;
+        // as in download tickets
+        private final byte[] name;
+        private final long size;
+        private final int version;
+        private final long modified;
+        private final Path path;
+        // the content if it is stored, path is its file then
+        private final BlobStore.Blob blob;
+        private volatile String hash;
+
+        // acquired and not released yet
+        private final AtomicInteger readers = new AtomicInteger();
+        private volatile boolean retired = false;
+        private final AtomicBoolean collected = new AtomicBoolean();
+
+        Entry(String filename, long size, int version, long modified,
+              Path path, BlobStore.Blob blob) {
+            this.filename = filename;
+            this.name = TicketSigner.encodeName(filename);
+            this.size = size;
+            this.version = version;
+            this.modified = modified;
+            this.path = path;
+            this.blob = blob;
+            // the blob is named by it
+            this.hash = blob == null ? null : blob.getHash();
+        }
+
+        public String getFilename() {
+            return filename;
+        }
+
+        /**
+         * Returns the file name encoded for {@link TicketSigner#verify}.
+         */
+        public byte[] getName() {
+            return name;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public int getVersion() {
+            return version;
+        }
+
+        public long getModified() {
+            return modified;
+        }
+
+        /**
+         * Returns the file holding the content of this version.
+         */
+        public Path getPath() {
+            return path;
+        }
+    }
+
+    /**
+     * Keeps the catalog current with changes to the directory.
+     */
+    class Watcher implements Runnable {
+        private WatchService watchService;
+
+        public Watcher() throws IOException {
+            watchService = dir.getFileSystem().newWatchService();
+            dir.register(watchService,
+                         StandardWatchEventKinds.ENTRY_CREATE,
+                         StandardWatchEventKinds.ENTRY_MODIFY,
+                         StandardWatchEventKinds.ENTRY_DELETE);
+        }
+
+        public void run() {
+            try {
+                while(true) {
+                    WatchKey key = watchService.take();
+                    for(WatchEvent<?> event : key.pollEvents()) {
+                        handle(event);
+                    }
+                    if(!key.reset()) {
+                        logger.warn("Directory " + dir +
+                                    " is no longer watched.");
+                        break;
+                    }
+                }
+            } catch (InterruptedException x) {
+                logger.info("Interrupted. Stopping...");
+            } catch (ClosedWatchServiceException x) {
+                logger.info("Watch service closed. Stopping...");
+            } finally {
+                close();
+            }
+        }
+
+        /**
+         * Applies an event to the catalog. A file that can't be read now
+         * is caught up with by its next event.
+         */
+        private void handle(WatchEvent<?> event) {
+            try {
+                if(event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    logger.debug("Missed events, rescanning.");
+                    scan();
+                } else {
+                    Path path = (Path) event.context();
+                    refresh(path.getFileName().toString());
+                }
+            } catch (IOException x) {
+                logger.warn("Caught IOException while watching " + dir + ".");
+            }
+        }
+
+        public void close() {
+            try {
+                watchService.close();
+            } catch (IOException x) {
+                logger.info("Caught IOException while closing watch service.");
+            }
+        }
+    }
+}
@@ -1,16 +1,26 @@
 package server;
 
 import message.Response;
+import message.request.BatchMetadataRequest;
+import message.request.CatalogChangesRequest;
 import message.request.DownloadFileRequest;
 import message.request.InfoRequest;
+import message.request.MetadataRequest;
 import message.request.UploadRequest;
 import message.request.VersionRequest;
 import message.request.ListRequest;
+import message.request.PingRequest;
+import message.request.StreamDownloadRequest;
+import message.request.RawDownloadRequest;
+import message.request.StreamUploadRequest;
+import message.request.FileChunkRequest;
+import message.request.HashUploadRequest;
 import message.response.*;
 
 import model.DownloadTicket;
 
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.HashMap;
 import java.util.Set;
 import java.util.HashSet;
@@ -26,6 +36,8 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
 import java.util.concurrent.FutureTask;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import java.io.IOException;
 import java.io.BufferedReader;
@@ -35,10 +47,14 @@ import java.io.FileWriter;
 import java.io.InputStreamReader;
 import java.io.File;
 import java.io.FileReader;
+import java.io.FileInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.FileNotFoundException;
 import java.io.InputStream;
+import java.io.OutputStream;
 
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -46,6 +62,14 @@ import java.nio.file.Files;
 import java.nio.file.LinkOption;
 import java.nio.charset.Charset;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardCopyOption;
+
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
 
 import java.net.*;
 
@@ -54,6 +78,11 @@ import cli.Shell;
 
 import util.Config;
 import util.ChecksumUtils;
+import util.MessageStream;
+import util.Heartbeat;
+import util.Protocol;
+import util.ThreadPools;
+import util.TicketSigner;
 
 import org.apache.log4j.Logger;
 import org.apache.log4j.BasicConfigurator;
@@ -71,6 +100,9 @@ public class FileServer implements IFileServer{
     // the thread pool
     protected ExecutorService pool;
 
+    // the executor running proxy connections
+    private ExecutorService connections;
+
     // logger
     private static Logger logger;
 
@@ -106,6 +138,34 @@ public class FileServer implements IFileServer{
     // UDP port of the proxy to send alive packets to
     private int udpPort;
 
+    // "pool" to run proxy connections on a fixed number of threads,
+    // "virtual" to run each on its own virtual thread
+    private String executionMode;
+
+    // number of threads for proxy connections in pool mode
+    private int connectionThreads;
+
+    // content of the uploaded files
+    private BlobStore store;
+
+    // index of the files in the file directory
+    private Catalog catalog;
+
+    // hex encoded key the proxy signs download tickets with
+    private String ticketKey;
+
+    // verifies the download tickets
+    private TicketSigner signer;
+
+    // keeps the catalog current with changes to the file directory
+    private Catalog.Watcher watcher;
+
+    // downloads and uploads in progress
+    private AtomicInteger transfers = new AtomicInteger();
+
+    // bytes sent to clients so far
+    private AtomicLong served = new AtomicLong();
+
     /**
      * main function
      */
@@ -148,6 +208,13 @@ public class FileServer implements IFileServer{
             proxy = config.getString(key);
             key = "proxy.udp.port";
             udpPort = config.getInt(key);
+            key = "execution.mode";
+            executionMode = config.getString(key, ThreadPools.POOL);
+            key = "execution.threads";
+            connectionThreads = config.getInt(key, 10);
+            key = "ticket.key";
+            // may be passed as a system property to keep it out of files
+            ticketKey = System.getProperty(key, config.getString(key, ""));
         } catch (MissingResourceException x) {
             if(key == name) {
                 logger.fatal("Config " + key + 
@@ -157,6 +224,23 @@ public class FileServer implements IFileServer{
             }
             System.exit(1);
         }
+        if(!ThreadPools.isMode(executionMode)) {
+            logger.fatal("Key execution.mode has to be " + ThreadPools.POOL +
+                         " or " + ThreadPools.VIRTUAL + ".");
+            System.exit(1);
+        }
+        if(ticketKey.isEmpty()) {
+            logger.fatal("Key ticket.key is not set. Generate one with " +
+                         "'openssl rand -hex 32' and set it for the proxy " +
+                         "and all file servers.");
+            System.exit(1);
+        }
+        try {
+            signer = new TicketSigner(TicketSigner.parseKey(ticketKey));
+        } catch (IllegalArgumentException x) {
+            logger.fatal("Key ticket.key has to be a hex encoded key.");
+            System.exit(1);
+        }
         
         // set up file directory
         dir = new File(dirString);
@@ -164,10 +248,7 @@ public class FileServer implements IFileServer{
             logger.warn("Specified directory does not exist. Creating it.");
             dir.mkdirs();
         }
-        logger.debug("File list: ");
-        for(String s : dir.list()) {
-            logger.debug(s);
-        }
+        buildCatalog();
         
         this.shell = null;
     }
@@ -193,6 +274,13 @@ public class FileServer implements IFileServer{
             proxy = config.getString(key);
             key = "proxy.udp.port";
             udpPort = config.getInt(key);
+            key = "execution.mode";
+            executionMode = config.getString(key, ThreadPools.POOL);
+            key = "execution.threads";
+            connectionThreads = config.getInt(key, 10);
+            key = "ticket.key";
+            // may be passed as a system property to keep it out of files
+            ticketKey = System.getProperty(key, config.getString(key, ""));
         } catch (MissingResourceException x) {
             if(key == name) {
                 logger.fatal("Config " + key + 
@@ -202,6 +290,23 @@ public class FileServer implements IFileServer{
             }
             System.exit(1);
         }
+        if(!ThreadPools.isMode(executionMode)) {
+            logger.fatal("Key execution.mode has to be " + ThreadPools.POOL +
+                         " or " + ThreadPools.VIRTUAL + ".");
+            System.exit(1);
+        }
+        if(ticketKey.isEmpty()) {
+            logger.fatal("Key ticket.key is not set. Generate one with " +
+                         "'openssl rand -hex 32' and set it for the proxy " +
+                         "and all file servers.");
+            System.exit(1);
+        }
+        try {
+            signer = new TicketSigner(TicketSigner.parseKey(ticketKey));
+        } catch (IllegalArgumentException x) {
+            logger.fatal("Key ticket.key has to be a hex encoded key.");
+            System.exit(1);
+        }
         
         // set up file directory
         dir = new File(dirString);
@@ -209,17 +314,32 @@ public class FileServer implements IFileServer{
             logger.warn("Specified directory does not exist. Creating it.");
             dir.mkdirs();
         }
+        buildCatalog();
+        
+        this.shell = shell;
+    }
+
+    /**
+     * Builds the file catalog from the file directory.
+     */
+    private void buildCatalog() {
+        store = new BlobStore(dir.toPath());
+        catalog = new Catalog(dir.toPath(), store);
+        try {
+            catalog.load();
+        } catch (IOException x) {
+            logger.fatal("Couldn't read file directory " + dirString + ".");
+            System.exit(1);
+        }
         logger.debug("File list: ");
-        for(String s : dir.list()) {
+        for(String s : catalog.getNames()) {
             logger.debug(s);
         }
-        
-        this.shell = shell;
     }
 
     @Override
     public Response list() throws IOException {
-        return new ListResponse(new LinkedHashSet<String>());
+        return new ListResponse(catalog.getNames());
     }
 
     @Override
@@ -229,16 +349,86 @@ public class FileServer implements IFileServer{
 
     @Override
     public Response info(InfoRequest request) throws IOException {
-        String filename = new String("filename.dummy");
-        long size = 0;
-        return new InfoResponse(filename, size);
+        Catalog.Entry entry = catalog.get(request.getFilename());
+        if(entry == null) {
+            logger.debug("File not found.");
+            return new MessageResponse("File not found.");
+        }
+        return new InfoResponse(entry.getFilename(), entry.getSize());
     }
 
     @Override
     public Response version(VersionRequest request) throws IOException {
-        String filename = new String("filename.dummy");
-        int version = 0;
-        return new VersionResponse(filename, version);
+        Catalog.Entry entry = catalog.get(request.getFilename());
+        if(entry == null) {
+            logger.debug("File not found.");
+            return new MessageResponse("File not found.");
+        }
+        return new VersionResponse(entry.getFilename(), entry.getVersion());
+    }
+
+    @Override
+    public Response metadata(MetadataRequest request) throws IOException {
+        // hashing reads the content
+        Catalog.Entry entry = catalog.acquire(request.getFilename());
+        if(entry == null) {
+            logger.debug("File not found.");
+            return new MessageResponse("File not found.");
+        }
+        try {
+            return new MetadataResponse(entry.getFilename(), entry.getSize(),
+                                        entry.getVersion(), 
+                                        catalog.hash(entry));
+        } finally {
+            catalog.release(entry);
+        }
+    }
+
+    @Override
+    public Response changes(CatalogChangesRequest request) throws IOException {
+        // read the version first, later changes are sent again next time
+        long version = catalog.getVersion();
+        Set<String> changed = null;
+        if(request.getEpoch() == catalog.getEpoch() && 
+           request.getSince() >= 0) {
+            changed = catalog.getChanges(request.getSince());
+        }
+        boolean snapshot = changed == null;
+        if(snapshot) {
+            changed = catalog.getNames();
+        }
+        // no hashes, they would have to be computed
+        List<MetadataResponse> present = new ArrayList<MetadataResponse>();
+        List<String> removed = new ArrayList<String>();
+        for(String filename : changed) {
+            Catalog.Entry entry = catalog.get(filename);
+            if(entry != null) {
+                present.add(new MetadataResponse(filename, entry.getSize(),
+                                                 entry.getVersion(), null));
+            } else if(!snapshot) {
+                removed.add(filename);
+            }
+        }
+        return new CatalogChangesResponse(catalog.getEpoch(), version, 
+                                          snapshot, present, removed);
+    }
+
+    @Override
+    public Response metadata(BatchMetadataRequest request) throws IOException {
+        List<MetadataResponse> entries = new ArrayList<MetadataResponse>();
+        for(String filename : request.getFilenames()) {
+            Catalog.Entry entry = catalog.acquire(filename);
+            if(entry != null) {
+                try {
+                    entries.add(new MetadataResponse
+                                (entry.getFilename(), entry.getSize(),
+                                 entry.getVersion(), catalog.hash(entry)));
+                } finally {
+                    catalog.release(entry);
+                }
+            }
+        }
+        return new BatchMetadataResponse(entries);
     }
 
     @Override
@@ -248,12 +438,45 @@ public class FileServer implements IFileServer{
     }
 
 
+    @Override
+    public MessageResponse upload(HashUploadRequest request) 
+        throws IOException {
+        if(!BlobStore.isHash(request.getHash())) {
+            return new UploadResponse(UploadResponse.Type.FAILED);
+        }
+        Catalog.Entry entry = catalog.link(request.getFilename(), 
+                                           request.getVersion(),
+                                           request.getHash(),
+                                           request.getSize());
+        if(entry == null) {
+            return new UploadResponse(UploadResponse.Type.CONTENT_UNKNOWN);
+        }
+        return new UploadResponse(UploadResponse.Type.UPLOADED);
+    }
+
     /**
      * Entry function for running the services
      */
     public void run() throws IOException {
-        // create executor service
+        // create executor service for the lifecycle threads and one for
+        // the proxy connections
         pool = Executors.newFixedThreadPool(10);
+        connections = ThreadPools.create(executionMode, connectionThreads);
+        logger.info("Running proxy connections in " + executionMode + 
+                    " mode.");
+
+        // start watching the file directory
+        logger.info("Starting catalog watcher");
+        try {
+            watcher = catalog.new Watcher();
+            pool.submit(watcher);
+        } catch (IOException x) {
+            logger.warn("Couldn't watch " + dirString + ", only uploads " +
+                        "will update the catalog.");
+        }
+
+        // start deleting unreferenced content
+        pool.submit(store.new Sweeper());
 
         // start ProxyConnectionListener
         logger.info("Starting ProxyConnectionListener");
@@ -409,20 +632,34 @@ public class FileServer implements IFileServer{
                 // configure connection
                 aliveSocket = new DatagramSocket();
                 
-                String msg = new String(String.valueOf(tcpPort));
-                byte[] buf = new byte[msg.length()];
-                buf = msg.getBytes();
-
+                // the heartbeat is rewritten in place for every packet
+                ByteBuffer buf = ByteBuffer.allocate(Heartbeat.SIZE);
 
                 InetAddress address = InetAddress.getByName(proxy);
                 
                 DatagramPacket packet = 
-                    new DatagramPacket(buf, buf.length, address, udpPort); 
+                    new DatagramPacket(buf.array(), Heartbeat.SIZE, address, 
+                                       udpPort); 
                 
                 try {
                     // send keep alive      
                     logger.debug("Starting to send keep alive messages...");
+                    long lastServed = served.get();
+                    long lastSent = System.nanoTime();
                     while(true){
+                        // the rate since the last heartbeat
+                        long now = System.nanoTime();
+                        long total = served.get();
+                        long rate = now == lastSent ? 0 :
+                            (total - lastServed) * 1000000000L / 
+                            (now - lastSent);
+                        lastServed = total;
+                        lastSent = now;
+
+                        Heartbeat.encode(buf, tcpPort, dir.getUsableSpace(),
+                                         transfers.get(), rate,
+                                         catalog.getEpoch(),
+                                         catalog.getVersion());
                         aliveSocket.send(packet);
                         Thread.sleep(alivePeriod);
                     }
@@ -442,7 +679,7 @@ public class FileServer implements IFileServer{
 
     private class ProxyConnectionListener implements Runnable {
         Logger logger;
-        ServerSocket serverSocket;
+        ServerSocketChannel serverChannel;
 
         public ProxyConnectionListener() {
             logger = Logger.getLogger(ProxyConnectionListener.class);
@@ -454,8 +691,11 @@ public class FileServer implements IFileServer{
         public void run() {
             // start listening for connections
             logger.info("Creating server socket on port " + tcpPort + ".");
+            // accepted sockets are backed by a channel, which raw downloads
+            // need for transferTo
             try {
-                serverSocket = new ServerSocket(tcpPort);
+                serverChannel = ServerSocketChannel.open();
+                serverChannel.socket().bind(new InetSocketAddress(tcpPort));
             } 
             catch (IOException x) {
                 logger.warn("Could not listen on port: " + tcpPort);
@@ -468,10 +708,10 @@ public class FileServer implements IFileServer{
                     logger.debug("Waiting for " + i + ". client on " + tcpPort +
                                  ".");
                 
-                    Socket clientSocket = serverSocket.accept();
+                    Socket clientSocket = serverChannel.accept().socket();
                     logger.debug("Accepted Connection.");
                     ProxyConnection con = new ProxyConnection(clientSocket);
-                    pool.submit(con);
+                    connections.submit(con);
                 }
             } catch (IOException x) {
                 logger.info("Interrupted. Stopping...");
@@ -479,7 +719,7 @@ public class FileServer implements IFileServer{
 
             // cleanup
             try {
-                serverSocket.close();
+                serverChannel.close();
             } catch (IOException x) {
                 logger.info("Caught IOException on closing socket");
             }
@@ -487,11 +727,14 @@ public class FileServer implements IFileServer{
         }
 
         public ServerSocket getServerSocket() {
-            return serverSocket;
+            return serverChannel == null ? null : serverChannel.socket();
         }
     }
 
     private class ProxyConnection implements Runnable {
+        // time in ms after which an idle connection is closed
+        private static final int IDLE_TIMEOUT = 60000;
+
         /** 
          * member variables
          */
@@ -512,132 +755,185 @@ public class FileServer implements IFileServer{
         public void run() {
             logger.info("Starting Connection.");
             try {
-                // create streams
-                ObjectInputStream ois = 
-                    new ObjectInputStream(clientSocket.getInputStream());
-                ObjectOutputStream oos = 
-                    new ObjectOutputStream(clientSocket.getOutputStream());
-
-                
-                Response response = null;
-
-                // recieve request
-                Object o = ois.readObject();
-                if(o instanceof ListRequest) {
-                    logger.debug("Got list requeest.");
-
-                    // create file set
-                    Set<String> fileset = new HashSet<String>();
-                    for(String s : dir.list()) {
-                        fileset.add(s);
-                    }
-                    response = new ListResponse(fileset);
-                } 
-                else if(o instanceof InfoRequest) {
-                    logger.debug("Got info request.");
-                    InfoRequest request = (InfoRequest) o;
-                    String filename = request.getFilename();
-
-                    // create file set
-                    Set<String> fileset = new HashSet<String>();
-                    for(String s : dir.list()) {
-                        fileset.add(s);
-                    }
-                    if(fileset.contains(filename)) {
-                        File file = new File(dirString,filename);
-                        long size = file.length();
-                        response = new InfoResponse(filename, size);
-                    } else {
-                        logger.debug("File not found.");
-                        response = new MessageResponse("File not found.");
-                    }
-                }
-                else if(o instanceof VersionRequest) {
-                    logger.debug("Got version request.");
-                    VersionRequest request = (VersionRequest) o;
-                    String filename = request.getFilename();
-
-                    // create file set
-                    Set<String> fileset = new HashSet<String>();
-                    for(String s : dir.list()) {
-                        fileset.add(s);
+                // negotiate the protocol and create streams
+                clientSocket.setSoTimeout(IDLE_TIMEOUT);
+                int version = Protocol.accept(clientSocket.getInputStream(),
+                                              clientSocket.getOutputStream());
+                MessageStream stream = 
+                    MessageStream.open(clientSocket.getInputStream(),
+                                       clientSocket.getOutputStream(),
+                                       version);
+
+                // serve requests until the peer closes the connection, so
+                // the proxy can reuse it
+                while(true) {
+                    Response response = null;
+                    boolean streamed = false;
+
+                    // recieve request, EOF means the peer closed the connection
+                    Object o;
+                    try {
+                        o = stream.read();
+                    } catch (EOFException x) {
+                        break;
                     }
-                    if(fileset.contains(filename)) {
-                        File file = new File(dirString,filename);
-                        response = new VersionResponse(filename, 1);
-                    } else {
-                        logger.debug("File not found.");
-                        response = new MessageResponse("File not found.");
+                    // downloads and uploads count as load in heartbeats
+                    boolean transfer = isTransfer(o);
+                    if(transfer) {
+                        transfers.incrementAndGet();
                     }
-                }
-                else if(o instanceof DownloadFileRequest) {
-                    logger.debug("Got download request.");
-                    DownloadFileRequest request = (DownloadFileRequest) o;
-                    DownloadTicket ticket = request.getTicket();
-
-                    // validate ticket
-                    String user = ticket.getUsername();
-                    String filename = ticket.getFilename();
-                    String checksum = ticket.getChecksum();
-                    InetAddress address = ticket.getAddress();
-                    int port = ticket.getPort();
-                    int version = 1;
-
-                    File file = new File(dirString, filename);
-                    if(ChecksumUtils.verifyChecksum
-                       (user, file, version, checksum)) {
-                        String filestring = "";
-                        BufferedReader br;
-                        try {
-                            br = new BufferedReader(new FileReader(file));
-                            
-                            
-                            while(br.ready()) {
-                                filestring = filestring + br.readLine();
-                            }
-                            byte[] content = filestring.getBytes();
-                            response = new DownloadFileResponse(ticket,
-                                                                content);
-                            br.close();
-                        } catch (FileNotFoundException x) {
-                            response = new MessageResponse("File does not " +
-                                                           "exist.");
-                        } 
-                    }
-                    // ticket invalid
-                    else {
-                        response = new MessageResponse("Checksum corrupted.");
-                    }                    
-                }
-                else if(o instanceof UploadRequest) {
-                    logger.debug("Got upload request.");
-                    UploadRequest request = (UploadRequest) o;
-                    String filename = request.getFilename();
-
-                    // save file
-                    byte[] content = request.getContent();
-                    File file = new File(dirString, filename);
                     try {
-                        if(file.exists()) {
-                            file.delete();
+                        if(o instanceof PingRequest) {
+                            response = new MessageResponse("!pong");
+                        }
+                        else if(o instanceof ListRequest) {
+                            logger.debug("Got list requeest.");
+                            response = list();
+                        } 
+                        else if(o instanceof MetadataRequest) {
+                            logger.debug("Got metadata request.");
+                            response = metadata((MetadataRequest) o);
+                        }
+                        else if(o instanceof BatchMetadataRequest) {
+                            logger.debug("Got batch metadata request.");
+                            response = metadata((BatchMetadataRequest) o);
+                        }
+                        else if(o instanceof CatalogChangesRequest) {
+                            logger.debug("Got catalog changes request.");
+                            response = changes((CatalogChangesRequest) o);
+                        }
+                        else if(o instanceof InfoRequest) {
+                            logger.debug("Got info request.");
+                            response = info((InfoRequest) o);
+                        }
+                        else if(o instanceof VersionRequest) {
+                            logger.debug("Got version request.");
+                            response = version((VersionRequest) o);
+                        }
+                        else if(o instanceof DownloadFileRequest) {
+                            logger.debug("Got download request.");
+                            DownloadFileRequest request = (DownloadFileRequest) o;
+                            DownloadTicket ticket = request.getTicket();
+
+                            // the version is kept until the body is read
+                            Catalog.Entry entry = 
+                                catalog.acquire(ticket.getFilename());
+                            try {
+                                if(entry == null) {
+                                    response = new MessageResponse("File does not " +
+                                                                   "exist.");
+                                } else if(verifyTicket(ticket, entry)) {
+                                    byte[] content = 
+                                        Files.readAllBytes(entry.getPath());
+                                    response = new DownloadFileResponse(ticket,
+                                                                        content);
+                                    served.addAndGet(content.length);
+                                }
+                                // ticket invalid
+                                else {
+                                    response = new MessageResponse("Checksum corrupted.");
+                                }
+                            } catch (IOException x) {
+                                response = new MessageResponse("File does not " +
+                                                               "exist.");
+                            } finally {
+                                catalog.release(entry);
+                            }
+                        }
+                        else if(o instanceof StreamDownloadRequest) {
+                            logger.debug("Got stream download request.");
+                            StreamDownloadRequest request = (StreamDownloadRequest) o;
+                            DownloadTicket ticket = request.getTicket();
+
+                            Catalog.Entry entry = 
+                                catalog.acquire(ticket.getFilename());
+                            try {
+                                if(entry == null) {
+                                    response = new MessageResponse("File does not exist.");
+                                } else if(!verifyTicket(ticket, entry)) {
+                                    response = new MessageResponse("Checksum corrupted.");
+                                } else {
+                                    // header and chunks are written by sendChunked
+                                    sendChunked(stream, ticket, entry.getPath());
+                                    streamed = true;
+                                }
+                            } finally {
+                                catalog.release(entry);
+                            }
+                        }
+                        else if(o instanceof RawDownloadRequest) {
+                            logger.debug("Got raw download request.");
+                            RawDownloadRequest request = (RawDownloadRequest) o;
+                            DownloadTicket ticket = request.getTicket();
+
+                            // the answer is written directly to the socket
+                            DataOutputStream out = 
+                                new DataOutputStream(clientSocket.getOutputStream());
+                            Catalog.Entry entry = 
+                                catalog.acquire(ticket.getFilename());
+                            try {
+                                if(entry == null) {
+                                    out.writeByte(RawDownloadRequest.ERROR);
+                                    out.writeUTF("File does not exist.");
+                                } else if(!verifyTicket(ticket, entry)) {
+                                    out.writeByte(RawDownloadRequest.ERROR);
+                                    out.writeUTF("Checksum corrupted.");
+                                } else {
+                                    sendRaw(out, entry.getPath());
+                                }
+                            } finally {
+                                catalog.release(entry);
+                            }
+                            out.flush();
+                            streamed = true;
+                        }
+                        else if(o instanceof UploadRequest) {
+                            logger.debug("Got upload request.");
+                            UploadRequest request = (UploadRequest) o;
+                            String filename = request.getFilename();
+
+                            // save file as a new version
+                            Path part = catalog.create();
+                            try {
+                                Files.write(part, request.getContent());
+                                MessageDigest digest = 
+                                    ChecksumUtils.newDigest();
+                                digest.update(request.getContent());
+                                catalog.commit(filename, request.getVersion(),
+                                               part, ChecksumUtils.toHex
+                                               (digest.digest()));
+                                response = new UploadResponse
+                                    (UploadResponse.Type.UPLOADED);
+                            } catch (IOException x) {
+                                logger.debug("Couldn't write file.");
+                                catalog.discard(part);
+                                response = new UploadResponse
+                                    (UploadResponse.Type.FAILED);
+                            }
+                        }
+                        else if(o instanceof HashUploadRequest) {
+                            logger.debug("Got hash upload request.");
+                            response = upload((HashUploadRequest) o);
+                        }
+                        else if(o instanceof StreamUploadRequest) {
+                            logger.debug("Got stream upload request.");
+                            StreamUploadRequest request = (StreamUploadRequest) o;
+                            response = receiveChunked(stream, request);
+                        }
+                        else {
+                            logger.debug("Got bad request.");
+                        }
+
+                        // send response back
+                        if(!streamed) {
+                            stream.send(response);
+                        }
+                    } finally {
+                        if(transfer) {
+                            transfers.decrementAndGet();
                         }
-                        file.createNewFile();
-                        FileWriter fw = new FileWriter(file);
-                        BufferedWriter bw = new BufferedWriter(fw);
-                        fw.write(new String(content), 0, content.length);
-                        bw.close();
-                    } catch (IOException x) {
-                        logger.debug("Couldn't write file.");
-                        x.printStackTrace();
                     }
                 }
-                else {
-                    logger.debug("Got bad request.");
-                }
-
-                // send response back
-                oos.writeObject(response);
-                
             } catch (IOException x) {
                 logger.info("Caught IOException.");
             } catch (ClassNotFoundException x) {
@@ -654,6 +950,120 @@ public class FileServer implements IFileServer{
             
             logger.info("Closed connection.");
         }
+
+        private boolean isTransfer(Object request) {
+            return request instanceof DownloadFileRequest ||
+                request instanceof StreamDownloadRequest ||
+                request instanceof RawDownloadRequest ||
+                request instanceof UploadRequest ||
+                request instanceof StreamUploadRequest;
+        }
+
+        /**
+         * Checks the signature of a ticket and that it is for the version
+         * it is served from. Only the entry in memory is looked at.
+         */
+        private boolean verifyTicket(DownloadTicket ticket, 
+                                     Catalog.Entry entry) {
+            return signer.verify(ticket.getToken(), entry.getName(),
+                                 entry.getVersion(), entry.getSize(),
+                                 System.currentTimeMillis());
+        }
+
+        /**
+         * Writes the chunks following the header to a new version, which
+         * replaces the current one only once the upload is complete.
+         */
+        private Response receiveChunked(MessageStream stream, 
+                                        StreamUploadRequest request) 
+            throws IOException, ClassNotFoundException {
+            Path part = catalog.create();
+            try {
+                long received = 0;
+                // hashed on the way, the content is stored by its hash
+                MessageDigest digest = ChecksumUtils.newDigest();
+                try(OutputStream out = new DigestOutputStream
+                    (Files.newOutputStream(part), digest)) {
+                    while(true) {
+                        Object o = stream.read();
+                        if(!(o instanceof FileChunkRequest)) {
+                            logger.warn("Chunk corrupted.");
+                            return new UploadResponse
+                                (UploadResponse.Type.FAILED);
+                        }
+                        FileChunkRequest chunk = (FileChunkRequest) o;
+                        if(chunk.isLast()) {
+                            break;
+                        }
+                        out.write(chunk.getData());
+                        received += chunk.getData().length;
+                    }
+                }
+                if(received != request.getSize()) {
+                    logger.warn("Got " + received + " of " + 
+                                request.getSize() + " bytes.");
+                    return new UploadResponse(UploadResponse.Type.INCOMPLETE);
+                }
+                catalog.commit(request.getFilename(), request.getVersion(),
+                               part, ChecksumUtils.toHex(digest.digest()));
+                part = null;
+                return new UploadResponse(UploadResponse.Type.UPLOADED);
+            } finally {
+                if(part != null) {
+                    catalog.discard(part);
+                }
+            }
+        }
+
+        /**
+         * Sends the size followed by the file body. The body is moved by
+         * {@link FileChannel#transferTo} so the kernel copies it from the
+         * page cache to the socket without passing through the heap.
+         */
+        private void sendRaw(DataOutputStream out, Path file) 
+            throws IOException {
+            SocketChannel channel = clientSocket.getChannel();
+            try(FileChannel fc = FileChannel.open(file, 
+                                                  StandardOpenOption.READ)) {
+                long size = fc.size();
+                out.writeByte(RawDownloadRequest.OK);
+                out.writeLong(size);
+                out.flush();
+
+                long position = 0;
+                while(position < size) {
+                    long sent = fc.transferTo(position, size - position, 
+                                              channel);
+                    if(sent == 0 && fc.size() <= position) {
+                        throw new IOException("File was truncated.");
+                    }
+                    position += sent;
+                    served.addAndGet(sent);
+                }
+            }
+        }
+
+        /**
+         * Sends the file as a header followed by bounded chunks so neither
+         * side has to hold the whole file in memory.
+         */
+        private void sendChunked(MessageStream stream, DownloadTicket ticket,
+                                 Path file) throws IOException {
+            try(InputStream fin = Files.newInputStream(file)) {
+                stream.write(new StreamDownloadResponse(ticket,
+                                                        Files.size(file)));
+                // written chunks are forgotten, buf is reused for the next
+                byte[] buf = new byte[FileChunkResponse.MAX_SIZE];
+                int read;
+                while((read = fin.read(buf)) != -1) {
+                    byte[] data = read == buf.length ? 
+                        buf : Arrays.copyOf(buf, read);
+                    stream.write(new FileChunkResponse(data));
+                    served.addAndGet(read);
+                }
+                stream.send(new FileChunkResponse(new byte[0]));
+            }
+        }
     }
 
     class FileServerCli implements IFileServerCli {
@@ -669,6 +1079,10 @@ public class FileServer implements IFileServer{
 
             // clean up threads
             pool.shutdownNow();
+            connections.shutdownNow();
+            if(watcher != null)
+                watcher.close();
+            catalog.close();
             ServerSocket serverSocket = PCL.getServerSocket();
             if(serverSocket != null)
                 serverSocket.close(); // throws io exc in proxy con listener
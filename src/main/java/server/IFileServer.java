@@ -1,8 +1,12 @@
 package server;
 
 import message.Response;
+import message.request.BatchMetadataRequest;
+import message.request.CatalogChangesRequest;
 import message.request.DownloadFileRequest;
+import message.request.HashUploadRequest;
 import message.request.InfoRequest;
+import message.request.MetadataRequest;
 import message.request.UploadRequest;
 import message.request.VersionRequest;
 import message.response.*;
@@ -78,6 +82,53 @@ public interface IFileServer {
 	 */
 	Response version(VersionRequest request) throws IOException;
 
+	/**
+	 * Returns size, last version and content hash of the file at once, so
+	 * the proxy needs a single round trip to issue a download ticket.
+	 * E.g.:
+	 * <pre>
+	 * > !metadata file.txt
+	 * !metadata file.txt 73 4 9f86d08...
+	 * </pre>
+	 *
+	 * @param request the metadata request
+	 * @return a {@link message.response.MetadataResponse MetadataResponse} containing the file's metadata<br/>
+	 * OR</br>
+	 * a {@link MessageResponse} if an error occurred
+	 * @throws IOException if an I/O error occurs
+	 */
+	Response metadata(MetadataRequest request) throws IOException;
+
+	/**
+	 * Returns the metadata of several files at once, so the proxy needs a
+	 * single round trip per file server to issue a batch of tickets.
+	 * E.g.:
+	 * <pre>
+	 * > !metadata a.txt b.txt
+	 * !metadata a.txt 73 4 9f86d08...
+	 * </pre>
+	 *
+	 * @param request the batch metadata request
+	 * @return a {@link message.response.BatchMetadataResponse BatchMetadataResponse} containing the metadata of the files found
+	 * @throws IOException if an I/O error occurs
+	 */
+	Response metadata(BatchMetadataRequest request) throws IOException;
+
+	/**
+	 * Returns the files that changed since a catalog version, so the proxy
+	 * keeps its view current at a cost proportional to the changes.
+	 * E.g.:
+	 * <pre>
+	 * > !changes 4711 12
+	 * !changes 14 a.txt -b.txt
+	 * </pre>
+	 *
+	 * @param request the catalog changes request
+	 * @return a {@link message.response.CatalogChangesResponse CatalogChangesResponse} listing the changed files, or all files if the changes are not known
+	 * @throws IOException if an I/O error occurs
+	 */
+	Response changes(CatalogChangesRequest request) throws IOException;
+
 	/**
 	 * Saves the file to the shared directory.
 	 * <p/>
@@ -91,4 +142,18 @@ public interface IFileServer {
 	 * @throws IOException if an I/O error occurs
 	 */
 	MessageResponse upload(UploadRequest request) throws IOException;
+
+	/**
+	 * Saves a file whose content is stored already, found by its hash.
+	 * <p/>
+	 * <b>Request</b>:<br/>
+	 * {@code !upload <filename> <size> <hash>}<br/>
+	 * <b>Response:</b><br/>
+	 * {@code !upload <message>}<br/>
+	 *
+	 * @param request the request naming the content of the file
+	 * @return message stating whether the upload was successful, or that the content is unknown
+	 * @throws IOException if an I/O error occurs
+	 */
+	MessageResponse upload(HashUploadRequest request) throws IOException;
 }
@@ -0,0 +1,652 @@
+package util;
+
+import message.request.*;
+import message.response.*;
+
+import model.DownloadTicket;
+import model.FileServerInfo;
+import model.UserInfo;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+import java.net.InetAddress;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import java.nio.charset.Charset;
+
+/**
+ * Hand-written binary encoding of all requests and responses, used from
+ * {@link Protocol#BINARY} on.
+ * <p/>
+ * A message is a one byte type tag followed by its fields in declaration
+ * order. Integers are varints (zig-zag encoded if they may be negative),
+ * strings and byte arrays are prefixed with their length plus one so that
+ * 0 encodes {@code null}, session ids are a presence byte followed by two
+ * longs. Nothing about the classes is sent, so both sides have to agree on
+ * the tags below; changed fields need a new protocol version, new messages
+ * a new tag.
+ * <p/>
+ * Messages are encoded for the negotiated version. Before
+ * {@link Protocol#SIGNED_TICKETS} a download ticket has no field for its
+ * token, the token is put into the checksum field instead: older peers
+ * pass that on unchanged, so their downloads still verify.
+ */
+public final class BinaryCodec {
+    // requests
+    private static final int LOGIN = 1;
+    private static final int LOGOUT = 2;
+    private static final int CREDITS = 3;
+    private static final int BUY = 4;
+    private static final int LIST = 5;
+    private static final int DOWNLOAD_TICKET = 6;
+    private static final int UPLOAD = 7;
+    private static final int STREAM_UPLOAD = 8;
+    private static final int FILE_CHUNK = 9;
+    private static final int DOWNLOAD_FILE = 10;
+    private static final int STREAM_DOWNLOAD = 11;
+    private static final int RAW_DOWNLOAD = 12;
+    private static final int INFO = 13;
+    private static final int VERSION = 14;
+    private static final int METADATA = 15;
+    private static final int PING = 16;
+    private static final int BATCH_DOWNLOAD_TICKET = 17;
+    private static final int BATCH_METADATA = 18;
+    private static final int CATALOG_CHANGES = 19;
+    private static final int HASH_UPLOAD = 20;
+
+    // plain text, used to test the connection
+    private static final int TEXT = 32;
+
+    // responses
+    private static final int MESSAGE_RESPONSE = 64;
+    private static final int LOGIN_RESPONSE = 65;
+    private static final int CREDITS_RESPONSE = 66;
+    private static final int BUY_RESPONSE = 67;
+    private static final int LIST_RESPONSE = 68;
+    private static final int DOWNLOAD_TICKET_RESPONSE = 69;
+    private static final int DOWNLOAD_FILE_RESPONSE = 70;
+    private static final int STREAM_DOWNLOAD_RESPONSE = 71;
+    private static final int FILE_CHUNK_RESPONSE = 72;
+    private static final int INFO_RESPONSE = 73;
+    private static final int VERSION_RESPONSE = 74;
+    private static final int METADATA_RESPONSE = 75;
+    private static final int FILESERVER_INFO_RESPONSE = 76;
+    private static final int USER_INFO_RESPONSE = 77;
+    private static final int BATCH_DOWNLOAD_TICKET_RESPONSE = 78;
+    private static final int BATCH_METADATA_RESPONSE = 79;
+    private static final int CATALOG_CHANGES_RESPONSE = 80;
+    private static final int UPLOAD_RESPONSE = 81;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // marks a ticket token in the checksum field
+    private static final String TOKEN_PREFIX = "hmac:";
+
+    private static final LoginResponse.Type[] LOGIN_TYPES =
+        LoginResponse.Type.values();
+
+    private static final UploadResponse.Type[] UPLOAD_TYPES =
+        UploadResponse.Type.values();
+
+    private BinaryCodec() {
+    }
+
+    /**
+     * Writes a message.
+     *
+     * @param version the negotiated protocol version
+     * @throws IOException if the message has no binary encoding
+     */
+    public static void write(DataOutput out, Object message, int version)
+        throws IOException {
+        if(message instanceof FileChunkRequest) {
+            out.writeByte(FILE_CHUNK);
+            writeBytes(out, ((FileChunkRequest) message).getData());
+        } else if(message instanceof FileChunkResponse) {
+            out.writeByte(FILE_CHUNK_RESPONSE);
+            writeBytes(out, ((FileChunkResponse) message).getData());
+        } else if(message instanceof LoginRequest) {
+            LoginRequest m = (LoginRequest) message;
+            out.writeByte(LOGIN);
+            writeString(out, m.getUsername());
+            writeString(out, m.getPassword());
+        } else if(message instanceof LogoutRequest) {
+            out.writeByte(LOGOUT);
+            writeUUID(out, ((LogoutRequest) message).getSid());
+        } else if(message instanceof CreditsRequest) {
+            out.writeByte(CREDITS);
+            writeUUID(out, ((CreditsRequest) message).getSid());
+        } else if(message instanceof BuyRequest) {
+            BuyRequest m = (BuyRequest) message;
+            out.writeByte(BUY);
+            writeUUID(out, m.getSid());
+            writeSignedVarLong(out, m.getCredits());
+        } else if(message instanceof ListRequest) {
+            out.writeByte(LIST);
+            writeUUID(out, ((ListRequest) message).getSid());
+        } else if(message instanceof DownloadTicketRequest) {
+            DownloadTicketRequest m = (DownloadTicketRequest) message;
+            out.writeByte(DOWNLOAD_TICKET);
+            writeUUID(out, m.getSid());
+            writeString(out, m.getFilename());
+        } else if(message instanceof UploadRequest) {
+            UploadRequest m = (UploadRequest) message;
+            out.writeByte(UPLOAD);
+            writeUUID(out, m.getSid());
+            writeString(out, m.getFilename());
+            writeSignedVarLong(out, m.getVersion());
+            writeBytes(out, m.getContent());
+        } else if(message instanceof StreamUploadRequest) {
+            StreamUploadRequest m = (StreamUploadRequest) message;
+            out.writeByte(STREAM_UPLOAD);
+            writeUUID(out, m.getSid());
+            writeString(out, m.getFilename());
+            writeSignedVarLong(out, m.getVersion());
+            writeSignedVarLong(out, m.getSize());
+        } else if(message instanceof HashUploadRequest) {
+            HashUploadRequest m = (HashUploadRequest) message;
+            out.writeByte(HASH_UPLOAD);
+            writeUUID(out, m.getSid());
+            writeString(out, m.getFilename());
+            writeSignedVarLong(out, m.getVersion());
+            writeSignedVarLong(out, m.getSize());
+            writeString(out, m.getHash());
+        } else if(message instanceof DownloadFileRequest) {
+            out.writeByte(DOWNLOAD_FILE);
+            writeTicket(out, ((DownloadFileRequest) message).getTicket(),
+                        version);
+        } else if(message instanceof StreamDownloadRequest) {
+            out.writeByte(STREAM_DOWNLOAD);
+            writeTicket(out, ((StreamDownloadRequest) message).getTicket(),
+                        version);
+        } else if(message instanceof RawDownloadRequest) {
+            out.writeByte(RAW_DOWNLOAD);
+            writeTicket(out, ((RawDownloadRequest) message).getTicket(),
+                        version);
+        } else if(message instanceof InfoRequest) {
+            out.writeByte(INFO);
+            writeString(out, ((InfoRequest) message).getFilename());
+        } else if(message instanceof VersionRequest) {
+            out.writeByte(VERSION);
+            writeString(out, ((VersionRequest) message).getFilename());
+        } else if(message instanceof MetadataRequest) {
+            out.writeByte(METADATA);
+            writeString(out, ((MetadataRequest) message).getFilename());
+        } else if(message instanceof PingRequest) {
+            out.writeByte(PING);
+        } else if(message instanceof BatchDownloadTicketRequest) {
+            BatchDownloadTicketRequest m = (BatchDownloadTicketRequest) message;
+            out.writeByte(BATCH_DOWNLOAD_TICKET);
+            writeUUID(out, m.getSid());
+            writeStrings(out, m.getFilenames());
+        } else if(message instanceof BatchMetadataRequest) {
+            out.writeByte(BATCH_METADATA);
+            writeStrings(out, ((BatchMetadataRequest) message).getFilenames());
+        } else if(message instanceof CatalogChangesRequest) {
+            CatalogChangesRequest m = (CatalogChangesRequest) message;
+            out.writeByte(CATALOG_CHANGES);
+            out.writeLong(m.getEpoch());
+            writeSignedVarLong(out, m.getSince());
+        } else if(message instanceof String) {
+            out.writeByte(TEXT);
+            writeString(out, (String) message);
+        } else if(message instanceof UploadResponse) {
+            out.writeByte(UPLOAD_RESPONSE);
+            writeVarLong(out, ((UploadResponse) message).getType().ordinal());
+        } else if(message instanceof MessageResponse) {
+            out.writeByte(MESSAGE_RESPONSE);
+            writeString(out, ((MessageResponse) message).getMessage());
+        } else if(message instanceof LoginResponse) {
+            LoginResponse m = (LoginResponse) message;
+            out.writeByte(LOGIN_RESPONSE);
+            writeVarLong(out, m.getType().ordinal());
+            writeUUID(out, m.getSid());
+        } else if(message instanceof CreditsResponse) {
+            out.writeByte(CREDITS_RESPONSE);
+            writeSignedVarLong(out, ((CreditsResponse) message).getCredits());
+        } else if(message instanceof BuyResponse) {
+            out.writeByte(BUY_RESPONSE);
+            writeSignedVarLong(out, ((BuyResponse) message).getCredits());
+        } else if(message instanceof ListResponse) {
+            Set<String> names = ((ListResponse) message).getFileNames();
+            out.writeByte(LIST_RESPONSE);
+            writeVarLong(out, names.size());
+            for(String name : names) {
+                writeString(out, name);
+            }
+        } else if(message instanceof DownloadTicketResponse) {
+            out.writeByte(DOWNLOAD_TICKET_RESPONSE);
+            writeTicket(out, ((DownloadTicketResponse) message).getTicket(),
+                        version);
+        } else if(message instanceof DownloadFileResponse) {
+            DownloadFileResponse m = (DownloadFileResponse) message;
+            out.writeByte(DOWNLOAD_FILE_RESPONSE);
+            writeTicket(out, m.getTicket(), version);
+            writeBytes(out, m.getContent());
+        } else if(message instanceof StreamDownloadResponse) {
+            StreamDownloadResponse m = (StreamDownloadResponse) message;
+            out.writeByte(STREAM_DOWNLOAD_RESPONSE);
+            writeTicket(out, m.getTicket(), version);
+            writeSignedVarLong(out, m.getSize());
+        } else if(message instanceof InfoResponse) {
+            InfoResponse m = (InfoResponse) message;
+            out.writeByte(INFO_RESPONSE);
+            writeString(out, m.getFilename());
+            writeSignedVarLong(out, m.getSize());
+        } else if(message instanceof VersionResponse) {
+            VersionResponse m = (VersionResponse) message;
+            out.writeByte(VERSION_RESPONSE);
+            writeString(out, m.getFilename());
+            writeSignedVarLong(out, m.getVersion());
+        } else if(message instanceof MetadataResponse) {
+            out.writeByte(METADATA_RESPONSE);
+            writeMetadata(out, (MetadataResponse) message);
+        } else if(message instanceof BatchDownloadTicketResponse) {
+            BatchDownloadTicketResponse m = 
+                (BatchDownloadTicketResponse) message;
+            out.writeByte(BATCH_DOWNLOAD_TICKET_RESPONSE);
+            writeVarLong(out, m.getTickets().size());
+            for(DownloadTicket ticket : m.getTickets()) {
+                writeTicket(out, ticket, version);
+            }
+            writeStrings(out, m.getMissing());
+        } else if(message instanceof BatchMetadataResponse) {
+            List<MetadataResponse> entries = 
+                ((BatchMetadataResponse) message).getEntries();
+            out.writeByte(BATCH_METADATA_RESPONSE);
+            writeVarLong(out, entries.size());
+            for(MetadataResponse entry : entries) {
+                writeMetadata(out, entry);
+            }
+        } else if(message instanceof CatalogChangesResponse) {
+            CatalogChangesResponse m = (CatalogChangesResponse) message;
+            out.writeByte(CATALOG_CHANGES_RESPONSE);
+            out.writeLong(m.getEpoch());
+            writeSignedVarLong(out, m.getVersion());
+            out.writeBoolean(m.isSnapshot());
+            writeVarLong(out, m.getPresent().size());
+            for(MetadataResponse file : m.getPresent()) {
+                writeMetadata(out, file);
+            }
+            writeStrings(out, m.getRemoved());
+        } else if(message instanceof FileServerInfoResponse) {
+            List<FileServerInfo> infos =
+                ((FileServerInfoResponse) message).getFileServerInfo();
+            out.writeByte(FILESERVER_INFO_RESPONSE);
+            writeVarLong(out, infos.size());
+            for(FileServerInfo info : infos) {
+                writeAddress(out, info.getAddress());
+                writeVarLong(out, info.getPort());
+                writeSignedVarLong(out, info.getUsage());
+                out.writeBoolean(info.isOnline());
+                writeSignedVarLong(out, info.getReplicaLatency());
+                writeSignedVarLong(out, info.getReplicaFailures());
+            }
+        } else if(message instanceof UserInfoResponse) {
+            List<UserInfo> infos = ((UserInfoResponse) message).getUserInfo();
+            out.writeByte(USER_INFO_RESPONSE);
+            writeVarLong(out, infos.size());
+            for(UserInfo info : infos) {
+                writeString(out, info.getName());
+                writeSignedVarLong(out, info.getCredits());
+                out.writeBoolean(info.isOnline());
+            }
+        } else {
+            throw new IOException("No binary encoding for " +
+                                  (message == null ? null :
+                                   message.getClass().getName()) + ".");
+        }
+    }
+
+    /**
+     * Reads a message.
+     *
+     * @param version the negotiated protocol version
+     * @throws IOException if the type tag is unknown or the input ends
+     */
+    public static Object read(DataInput in, int version) throws IOException {
+        int tag = in.readUnsignedByte();
+        switch(tag) {
+        case FILE_CHUNK:
+            return new FileChunkRequest(readBytes(in));
+        case FILE_CHUNK_RESPONSE:
+            return new FileChunkResponse(readBytes(in));
+        case LOGIN:
+            return new LoginRequest(readString(in), readString(in));
+        case LOGOUT:
+            return new LogoutRequest(readUUID(in));
+        case CREDITS:
+            return new CreditsRequest(readUUID(in));
+        case BUY:
+            return new BuyRequest(readUUID(in), readSignedVarLong(in));
+        case LIST:
+            return new ListRequest(readUUID(in));
+        case DOWNLOAD_TICKET:
+            return new DownloadTicketRequest(readUUID(in), readString(in));
+        case UPLOAD:
+            return new UploadRequest(readUUID(in), readString(in),
+                                     (int) readSignedVarLong(in),
+                                     readBytes(in));
+        case STREAM_UPLOAD:
+            return new StreamUploadRequest(readUUID(in), readString(in),
+                                           (int) readSignedVarLong(in),
+                                           readSignedVarLong(in));
+        case HASH_UPLOAD:
+            return new HashUploadRequest(readUUID(in), readString(in),
+                                         (int) readSignedVarLong(in),
+                                         readSignedVarLong(in), 
+                                         readString(in));
+        case DOWNLOAD_FILE:
+            return new DownloadFileRequest(readTicket(in, version));
+        case STREAM_DOWNLOAD:
+            return new StreamDownloadRequest(readTicket(in, version));
+        case RAW_DOWNLOAD:
+            return new RawDownloadRequest(readTicket(in, version));
+        case INFO:
+            return new InfoRequest(readString(in));
+        case VERSION:
+            return new VersionRequest(readString(in));
+        case METADATA:
+            return new MetadataRequest(readString(in));
+        case PING:
+            return new PingRequest();
+        case BATCH_DOWNLOAD_TICKET:
+            return new BatchDownloadTicketRequest(readUUID(in), 
+                                                  readStrings(in));
+        case BATCH_METADATA:
+            return new BatchMetadataRequest(readStrings(in));
+        case CATALOG_CHANGES:
+            return new CatalogChangesRequest(in.readLong(), 
+                                             readSignedVarLong(in));
+        case TEXT:
+            return readString(in);
+        case MESSAGE_RESPONSE:
+            return new MessageResponse(readString(in));
+        case UPLOAD_RESPONSE: {
+            int type = (int) readVarLong(in);
+            if(type >= UPLOAD_TYPES.length) {
+                throw new IOException("Unknown upload response " + type + ".");
+            }
+            return new UploadResponse(UPLOAD_TYPES[type]);
+        }
+        case LOGIN_RESPONSE: {
+            int type = (int) readVarLong(in);
+            if(type >= LOGIN_TYPES.length) {
+                throw new IOException("Unknown login response " + type + ".");
+            }
+            return new LoginResponse(LOGIN_TYPES[type], readUUID(in));
+        }
+        case CREDITS_RESPONSE:
+            return new CreditsResponse(readSignedVarLong(in));
+        case BUY_RESPONSE:
+            return new BuyResponse(readSignedVarLong(in));
+        case LIST_RESPONSE: {
+            int count = readCount(in);
+            Set<String> names = new LinkedHashSet<String>();
+            for(int i = 0; i < count; i++) {
+                names.add(readString(in));
+            }
+            return new ListResponse(names);
+        }
+        case DOWNLOAD_TICKET_RESPONSE:
+            return new DownloadTicketResponse(readTicket(in, version));
+        case DOWNLOAD_FILE_RESPONSE:
+            return new DownloadFileResponse(readTicket(in, version),
+                                            readBytes(in));
+        case STREAM_DOWNLOAD_RESPONSE:
+            return new StreamDownloadResponse(readTicket(in, version),
+                                              readSignedVarLong(in));
+        case INFO_RESPONSE:
+            return new InfoResponse(readString(in), readSignedVarLong(in));
+        case VERSION_RESPONSE:
+            return new VersionResponse(readString(in),
+                                       (int) readSignedVarLong(in));
+        case METADATA_RESPONSE:
+            return readMetadata(in);
+        case BATCH_DOWNLOAD_TICKET_RESPONSE: {
+            int count = readCount(in);
+            List<DownloadTicket> tickets = new ArrayList<DownloadTicket>();
+            for(int i = 0; i < count; i++) {
+                tickets.add(readTicket(in, version));
+            }
+            return new BatchDownloadTicketResponse(tickets, readStrings(in));
+        }
+        case BATCH_METADATA_RESPONSE: {
+            int count = readCount(in);
+            List<MetadataResponse> entries = 
+                new ArrayList<MetadataResponse>();
+            for(int i = 0; i < count; i++) {
+                entries.add(readMetadata(in));
+            }
+            return new BatchMetadataResponse(entries);
+        }
+        case CATALOG_CHANGES_RESPONSE: {
+            long epoch = in.readLong();
+            long catalogVersion = readSignedVarLong(in);
+            boolean snapshot = in.readBoolean();
+            int count = readCount(in);
+            List<MetadataResponse> present = 
+                new ArrayList<MetadataResponse>();
+            for(int i = 0; i < count; i++) {
+                present.add(readMetadata(in));
+            }
+            return new CatalogChangesResponse(epoch, catalogVersion, snapshot,
+                                              present, readStrings(in));
+        }
+        case FILESERVER_INFO_RESPONSE: {
+            int count = readCount(in);
+            List<FileServerInfo> infos = new ArrayList<FileServerInfo>();
+            for(int i = 0; i < count; i++) {
+                infos.add(new FileServerInfo(readAddress(in),
+                                             (int) readVarLong(in),
+                                             readSignedVarLong(in),
+                                             in.readBoolean(),
+                                             readSignedVarLong(in),
+                                             readSignedVarLong(in)));
+            }
+            return new FileServerInfoResponse(infos);
+        }
+        case USER_INFO_RESPONSE: {
+            int count = readCount(in);
+            List<UserInfo> infos = new ArrayList<UserInfo>();
+            for(int i = 0; i < count; i++) {
+                infos.add(new UserInfo(readString(in), readSignedVarLong(in),
+                                       in.readBoolean()));
+            }
+            return new UserInfoResponse(infos);
+        }
+        default:
+            throw new IOException("Unknown message type " + tag + ".");
+        }
+    }
+
+    /**
+     * Writes an unsigned varint, 7 bits per byte, low bits first.
+     */
+    public static void writeVarLong(DataOutput out, long value)
+        throws IOException {
+        while((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    public static long readVarLong(DataInput in) throws IOException {
+        long value = 0;
+        for(int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Varint too long.");
+    }
+
+    /**
+     * Writes a zig-zag encoded varint, so small negative values stay short.
+     */
+    public static void writeSignedVarLong(DataOutput out, long value)
+        throws IOException {
+        writeVarLong(out, (value << 1) ^ (value >> 63));
+    }
+
+    public static long readSignedVarLong(DataInput in) throws IOException {
+        long value = readVarLong(in);
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    public static void writeBytes(DataOutput out, byte[] bytes)
+        throws IOException {
+        if(bytes == null) {
+            writeVarLong(out, 0);
+            return;
+        }
+        writeVarLong(out, bytes.length + 1L);
+        out.write(bytes);
+    }
+
+    public static byte[] readBytes(DataInput in) throws IOException {
+        long length = readVarLong(in);
+        if(length == 0) {
+            return null;
+        }
+        if(length - 1 > Frames.MAX_SIZE) {
+            throw new IOException("Field of " + (length - 1) +
+                                  " bytes rejected.");
+        }
+        byte[] bytes = new byte[(int) (length - 1)];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    public static void writeString(DataOutput out, String s)
+        throws IOException {
+        writeBytes(out, s == null ? null : s.getBytes(UTF8));
+    }
+
+    public static String readString(DataInput in) throws IOException {
+        byte[] bytes = readBytes(in);
+        return bytes == null ? null : new String(bytes, UTF8);
+    }
+
+    private static void writeStrings(DataOutput out, List<String> strings)
+        throws IOException {
+        writeVarLong(out, strings.size());
+        for(String s : strings) {
+            writeString(out, s);
+        }
+    }
+
+    private static List<String> readStrings(DataInput in) throws IOException {
+        int count = readCount(in);
+        List<String> strings = new ArrayList<String>();
+        for(int i = 0; i < count; i++) {
+            strings.add(readString(in));
+        }
+        return strings;
+    }
+
+    private static void writeMetadata(DataOutput out, MetadataResponse m)
+        throws IOException {
+        writeString(out, m.getFilename());
+        writeSignedVarLong(out, m.getSize());
+        writeSignedVarLong(out, m.getVersion());
+        writeString(out, m.getHash());
+    }
+
+    private static MetadataResponse readMetadata(DataInput in)
+        throws IOException {
+        return new MetadataResponse(readString(in), readSignedVarLong(in),
+                                    (int) readSignedVarLong(in),
+                                    readString(in));
+    }
+
+    private static int readCount(DataInput in) throws IOException {
+        long count = readVarLong(in);
+        if(count > Frames.MAX_SIZE) {
+            throw new IOException("Count of " + count + " rejected.");
+        }
+        return (int) count;
+    }
+
+    private static void writeUUID(DataOutput out, UUID uuid)
+        throws IOException {
+        out.writeBoolean(uuid != null);
+        if(uuid != null) {
+            out.writeLong(uuid.getMostSignificantBits());
+            out.writeLong(uuid.getLeastSignificantBits());
+        }
+    }
+
+    private static UUID readUUID(DataInput in) throws IOException {
+        if(!in.readBoolean()) {
+            return null;
+        }
+        return new UUID(in.readLong(), in.readLong());
+    }
+
+    private static void writeAddress(DataOutput out, InetAddress address)
+        throws IOException {
+        writeBytes(out, address == null ? null : address.getAddress());
+    }
+
+    private static InetAddress readAddress(DataInput in) throws IOException {
+        byte[] bytes = readBytes(in);
+        return bytes == null ? null : InetAddress.getByAddress(bytes);
+    }
+
+    private static void writeTicket(DataOutput out, DownloadTicket ticket,
+                                    int version) throws IOException {
+        out.writeBoolean(ticket != null);
+        if(ticket != null) {
+            String checksum = ticket.getChecksum();
+            if(version < Protocol.SIGNED_TICKETS &&
+               ticket.getToken() != null) {
+                checksum = TOKEN_PREFIX +
+                    ChecksumUtils.toHex(ticket.getToken());
+            }
+            writeString(out, ticket.getUsername());
+            writeString(out, ticket.getFilename());
+            writeString(out, checksum);
+            writeAddress(out, ticket.getAddress());
+            writeVarLong(out, ticket.getPort());
+            if(version >= Protocol.SIGNED_TICKETS) {
+                writeBytes(out, ticket.getToken());
+            }
+        }
+    }
+
+    private static DownloadTicket readTicket(DataInput in, int version)
+        throws IOException {
+        if(!in.readBoolean()) {
+            return null;
+        }
+        DownloadTicket ticket = 
+            new DownloadTicket(readString(in), readString(in),
+                               readString(in), readAddress(in),
+                               (int) readVarLong(in));
+        if(version >= Protocol.SIGNED_TICKETS) {
+            ticket.setToken(readBytes(in));
+        } else if(ticket.getChecksum() != null &&
+                  ticket.getChecksum().startsWith(TOKEN_PREFIX)) {
+            try {
+                ticket.setToken(TicketSigner.parseKey
+                                (ticket.getChecksum().substring
+                                 (TOKEN_PREFIX.length())));
+            } catch (IllegalArgumentException x) {
+                throw new IOException("Malformed ticket token.");
+            }
+            ticket.setChecksum(null);
+        }
+        return ticket;
+    }
+}
@@ -1,6 +1,11 @@
 package util;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
 /**
  * Provides checksum related utility methods.
@@ -23,7 +28,7 @@ public final class ChecksumUtils {
 	 */
 	public static String generateChecksum(String user, String filename, 
                                               int version, long fileSize) {
-		return user + SEPARATOR + filename + SEPARATOR + fileSize;
+		return user + SEPARATOR + filename + SEPARATOR + version + SEPARATOR + fileSize;
 	}
 
 	/**
@@ -38,7 +43,69 @@ public final class ChecksumUtils {
 	 */
 	public static boolean verifyChecksum(String user, File file, 
                                              int version, String checksum) {
-		String actual = generateChecksum(user, file.getName(), version, file.length());
+		return verifyChecksum(user, file.getName(), version, file.length(), checksum);
+	}
+
+	/**
+	 * Checks whether the given {@code checksum} is valid for a file of known size, without accessing the file.
+	 *
+	 * @param user     the the name of the user able to use the checksum
+	 * @param filename the unqualified name of the file
+	 * @param version  the version of the file to download
+	 * @param fileSize the size of that version
+	 * @param checksum the checksum to verify
+	 * @return {@code true} if the checksum is valid, {@code false} otherwise
+	 */
+	public static boolean verifyChecksum(String user, String filename, int version,
+                                             long fileSize, String checksum) {
+		String actual = generateChecksum(user, filename, version, fileSize);
 		return actual.equals(checksum);
 	}
+
+	/**
+	 * Computes the SHA-256 hash of a file's content.
+	 *
+	 * @param file the file
+	 * @return the hex encoded hash
+	 * @throws IOException if the file cannot be read
+	 */
+	public static String hashFile(File file) throws IOException {
+		MessageDigest digest = newDigest();
+		try (InputStream in = new FileInputStream(file)) {
+			byte[] buf = new byte[64 * 1024];
+			int read;
+			while ((read = in.read(buf)) != -1) {
+				digest.update(buf, 0, read);
+			}
+		}
+		return toHex(digest.digest());
+	}
+
+	/**
+	 * Creates a digest computing the content hashes used for files.
+	 *
+	 * @return a new SHA-256 digest
+	 */
+	public static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Hex encodes the given bytes, e.g. a digest.
+	 *
+	 * @param bytes the bytes to encode
+	 * @return the lower case hex string
+	 */
+	public static String toHex(byte[] bytes) {
+		StringBuilder sb = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+			sb.append(Character.forDigit(b & 0xf, 16));
+		}
+		return sb.toString();
+	}
 }
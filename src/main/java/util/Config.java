@@ -1,5 +1,7 @@
 package util;
 
+import java.util.HashMap;
+import java.util.Map;
 import java.util.ResourceBundle;
 
 /**
@@ -9,6 +11,8 @@ public final class Config {
 
 	private final ResourceBundle bundle;
 
+	private final Map<String, String> overrides;
+
 	/**
 	 * Creates an instance of Config which reads configuration data form
 	 * {@code .properties} file with given name found in classpath.
@@ -16,7 +20,26 @@ public final class Config {
 	 * @param name the name of the .properties file
 	 */
 	public Config(final String name) {
-		this.bundle = ResourceBundle.getBundle(name);
+		this(ResourceBundle.getBundle(name), new HashMap<String, String>());
+	}
+
+	private Config(ResourceBundle bundle, Map<String, String> overrides) {
+		this.bundle = bundle;
+		this.overrides = overrides;
+	}
+
+	/**
+	 * Returns a copy of this config with the given key set to another
+	 * value, e.g. to run a component on a directory of its own.
+	 *
+	 * @param key   the property's key
+	 * @param value the value to use instead of the one of the file
+	 * @return the new config
+	 */
+	public Config with(String key, String value) {
+		Map<String, String> copy = new HashMap<String, String>(this.overrides);
+		copy.put(key, value);
+		return new Config(this.bundle, copy);
 	}
 
 	/**
@@ -27,6 +50,9 @@ public final class Config {
 	 * @see ResourceBundle#getString(String)
 	 */
 	public String getString(String key) {
+		if (this.overrides.containsKey(key)) {
+			return this.overrides.get(key);
+		}
 		return this.bundle.getString(key);
 	}
 
@@ -40,4 +66,33 @@ public final class Config {
 	public int getInt(String key) {
 		return Integer.parseInt(getString(key));
 	}
+
+	/**
+	 * Returns the value as String for the given key or {@code defaultValue}
+	 * if the key is not defined.
+	 *
+	 * @param key          the property's key
+	 * @param defaultValue the value to return if the key is missing
+	 * @return String value of the property
+	 */
+	public String getString(String key, String defaultValue) {
+		return contains(key) ? getString(key) : defaultValue;
+	}
+
+	/**
+	 * Returns the value as {@code int} for the given key or {@code defaultValue}
+	 * if the key is not defined.
+	 *
+	 * @param key          the property's key
+	 * @param defaultValue the value to return if the key is missing
+	 * @return int value of the property
+	 * @throws NumberFormatException if the String cannot be parsed to an Integer
+	 */
+	public int getInt(String key, int defaultValue) {
+		return contains(key) ? getInt(key) : defaultValue;
+	}
+
+	private boolean contains(String key) {
+		return this.overrides.containsKey(key) || this.bundle.containsKey(key);
+	}
 }
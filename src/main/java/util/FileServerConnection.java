@@ -2,14 +2,35 @@ package util;
 
 import message.Response;
 import message.Request;
+import message.request.BatchMetadataRequest;
+import message.request.CatalogChangesRequest;
+import message.request.InfoRequest;
+import message.request.ListRequest;
+import message.request.MetadataRequest;
+import message.request.PingRequest;
+import message.request.RawDownloadRequest;
+import message.request.VersionRequest;
+import message.response.FileChunkResponse;
+import message.response.MessageResponse;
+import message.response.StreamDownloadResponse;
 
 import java.util.concurrent.Callable;
 
+import util.FileServerConnectionPool.Connection;
+
 import java.net.*;
 
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardCopyOption;
 
 import org.apache.log4j.Logger;
 import org.apache.log4j.BasicConfigurator;
@@ -21,47 +42,293 @@ public class FileServerConnection implements Callable {
     private Integer port;
     private Request request;
 
-    public FileServerConnection(String host, Integer port, Request request) {
+    // pool to take connections from, null to use a fresh connection
+    private FileServerConnectionPool pool;
+
+    // time in ms to wait for the file server to answer, 0 to wait forever
+    private int readTimeout;
+
+    // connection opened by open()
+    private Connection con;
+
+    /**
+     * @param readTimeout time in ms to wait for the file server to answer,
+     *                    0 to wait forever
+     */
+    public FileServerConnection(String host, Integer port, Request request,
+                                int readTimeout) {
+        this(null, host, port, request, readTimeout);
+    }
+
+    public FileServerConnection(FileServerConnectionPool pool, String host, 
+                                Integer port, Request request) {
+        this(pool, host, port, request, pool.getReadTimeout());
+    }
+
+    private FileServerConnection(FileServerConnectionPool pool, String host,
+                                 Integer port, Request request,
+                                 int readTimeout) {
         logger = Logger.getLogger(FileServerConnection.class);
         logger.setLevel(Level.toLevel("FATAL"));
+        this.pool = pool;
         this.host = host;
         this.port = port;
         this.request = request;
+        this.readTimeout = readTimeout;
     }
 
     public Response call() {
-        Socket socket = null;
-        ObjectOutputStream oos;
-        ObjectInputStream ois;
+        Connection con = null;
         Response response = null;
         try {
             logger.debug("Connectiong to " + host + ":" + port+ ".");
-            socket = new Socket(host, port);
-
-            oos = new ObjectOutputStream(socket.getOutputStream());
-            ois = new ObjectInputStream(socket.getInputStream());
-                
-            logger.debug("Writing request to fs.");
-            oos.writeObject(request);
-
-            logger.debug("Reading request from fs.");
-            Object o = ois.readObject();
-            if(o instanceof Response) {
-                logger.debug("Got Response.");
-                response = (Response) o;
-            } else {
-                logger.warn("Response corrupted.");
+            con = connect();
+            try {
+                response = con.call(request);
+            } catch(IOException x) {
+                // the pooled connection may have gone stale, but the server
+                // may also have got the request: only what can be done
+                // twice is sent again, and not to a server that is slow
+                if(!con.isReused() || !isIdempotent(request) ||
+                   x instanceof SocketTimeoutException) {
+                    throw x;
+                }
+                con.close();
+                con = new Connection(host, port, readTimeout);
+                response = con.call(request);
             }
+            logger.debug("Got Response.");
+            release(con);
+            con = null;
         } catch(UnknownHostException x) {
             logger.info("Host not known.");
         } catch(IOException x) {
             logger.info("Coudln't connect to file server.");
-            x.printStackTrace();
+        } finally {
+            if(con != null) {
+                con.close();
+            }
+        }
+
+        logger.debug("Returning.");
+        return response;
+    }
+
+    /**
+     * Sends the request and writes a chunked response to {@code target}.
+     * Chunks are written to disk as they arrive, the target is replaced
+     * only after the last chunk was received.
+     *
+     * @param target the file to save the content to
+     * @return the {@link StreamDownloadResponse} header on success, the
+     * response of the server otherwise
+     */
+    public Response receive(File target) {
+        Connection con = null;
+        File part = null;
+        Response response = null;
+        try {
+            logger.debug("Connectiong to " + host + ":" + port+ ".");
+            con = new Connection(host, port, readTimeout);
+            con.send(request);
+
+            Object o = con.read();
+            if(!(o instanceof StreamDownloadResponse)) {
+                return o instanceof Response ? (Response) o : null;
+            }
+            StreamDownloadResponse header = (StreamDownloadResponse) o;
+
+            part = new File(target.getParentFile(), 
+                            "." + target.getName() + ".part");
+            long received = 0;
+            try(OutputStream out = new FileOutputStream(part)) {
+                while(true) {
+                    o = con.read();
+                    if(!(o instanceof FileChunkResponse)) {
+                        logger.warn("Chunk corrupted.");
+                        return null;
+                    }
+                    FileChunkResponse chunk = (FileChunkResponse) o;
+                    if(chunk.isLast()) {
+                        break;
+                    }
+                    out.write(chunk.getData());
+                    received += chunk.getData().length;
+                }
+            }
+
+            if(received != header.getSize()) {
+                logger.warn("Got " + received + " of " + header.getSize() +
+                            " bytes.");
+                return null;
+            }
+            Files.move(part.toPath(), target.toPath(),
+                       StandardCopyOption.REPLACE_EXISTING);
+            part = null;
+            response = header;
+        } catch(UnknownHostException x) {
+            logger.info("Host not known.");
+        } catch(IOException x) {
+            logger.info("Coudln't download from file server.");
         } catch (ClassNotFoundException x) {
             logger.info("Class not found.");
+        } finally {
+            if(part != null) {
+                part.delete();
+            }
+            if(con != null) {
+                con.close();
+            }
         }
+        return response;
+    }
 
-        logger.debug("Returning.");
+    /**
+     * Sends a {@link RawDownloadRequest} and copies the raw body of the
+     * answer to {@code target} with {@link FileChannel#transferFrom}.
+     *
+     * @param target the file to save the content to
+     * @return a {@link MessageResponse} stating the result, {@code null} if
+     * the transfer broke off
+     */
+    public Response receiveRaw(File target) {
+        Connection con = null;
+        File part = null;
+        Response response = null;
+        try {
+            logger.debug("Connectiong to " + host + ":" + port+ ".");
+            con = new Connection(host, port, readTimeout);
+            Socket socket = con.getSocket();
+            SocketChannel channel = socket.getChannel();
+
+            // the message stream is only used to send the request
+            con.send(request);
+
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            if(in.readByte() != RawDownloadRequest.OK) {
+                return new MessageResponse(in.readUTF());
+            }
+            long size = in.readLong();
+
+            part = new File(target.getParentFile(), 
+                            "." + target.getName() + ".part");
+            try(FileChannel fc = FileChannel.open
+                (part.toPath(), StandardOpenOption.CREATE,
+                 StandardOpenOption.WRITE, 
+                 StandardOpenOption.TRUNCATE_EXISTING)) {
+                long position = 0;
+                while(position < size) {
+                    long read = fc.transferFrom(channel, position, 
+                                                size - position);
+                    if(read == 0) {
+                        logger.warn("Got " + position + " of " + size +
+                                    " bytes.");
+                        return null;
+                    }
+                    position += read;
+                }
+            }
+
+            Files.move(part.toPath(), target.toPath(),
+                       StandardCopyOption.REPLACE_EXISTING);
+            part = null;
+            response = new MessageResponse
+                (String.format("!data %s %d", target.getName(), size));
+        } catch(UnknownHostException x) {
+            logger.info("Host not known.");
+        } catch(IOException x) {
+            logger.info("Coudln't download from file server.");
+        } finally {
+            if(part != null) {
+                part.delete();
+            }
+            if(con != null) {
+                con.close();
+            }
+        }
         return response;
     }
+
+    /**
+     * Connects to the file server and sends the request, leaving the
+     * connection open for further messages such as upload chunks.
+     *
+     * @throws IOException if the connection could not be established
+     */
+    public void open() throws IOException {
+        logger.debug("Connectiong to " + host + ":" + port+ ".");
+        con = connect();
+        con.send(request);
+    }
+
+    /**
+     * Sends a further message over the connection opened by {@link #open}.
+     * Buffers referenced by earlier messages may be reused by the caller.
+     *
+     * @param message the message to send
+     * @throws IOException if an I/O error occurs
+     */
+    public void send(Object message) throws IOException {
+        con.send(message);
+    }
+
+    /**
+     * Reads the final response of the file server and gives back the
+     * connection opened by {@link #open}.
+     *
+     * @return the response, {@code null} if it couldn't be read
+     */
+    public Response finish() {
+        Response response = null;
+        try {
+            response = con.receive();
+            release(con);
+            con = null;
+        } catch(IOException x) {
+            logger.info("Coudln't read response of file server.");
+        } finally {
+            close();
+        }
+        return response;
+    }
+
+    /**
+     * Closes the connection opened by {@link #open} unless it was already
+     * given back by {@link #finish}.
+     */
+    public void close() {
+        if(con != null) {
+            con.close();
+            con = null;
+        }
+    }
+
+    private Connection connect() throws IOException {
+        if(pool != null) {
+            return pool.borrow(host, port);
+        }
+        return new Connection(host, port, readTimeout);
+    }
+
+    /**
+     * Returns whether the request only reads, so sending it twice does no
+     * harm. Downloads are left out, they count as transfers of the server.
+     */
+    private static boolean isIdempotent(Request request) {
+        return request instanceof PingRequest ||
+            request instanceof ListRequest ||
+            request instanceof MetadataRequest ||
+            request instanceof BatchMetadataRequest ||
+            request instanceof CatalogChangesRequest ||
+            request instanceof InfoRequest ||
+            request instanceof VersionRequest;
+    }
+
+    private void release(Connection con) {
+        if(pool != null) {
+            pool.release(con);
+        } else {
+            con.close();
+        }
+    }
 }
@@ -0,0 +1,274 @@
+package util;
+
+import message.Request;
+import message.Response;
+import message.request.PingRequest;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import java.nio.channels.SocketChannel;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Keeps connections to file servers open for reuse.
+ * <p/>
+ * Idle connections are kept per (host, port) key. A connection that was idle
+ * for longer than {@link #VALIDATE_AFTER} ms is checked with a
+ * {@link PingRequest} before it is handed out again, connections idle for
+ * longer than {@link #IDLE_TIMEOUT} ms are closed by a background sweeper.
+ * File servers close idle connections after a minute, so the idle timeout
+ * has to stay below that.
+ */
+public class FileServerConnectionPool {
+    // idle time in ms after which a connection is closed
+    public static final long IDLE_TIMEOUT = 30000;
+
+    // idle time in ms after which a connection is checked before reuse
+    public static final long VALIDATE_AFTER = 2000;
+
+    // maximum number of idle connections kept per file server
+    public static final int MAX_IDLE = 4;
+
+    private Logger logger;
+
+    private ConcurrentHashMap<String, BlockingDeque<Connection>> idle;
+
+    private Timer sweeper;
+
+    // time in ms to wait for a file server to answer, 0 to wait forever
+    private int readTimeout;
+
+    /**
+     * @param readTimeout time in ms to wait for a file server to answer,
+     *                    0 to wait forever
+     */
+    public FileServerConnectionPool(int readTimeout) {
+        logger = Logger.getLogger(FileServerConnectionPool.class);
+        this.readTimeout = readTimeout;
+        idle = new ConcurrentHashMap<String, BlockingDeque<Connection>>();
+
+        // start as daemon
+        sweeper = new Timer(true);
+        sweeper.schedule(new Sweeper(), IDLE_TIMEOUT / 2, IDLE_TIMEOUT / 2);
+    }
+
+    /**
+     * Hands out a healthy connection to the given file server, opening a
+     * new one if no idle connection is available.
+     *
+     * @throws IOException if a new connection couldn't be established
+     */
+    public Connection borrow(String host, int port) throws IOException {
+        BlockingDeque<Connection> deque = idle.get(key(host, port));
+        if(deque != null) {
+            Connection con;
+            while((con = deque.pollFirst()) != null) {
+                if(con.isHealthy()) {
+                    con.reused = true;
+                    return con;
+                }
+                con.close();
+            }
+        }
+        return new Connection(host, port, readTimeout);
+    }
+
+    /**
+     * Returns the time in ms connections of the pool wait for an answer.
+     */
+    public int getReadTimeout() {
+        return readTimeout;
+    }
+
+    /**
+     * Returns a connection that is in a clean state (every request was
+     * answered completely) to the pool.
+     */
+    public void release(Connection con) {
+        if(con.socket.isClosed()) {
+            return;
+        }
+        String key = key(con.host, con.port);
+        BlockingDeque<Connection> deque = idle.get(key);
+        if(deque == null) {
+            deque = new LinkedBlockingDeque<Connection>(MAX_IDLE);
+            BlockingDeque<Connection> other = idle.putIfAbsent(key, deque);
+            if(other != null) {
+                deque = other;
+            }
+        }
+        con.lastUsed = System.currentTimeMillis();
+        // most recently used first, so old connections age out
+        if(!deque.offerFirst(con)) {
+            con.close();
+        }
+    }
+
+    /**
+     * Closes all idle connections and stops the sweeper.
+     */
+    public void close() {
+        sweeper.cancel();
+        for(BlockingDeque<Connection> deque : idle.values()) {
+            Connection con;
+            while((con = deque.pollFirst()) != null) {
+                con.close();
+            }
+        }
+    }
+
+    private static String key(String host, int port) {
+        return host + ":" + port;
+    }
+
+    /**
+     * A connection to a file server with its message streams. The socket
+     * is backed by a channel, so raw answers can be received with
+     * {@link java.nio.channels.FileChannel#transferFrom}.
+     */
+    public static class Connection {
+        private String host;
+        private int port;
+        private Socket socket;
+        private MessageStream stream;
+        private long lastUsed;
+        private boolean reused = false;
+
+        /**
+         * @param readTimeout time in ms to wait for the file server to
+         *                    answer, 0 to wait forever
+         */
+        public Connection(String host, int port, int readTimeout)
+            throws IOException {
+            this.host = host;
+            this.port = port;
+            socket = SocketChannel.open(new InetSocketAddress(host, port))
+                .socket();
+            try {
+                socket.setKeepAlive(true);
+                socket.setTcpNoDelay(true);
+                socket.setSoTimeout(readTimeout);
+                InputStream in = socket.getInputStream();
+                OutputStream out = socket.getOutputStream();
+                stream = MessageStream.open(in, out, 
+                                            Protocol.propose(in, out));
+            } catch (IOException x) {
+                close();
+                throw x;
+            }
+            lastUsed = System.currentTimeMillis();
+        }
+
+        public Socket getSocket() {
+            return socket;
+        }
+
+        /**
+         * Returns whether the connection was handed out before.
+         */
+        public boolean isReused() {
+            return reused;
+        }
+
+        /**
+         * Sends a message. Buffers referenced by earlier messages may be
+         * reused by the caller.
+         */
+        public void send(Object message) throws IOException {
+            stream.send(message);
+        }
+
+        /**
+         * Reads the next message.
+         */
+        public Object read() throws IOException, ClassNotFoundException {
+            return stream.read();
+        }
+
+        /**
+         * Reads the next response.
+         */
+        public Response receive() throws IOException {
+            try {
+                Object o = stream.read();
+                if(o instanceof Response) {
+                    return (Response) o;
+                }
+            } catch (ClassNotFoundException x) {
+                // fall through
+            }
+            throw new IOException("Response corrupted.");
+        }
+
+        /**
+         * Sends the request and reads its response.
+         */
+        public Response call(Request request) throws IOException {
+            send(request);
+            return receive();
+        }
+
+        public void close() {
+            try {
+                socket.close();
+            } catch (IOException x) {
+                // nothing left to clean up
+            }
+        }
+
+        private boolean isHealthy() {
+            if(socket.isClosed() || !socket.isConnected() ||
+               socket.isInputShutdown() || socket.isOutputShutdown()) {
+                return false;
+            }
+            if(System.currentTimeMillis() - lastUsed < VALIDATE_AFTER) {
+                return true;
+            }
+            try {
+                call(new PingRequest());
+                return true;
+            } catch (IOException x) {
+                return false;
+            }
+        }
+    }
+
+    private class Sweeper extends TimerTask {
+        public void run() {
+            long now = System.currentTimeMillis();
+            for(BlockingDeque<Connection> deque : idle.values()) {
+                // oldest connections are at the end
+                ArrayList<Connection> expired = new ArrayList<Connection>();
+                Iterator<Connection> it = deque.descendingIterator();
+                while(it.hasNext()) {
+                    Connection con = it.next();
+                    if(now - con.lastUsed < IDLE_TIMEOUT) {
+                        break;
+                    }
+                    expired.add(con);
+                }
+                for(Connection con : expired) {
+                    if(deque.remove(con)) {
+                        logger.debug("Evicting idle connection to " +
+                                     con.host + ":" + con.port + ".");
+                        con.close();
+                    }
+                }
+            }
+        }
+    }
+}
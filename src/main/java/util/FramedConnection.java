@@ -0,0 +1,217 @@
+package util;
+
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import java.net.Socket;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+import java.nio.ByteBuffer;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Connection exchanging {@link Frames framed} messages, used by the client
+ * to talk to the proxy.
+ * <p/>
+ * Requests are {@link #submit submitted} without waiting for earlier ones
+ * to be answered. A reader thread hands every response to the {@link Call}
+ * of its request: by request id from {@link Protocol#MULTIPLEXED} on,
+ * where the proxy may answer out of order, in submission order before.
+ * The connection may be shared by several threads.
+ */
+public class FramedConnection {
+    private Logger logger;
+
+    private Socket socket;
+    private DataInputStream in;
+    private DataOutputStream out;
+
+    // negotiated protocol version
+    private int version;
+
+    private AtomicInteger ids = new AtomicInteger();
+
+    // unanswered calls by id, used when multiplexed
+    private Map<Integer, Call> pending = new ConcurrentHashMap<Integer, Call>();
+
+    // unanswered calls in submission order, guarded by this
+    private Queue<Call> ordered = new LinkedList<Call>();
+
+    // why the connection broke, guarded by this
+    private Exception failure;
+
+    public FramedConnection(String host, int port) throws IOException {
+        logger = Logger.getLogger(FramedConnection.class);
+        socket = new Socket(host, port);
+        try {
+            socket.setTcpNoDelay(true);
+            in = new DataInputStream(
+                new BufferedInputStream(socket.getInputStream()));
+            out = new DataOutputStream(
+                new BufferedOutputStream(socket.getOutputStream()));
+            version = Protocol.propose(in, out);
+        } catch (IOException x) {
+            close();
+            throw x;
+        }
+
+        Thread reader = new Thread(new Reader(), "FramedConnection-reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Sends a request without waiting for its response.
+     */
+    public synchronized Call submit(Object request) throws IOException {
+        if(failure != null) {
+            throw new IOException("Connection is broken.", failure);
+        }
+        Call call = new Call(ids.incrementAndGet());
+        if(isMultiplexed()) {
+            pending.put(call.id, call);
+        } else {
+            ordered.add(call);
+        }
+        write(call.id, request);
+        return call;
+    }
+
+    /**
+     * Sends a further message belonging to a submitted request, e.g. a
+     * chunk of an upload.
+     */
+    public synchronized void send(Call call, Object message)
+        throws IOException {
+        if(failure != null) {
+            throw new IOException("Connection is broken.", failure);
+        }
+        write(call.id, message);
+    }
+
+    /**
+     * Sends a request and waits for its response.
+     */
+    public Object call(Object request)
+        throws IOException, ClassNotFoundException {
+        return submit(request).get();
+    }
+
+    /**
+     * Returns the negotiated protocol version.
+     */
+    public int getVersion() {
+        return version;
+    }
+
+    public void close() throws IOException {
+        socket.close();
+    }
+
+    private boolean isMultiplexed() {
+        return version >= Protocol.MULTIPLEXED;
+    }
+
+    private void write(int id, Object message) throws IOException {
+        ByteBuffer frame = Frames.encode(id, message, version);
+        out.write(frame.array(), 0, frame.limit());
+        out.flush();
+    }
+
+    private synchronized void fail(Exception x) {
+        failure = x;
+        for(Call call : pending.values()) {
+            call.complete(null, x);
+        }
+        pending.clear();
+        for(Call call : ordered) {
+            call.complete(null, x);
+        }
+        ordered.clear();
+    }
+
+    /**
+     * The pending response of a submitted request.
+     */
+    public static class Call {
+        private final int id;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile Object response;
+        private volatile Exception failure;
+
+        Call(int id) {
+            this.id = id;
+        }
+
+        void complete(Object response, Exception failure) {
+            this.response = response;
+            this.failure = failure;
+            done.countDown();
+        }
+
+        /**
+         * Waits for the response.
+         *
+         * @throws IOException if the connection broke before it arrived
+         */
+        public Object get() throws IOException, ClassNotFoundException {
+            try {
+                done.await();
+            } catch (InterruptedException x) {
+                throw new InterruptedIOException("Interrupted.");
+            }
+            if(failure instanceof ClassNotFoundException) {
+                throw (ClassNotFoundException) failure;
+            }
+            if(failure != null) {
+                throw new IOException("Connection is broken.", failure);
+            }
+            return response;
+        }
+    }
+
+    private class Reader implements Runnable {
+        public void run() {
+            try {
+                while(true) {
+                    int length = Frames.checkLength(in.readInt(),
+                                                    Frames.MAX_SIZE);
+                    byte[] body = Frames.readBody(in, length);
+                    Frames.Envelope envelope = Frames.decode(body, version);
+
+                    Call call;
+                    if(isMultiplexed()) {
+                        call = pending.remove(envelope.getId());
+                    } else {
+                        synchronized(FramedConnection.this) {
+                            call = ordered.poll();
+                        }
+                    }
+                    if(call == null) {
+                        logger.warn("Got response to unknown request " +
+                                    envelope.getId() + ".");
+                        continue;
+                    }
+                    call.complete(envelope.getMessage(), null);
+                }
+            } catch (IOException x) {
+                logger.debug("Connection closed: " + x.getMessage());
+                fail(x);
+            } catch (ClassNotFoundException x) {
+                logger.info("Class not found.");
+                fail(x);
+            }
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import java.nio.ByteBuffer;
+
+import java.util.Arrays;
+
+/**
+ * Encodes messages between client and proxy as length-prefixed frames.
+ * <p/>
+ * A frame is a 4 byte big endian body length followed by the body, which
+ * holds a single message encoded in the negotiated {@link Protocol}
+ * version. Receivers know the size of a message before reading it, so a
+ * non-blocking reader can collect a frame completely before anything is
+ * decoded.
+ * <p/>
+ * From {@link Protocol#MULTIPLEXED} on the body starts with the varint id
+ * of the request the message belongs to. A response carries the id of its
+ * request, the chunks of an upload the id of the upload request.
+ */
+public final class Frames {
+    // size of the length prefix
+    public static final int HEADER_SIZE = 4;
+
+    // maximum size of a frame body, larger frames are a protocol error
+    public static final int MAX_SIZE = 64 * 1024 * 1024;
+
+    // maximum size of a request frame body. A request carries at most a
+    // chunk of an upload, responses may list a whole catalog
+    public static final int MAX_REQUEST_SIZE = 256 * 1024;
+
+    // bodies are allocated in steps of this size as their bytes arrive, a
+    // header alone doesn't make the receiver allocate the announced size
+    public static final int ALLOCATION_STEP = 64 * 1024;
+
+    private Frames() {
+    }
+
+    /**
+     * Encodes a message into a frame ready to be written.
+     *
+     * @param id the request id, ignored before {@link Protocol#MULTIPLEXED}
+     */
+    public static ByteBuffer encode(int id, Object message, int version) 
+        throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        // reserve the length prefix
+        bytes.write(new byte[HEADER_SIZE]);
+        if(version == Protocol.SERIALIZED) {
+            ObjectOutputStream oos = new ObjectOutputStream(bytes);
+            oos.writeObject(message);
+            oos.close();
+        } else {
+            DataOutputStream out = new DataOutputStream(bytes);
+            if(version >= Protocol.MULTIPLEXED) {
+                BinaryCodec.writeVarLong(out, id & 0xFFFFFFFFL);
+            }
+            BinaryCodec.write(out, message, version);
+        }
+
+        ByteBuffer frame = ByteBuffer.wrap(bytes.toByteArray());
+        frame.putInt(0, frame.limit() - HEADER_SIZE);
+        return frame;
+    }
+
+    /**
+     * Decodes the body of a frame. Before {@link Protocol#MULTIPLEXED} the
+     * id of the envelope is 0.
+     */
+    public static Envelope decode(byte[] body, int version)
+        throws IOException, ClassNotFoundException {
+        if(version != Protocol.SERIALIZED) {
+            DataInputStream in = 
+                new DataInputStream(new ByteArrayInputStream(body));
+            int id = 0;
+            if(version >= Protocol.MULTIPLEXED) {
+                id = (int) BinaryCodec.readVarLong(in);
+            }
+            Object message = BinaryCodec.read(in, version);
+            if(in.available() > 0) {
+                throw new IOException("Frame has trailing bytes.");
+            }
+            return new Envelope(id, message);
+        }
+        ObjectInputStream ois =
+            new ObjectInputStream(new ByteArrayInputStream(body));
+        try {
+            return new Envelope(0, ois.readObject());
+        } finally {
+            ois.close();
+        }
+    }
+
+    /**
+     * Checks the length read from a frame header.
+     *
+     * @param max the largest length accepted
+     * @throws IOException if the length is out of bounds
+     */
+    public static int checkLength(int length, int max) throws IOException {
+        if(length < 0 || length > max) {
+            throw new IOException("Frame of " + length + " bytes rejected.");
+        }
+        return length;
+    }
+
+    /**
+     * Reads a frame body of the given length, allocating it in steps of
+     * {@link #ALLOCATION_STEP} as the bytes arrive.
+     */
+    public static byte[] readBody(DataInputStream in, int length)
+        throws IOException {
+        byte[] body = new byte[Math.min(length, ALLOCATION_STEP)];
+        int read = 0;
+        while(true) {
+            in.readFully(body, read, body.length - read);
+            read = body.length;
+            if(read == length) {
+                return body;
+            }
+            body = Arrays.copyOf(body, (int) Math.min(length, 2L * read));
+        }
+    }
+
+    /**
+     * A decoded message with the id of the request it belongs to.
+     */
+    public static class Envelope {
+        private final int id;
+        private final Object message;
+
+        public Envelope(int id, Object message) {
+            this.id = id;
+            this.message = message;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        public Object getMessage() {
+            return message;
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Keep-alive packet a file server sends the proxy.
+ * <p/>
+ * A heartbeat has a fixed layout of {@link #SIZE} big endian bytes:
+ * <pre>
+ *  0  int  MAGIC
+ *  4  int  TCP port
+ *  8  long free space of the file directory in bytes
+ * 16  int  transfers in progress
+ * 20  long bytes served per second
+ * 28  long catalog epoch
+ * 36  long catalog version
+ * </pre>
+ * Older file servers send just the TCP port as ASCII digits, which is
+ * still understood; such a heartbeat carries no load.
+ * <p/>
+ * Instances are reused: {@link #decode} overwrites the fields and
+ * allocates nothing, so a listener can decode every packet into the same
+ * heartbeat.
+ */
+public final class Heartbeat {
+    // "FSHB"
+    public static final int MAGIC = 0x46534842;
+
+    public static final int SIZE = 44;
+
+    private int tcpPort;
+    private boolean hasLoad;
+    private long freeSpace;
+    private int transfers;
+    private long bytesPerSecond;
+    private long catalogEpoch;
+    private long catalogVersion;
+
+    /**
+     * Writes a heartbeat to the start of a buffer, which is then flipped
+     * to be sent.
+     */
+    public static void encode(ByteBuffer buf, int tcpPort, long freeSpace,
+                              int transfers, long bytesPerSecond,
+                              long catalogEpoch, long catalogVersion) {
+        buf.clear();
+        buf.putInt(MAGIC);
+        buf.putInt(tcpPort);
+        buf.putLong(freeSpace);
+        buf.putInt(transfers);
+        buf.putLong(bytesPerSecond);
+        buf.putLong(catalogEpoch);
+        buf.putLong(catalogVersion);
+        buf.flip();
+    }
+
+    /**
+     * Decodes a received packet into this heartbeat.
+     *
+     * @return {@code false} if the packet is neither a heartbeat nor an
+     * ASCII port
+     */
+    public boolean decode(byte[] data, int offset, int length) {
+        if(length == SIZE && readInt(data, offset) == MAGIC) {
+            tcpPort = readInt(data, offset + 4);
+            freeSpace = readLong(data, offset + 8);
+            transfers = readInt(data, offset + 16);
+            bytesPerSecond = readLong(data, offset + 20);
+            catalogEpoch = readLong(data, offset + 28);
+            catalogVersion = readLong(data, offset + 36);
+            hasLoad = true;
+            return tcpPort > 0 && tcpPort <= 0xFFFF;
+        }
+
+        // legacy packet, the port as digits
+        int port = 0;
+        int digits = 0;
+        for(int i = offset; i < offset + length; i++) {
+            byte b = data[i];
+            if(b >= '0' && b <= '9') {
+                port = port * 10 + (b - '0');
+                if(++digits > 5) {
+                    return false;
+                }
+            } else if(b != ' ' && b != '\n' && b != '\r' && b != 0) {
+                return false;
+            }
+        }
+        if(digits == 0 || port > 0xFFFF) {
+            return false;
+        }
+        tcpPort = port;
+        hasLoad = false;
+        freeSpace = 0;
+        transfers = 0;
+        bytesPerSecond = 0;
+        catalogEpoch = 0;
+        catalogVersion = 0;
+        return true;
+    }
+
+    public int getTcpPort() {
+        return tcpPort;
+    }
+
+    /**
+     * Returns whether the heartbeat carries the load of the server, i.e.
+     * it wasn't sent by an older file server.
+     */
+    public boolean hasLoad() {
+        return hasLoad;
+    }
+
+    public long getFreeSpace() {
+        return freeSpace;
+    }
+
+    public int getTransfers() {
+        return transfers;
+    }
+
+    public long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    public long getCatalogEpoch() {
+        return catalogEpoch;
+    }
+
+    public long getCatalogVersion() {
+        return catalogVersion;
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return (data[offset] & 0xFF) << 24 | (data[offset + 1] & 0xFF) << 16 |
+            (data[offset + 2] & 0xFF) << 8 | (data[offset + 3] & 0xFF);
+    }
+
+    private static long readLong(byte[] data, int offset) {
+        return (readInt(data, offset) & 0xFFFFFFFFL) << 32 |
+            (readInt(data, offset + 4) & 0xFFFFFFFFL);
+    }
+}
@@ -0,0 +1,121 @@
+package util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+
+/**
+ * Reads and writes messages on a stream connection in the negotiated
+ * {@link Protocol} version. Used on the connections to file servers, which
+ * exchange messages back to back instead of in {@link Frames}.
+ * <p/>
+ * Nothing is read from or written to the connection before the first
+ * message, so a peer may answer with raw bytes written directly to the
+ * socket instead.
+ */
+public abstract class MessageStream {
+
+    /**
+     * Creates the streams for the given protocol version.
+     */
+    public static MessageStream open(InputStream in, OutputStream out,
+                                     int version) throws IOException {
+        if(version == Protocol.SERIALIZED) {
+            return new Serialized(in, out);
+        }
+        return new Binary(in, out, version);
+    }
+
+    /**
+     * Writes a message without flushing, so consecutive messages share
+     * packets.
+     */
+    public abstract void write(Object message) throws IOException;
+
+    public abstract void flush() throws IOException;
+
+    /**
+     * Reads the next message.
+     */
+    public abstract Object read() throws IOException, ClassNotFoundException;
+
+    /**
+     * Writes and flushes a message.
+     */
+    public void send(Object message) throws IOException {
+        write(message);
+        flush();
+    }
+
+    private static class Serialized extends MessageStream {
+        private OutputStream out;
+        private InputStream in;
+        private ObjectOutputStream oos;
+        private ObjectInputStream ois;
+
+        Serialized(InputStream in, OutputStream out) {
+            this.in = in;
+            this.out = out;
+        }
+
+        public void write(Object message) throws IOException {
+            // the stream header is only sent along with the first message,
+            // so a raw answer isn't preceded by it
+            if(oos == null) {
+                oos = new ObjectOutputStream(out);
+            }
+            // forget earlier messages, their buffers may be reused
+            oos.reset();
+            oos.writeObject(message);
+        }
+
+        public void flush() throws IOException {
+            if(oos == null) {
+                out.flush();
+            } else {
+                oos.flush();
+            }
+        }
+
+        public Object read() throws IOException, ClassNotFoundException {
+            if(ois == null) {
+                ois = new ObjectInputStream(in);
+            }
+            return ois.readObject();
+        }
+    }
+
+    private static class Binary extends MessageStream {
+        private InputStream rawIn;
+        private DataOutputStream out;
+        private DataInputStream in;
+        private int version;
+
+        Binary(InputStream in, OutputStream out, int version) {
+            rawIn = in;
+            this.out = new DataOutputStream(new BufferedOutputStream(out));
+            this.version = version;
+        }
+
+        public void write(Object message) throws IOException {
+            BinaryCodec.write(out, message, version);
+        }
+
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        public Object read() throws IOException {
+            if(in == null) {
+                in = new DataInputStream(new BufferedInputStream(rawIn));
+            }
+            return BinaryCodec.read(in, version);
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Negotiates the wire protocol of a connection.
+ * <p/>
+ * Right after connecting the client sends {@link #MAGIC} followed by the
+ * highest version it speaks, the server answers with the version both
+ * sides use from then on: the lower of the two. Every later message is
+ * encoded according to that version, see {@link Frames} and
+ * {@link MessageStream}.
+ */
+public final class Protocol {
+    // first byte of every handshake
+    public static final int MAGIC = 0xD5;
+
+    // messages are serialized with ObjectOutputStream
+    public static final int SERIALIZED = 1;
+
+    // messages are encoded by BinaryCodec
+    public static final int BINARY = 2;
+
+    // like BINARY, frames additionally carry a request id so requests can
+    // be answered out of order
+    public static final int MULTIPLEXED = 3;
+
+    // like MULTIPLEXED, download tickets additionally carry their signed
+    // token
+    public static final int SIGNED_TICKETS = 4;
+
+    // highest version this build speaks
+    public static final int CURRENT = SIGNED_TICKETS;
+
+    private Protocol() {
+    }
+
+    /**
+     * Client side of the handshake.
+     *
+     * @return the negotiated version
+     * @throws IOException if the server answered with a version we don't
+     * speak
+     */
+    public static int propose(InputStream in, OutputStream out)
+        throws IOException {
+        out.write(MAGIC);
+        out.write(CURRENT);
+        out.flush();
+        int version = in.read();
+        if(version < 0) {
+            throw new EOFException("Connection closed during handshake.");
+        }
+        if(version < SERIALIZED || version > CURRENT) {
+            throw new IOException("Protocol version " + version +
+                                  " not supported.");
+        }
+        return version;
+    }
+
+    /**
+     * Server side of the handshake.
+     *
+     * @return the negotiated version
+     */
+    public static int accept(InputStream in, OutputStream out)
+        throws IOException {
+        int magic = in.read();
+        int proposed = in.read();
+        if(proposed < 0) {
+            throw new EOFException("Connection closed during handshake.");
+        }
+        int version = select(magic, proposed);
+        out.write(version);
+        out.flush();
+        return version;
+    }
+
+    /**
+     * Chooses the version to use given the handshake of the client.
+     *
+     * @throws IOException if the handshake is invalid
+     */
+    public static int select(int magic, int proposed) throws IOException {
+        if(magic != MAGIC || proposed < SERIALIZED) {
+            throw new IOException("Protocol handshake failed.");
+        }
+        return Math.min(proposed, CURRENT);
+    }
+}
@@ -0,0 +1,83 @@
+package util;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Creates the executors running connection handlers, depending on the
+ * configured execution mode.
+ * <p/>
+ * In {@link #POOL} mode handlers run on a fixed number of threads. In
+ * {@link #VIRTUAL} mode every handler gets its own virtual thread, so the
+ * number of concurrently blocked handlers is limited by memory only. On
+ * JVMs without virtual threads a cached pool of platform threads is used
+ * instead.
+ */
+public final class ThreadPools {
+    public static final String POOL = "pool";
+    public static final String VIRTUAL = "virtual";
+
+    private static final Logger logger = Logger.getLogger(ThreadPools.class);
+
+    private ThreadPools() {
+    }
+
+    /**
+     * Returns whether the given execution mode is known.
+     */
+    public static boolean isMode(String mode) {
+        return POOL.equals(mode) || VIRTUAL.equals(mode);
+    }
+
+    /**
+     * Creates an executor for the given execution mode.
+     *
+     * @param mode    {@link #POOL} or {@link #VIRTUAL}
+     * @param threads the number of threads in {@link #POOL} mode
+     */
+    public static ExecutorService create(String mode, int threads) {
+        if(!isMode(mode)) {
+            throw new IllegalArgumentException("Unknown execution mode " +
+                                               mode + ".");
+        }
+        if(POOL.equals(mode)) {
+            return Executors.newFixedThreadPool(threads);
+        }
+        ExecutorService executor = newVirtualThreadPerTaskExecutor();
+        if(executor == null) {
+            logger.warn("Virtual threads are not available, using a cached " +
+                        "thread pool.");
+            return Executors.newCachedThreadPool();
+        }
+        return executor;
+    }
+
+    /**
+     * Looks up the virtual thread executor, which only exists on newer JVMs.
+     *
+     * @return the executor or {@code null} if it isn't available
+     */
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            Method factory =
+                Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (NoSuchMethodException x) {
+            return null;
+        } catch (InvocationTargetException x) {
+            // an UnsupportedOperationException if virtual threads are a
+            // preview feature that isn't enabled
+            logger.debug("Couldn't create virtual thread executor: " +
+                         x.getCause());
+            return null;
+        } catch (ReflectiveOperationException x) {
+            logger.debug("Couldn't create virtual thread executor: " + x);
+            return null;
+        }
+    }
+}
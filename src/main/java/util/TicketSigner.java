@@ -0,0 +1,227 @@
+package util;
+
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Signs and verifies the compact tickets the proxy issues for downloads.
+ * <p/>
+ * A ticket is signed with HMAC-SHA256 under a key the proxy shares with
+ * the file servers, so a file server can trust it without asking the
+ * proxy. It has a fixed layout of big endian fields:
+ * <pre>
+ *  0  byte  FORMAT
+ *  1  long  expiry, ms since the epoch
+ *  9  int   version of the file
+ * 13  long  size of the file
+ * 21  short length n of the file name in UTF-8
+ * 23  n     file name
+ *     short length m of the user name in UTF-8
+ *     m     user name
+ *     32    HMAC of all bytes before
+ * </pre>
+ * {@link #verify} reads the fields in place and compares the MAC in
+ * constant time. It builds no strings and allocates nothing, the MAC
+ * instances and buffers are kept per thread.
+ */
+public final class TicketSigner {
+    public static final int FORMAT = 1;
+
+    public static final int MAC_SIZE = 32;
+
+    private static final String ALGORITHM = "HmacSHA256";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // offset of the file name length
+    private static final int HEADER = 21;
+
+    private final SecretKeySpec key;
+
+    // Mac isn't thread safe
+    private final ThreadLocal<Mac> macs;
+
+    private final ThreadLocal<byte[]> buffers;
+
+    /**
+     * @throws IllegalArgumentException if the key is empty
+     */
+    public TicketSigner(byte[] key) {
+        this.key = new SecretKeySpec(key, ALGORITHM);
+        macs = new ThreadLocal<Mac>() {
+            @Override
+            protected Mac initialValue() {
+                return newMac();
+            }
+        };
+        buffers = new ThreadLocal<byte[]>() {
+            @Override
+            protected byte[] initialValue() {
+                return new byte[MAC_SIZE];
+            }
+        };
+        // fail early on a bad key
+        newMac();
+    }
+
+    /**
+     * Parses a hex encoded key as found in the config.
+     *
+     * @throws IllegalArgumentException if the key isn't hex or empty
+     */
+    public static byte[] parseKey(String hex) {
+        if(hex.isEmpty() || hex.length() % 2 != 0) {
+            throw new IllegalArgumentException("Key must be an even number " +
+                                               "of hex digits.");
+        }
+        byte[] key = new byte[hex.length() / 2];
+        for(int i = 0; i < key.length; i++) {
+            int high = Character.digit(hex.charAt(2 * i), 16);
+            int low = Character.digit(hex.charAt(2 * i + 1), 16);
+            if(high < 0 || low < 0) {
+                throw new IllegalArgumentException("Key must be hex.");
+            }
+            key[i] = (byte) (high << 4 | low);
+        }
+        return key;
+    }
+
+    /**
+     * Returns the bytes of a file name as stored in tickets, to be kept
+     * for {@link #verify}.
+     */
+    public static byte[] encodeName(String filename) {
+        return filename.getBytes(UTF8);
+    }
+
+    /**
+     * Creates a signed ticket.
+     *
+     * @param expires time in ms since the epoch the ticket is valid until
+     */
+    public byte[] sign(String username, String filename, int version,
+                       long size, long expires) {
+        byte[] name = encodeName(filename);
+        byte[] user = username.getBytes(UTF8);
+        if(name.length > 0xFFFF || user.length > 0xFFFF) {
+            throw new IllegalArgumentException("Name too long.");
+        }
+        int length = HEADER + 2 + name.length + 2 + user.length;
+        byte[] ticket = new byte[length + MAC_SIZE];
+        ticket[0] = (byte) FORMAT;
+        writeLong(ticket, 1, expires);
+        writeInt(ticket, 9, version);
+        writeLong(ticket, 13, size);
+        writeShort(ticket, HEADER, name.length);
+        System.arraycopy(name, 0, ticket, HEADER + 2, name.length);
+        writeShort(ticket, HEADER + 2 + name.length, user.length);
+        System.arraycopy(user, 0, ticket, HEADER + 4 + name.length,
+                         user.length);
+
+        Mac mac = macs.get();
+        mac.update(ticket, 0, length);
+        try {
+            mac.doFinal(ticket, length);
+        } catch (GeneralSecurityException x) {
+            throw new IllegalStateException(x);
+        }
+        return ticket;
+    }
+
+    /**
+     * Checks that a ticket was signed with the key of this signer, is for
+     * the given version of the file and hasn't expired.
+     *
+     * @param filename the file name as returned by {@link #encodeName}
+     * @param now      the current time in ms since the epoch
+     */
+    public boolean verify(byte[] ticket, byte[] filename, int version,
+                          long size, long now) {
+        if(ticket == null || ticket.length < HEADER + 4 + MAC_SIZE ||
+           ticket[0] != FORMAT) {
+            return false;
+        }
+        int nameLength = readShort(ticket, HEADER);
+        int userOffset = HEADER + 2 + nameLength;
+        if(userOffset + 2 > ticket.length - MAC_SIZE) {
+            return false;
+        }
+        int length = userOffset + 2 + readShort(ticket, userOffset);
+        if(length != ticket.length - MAC_SIZE) {
+            return false;
+        }
+
+        // the MAC first, so a forged ticket learns nothing from the fields
+        Mac mac = macs.get();
+        byte[] expected = buffers.get();
+        mac.update(ticket, 0, length);
+        try {
+            mac.doFinal(expected, 0);
+        } catch (GeneralSecurityException x) {
+            throw new IllegalStateException(x);
+        }
+        int diff = 0;
+        for(int i = 0; i < MAC_SIZE; i++) {
+            diff |= expected[i] ^ ticket[length + i];
+        }
+        if(diff != 0) {
+            return false;
+        }
+
+        if(readLong(ticket, 1) < now || readInt(ticket, 9) != version ||
+           readLong(ticket, 13) != size || nameLength != filename.length) {
+            return false;
+        }
+        for(int i = 0; i < nameLength; i++) {
+            if(ticket[HEADER + 2 + i] != filename[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private Mac newMac() {
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(key);
+            return mac;
+        } catch (NoSuchAlgorithmException x) {
+            throw new IllegalStateException(x);
+        } catch (InvalidKeyException x) {
+            throw new IllegalArgumentException(x);
+        }
+    }
+
+    private static void writeShort(byte[] data, int offset, int value) {
+        data[offset] = (byte) (value >>> 8);
+        data[offset + 1] = (byte) value;
+    }
+
+    private static void writeInt(byte[] data, int offset, int value) {
+        writeShort(data, offset, value >>> 16);
+        writeShort(data, offset + 2, value);
+    }
+
+    private static void writeLong(byte[] data, int offset, long value) {
+        writeInt(data, offset, (int) (value >>> 32));
+        writeInt(data, offset + 4, (int) value);
+    }
+
+    private static int readShort(byte[] data, int offset) {
+        return (data[offset] & 0xFF) << 8 | (data[offset + 1] & 0xFF);
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return readShort(data, offset) << 16 | readShort(data, offset + 2);
+    }
+
+    private static long readLong(byte[] data, int offset) {
+        return (readInt(data, offset) & 0xFFFFFFFFL) << 32 |
+            (readInt(data, offset + 4) & 0xFFFFFFFFL);
+    }
+}
@@ -0,0 +1,109 @@
+package util;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Hashed timing wheel for many timeouts of coarse resolution.
+ * <p/>
+ * Time is divided into ticks, a timeout is put into the slot of the tick
+ * it expires in, modulo the number of slots. Scheduling is O(1); advancing
+ * the wheel only looks at the slots of the ticks passed, so a timeout far
+ * in the future costs nothing until its slot comes round. Timeouts fire at
+ * most one tick late.
+ * <p/>
+ * Timeouts can't be cancelled. Owners that keep pushing a deadline back,
+ * like the last sign of life of a server, check it when the timeout fires
+ * and schedule a new one if it was pushed.
+ * <p/>
+ * Times are {@link System#nanoTime} values.
+ */
+public class TimingWheel<T> {
+    /**
+     * Gets the items whose timeout expired.
+     */
+    public interface Handler<T> {
+        void expired(T item, long now);
+    }
+
+    private final long tick;
+    private final long origin;
+    private final Handler<T> handler;
+
+    // guarded by this
+    private final List<List<Timeout<T>>> slots;
+    private long current = 0;
+
+    /**
+     * @param tick  length of a tick in ns
+     * @param slots number of slots, best a bit more than the longest
+     *              timeout in ticks
+     */
+    public TimingWheel(long tick, int slots, Handler<T> handler) {
+        this.tick = tick;
+        this.origin = System.nanoTime();
+        this.handler = handler;
+        this.slots = new ArrayList<List<Timeout<T>>>(slots);
+        for(int i = 0; i < slots; i++) {
+            this.slots.add(new ArrayList<Timeout<T>>());
+        }
+    }
+
+    /**
+     * Returns the length of a tick in ns.
+     */
+    public long getTick() {
+        return tick;
+    }
+
+    /**
+     * Schedules a timeout. A deadline in the past fires on the next
+     * advance.
+     */
+    public synchronized void schedule(T item, long deadline) {
+        // round up, a timeout must not fire early
+        long ticks = Math.max(current, (deadline - origin + tick - 1) / tick);
+        slots.get((int) (ticks % slots.size())).add
+            (new Timeout<T>(item, ticks));
+    }
+
+    /**
+     * Fires the timeouts that expired by now. The handler is called
+     * without holding the lock of the wheel, it may schedule again.
+     */
+    public void advance(long now) {
+        List<Timeout<T>> expired = new ArrayList<Timeout<T>>();
+        synchronized(this) {
+            long ticks = (now - origin) / tick;
+            // a wheel that fell behind a full round visits every slot once
+            long last = Math.min(ticks, current + slots.size() - 1);
+            for(long t = current; t <= last; t++) {
+                Iterator<Timeout<T>> it =
+                    slots.get((int) (t % slots.size())).iterator();
+                while(it.hasNext()) {
+                    Timeout<T> timeout = it.next();
+                    // others in the slot are due in a later round
+                    if(timeout.ticks <= ticks) {
+                        expired.add(timeout);
+                        it.remove();
+                    }
+                }
+            }
+            current = Math.max(current, ticks + 1);
+        }
+        for(Timeout<T> timeout : expired) {
+            handler.expired(timeout.item, now);
+        }
+    }
+
+    private static class Timeout<T> {
+        final T item;
+        final long ticks;
+
+        Timeout(T item, long ticks) {
+            this.item = item;
+            this.ticks = ticks;
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package proxy;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import message.Response;
+import message.response.MessageResponse;
+import util.Frames;
+import util.Protocol;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+public class ClientSelectorTest {
+
+    ExecutorService workers;
+    ClientSelector selector;
+    Thread thread;
+    int port;
+
+    Socket socket;
+    DataInputStream in;
+    DataOutputStream out;
+    int version;
+
+    // released by the request "release", awaited by the request "wait"
+    CountDownLatch latch = new CountDownLatch(1);
+
+    @After
+    public void tearDown() throws Exception {
+        if(socket != null) {
+            socket.close();
+        }
+        selector.close();
+        thread.join(5000);
+        workers.shutdownNow();
+    }
+
+    @Test
+    public void frameArrivingInPiecesIsReassembled() throws Exception {
+        start(4);
+        StringBuilder text = new StringBuilder();
+        while(text.length() < 2 * Frames.ALLOCATION_STEP + 100) {
+            text.append("0123456789");
+        }
+        ByteBuffer frame = Frames.encode(7, text.toString(), version);
+        int piece = frame.limit() / 5;
+        for(int offset = 0; offset < frame.limit(); offset += piece) {
+            out.write(frame.array(), offset,
+                      Math.min(piece, frame.limit() - offset));
+            out.flush();
+            Thread.sleep(20);
+        }
+
+        Frames.Envelope response = readFrame();
+        assertEquals(7, response.getId());
+        assertEquals("echo " + text.length(),
+                     ((MessageResponse) response.getMessage()).getMessage());
+    }
+
+    @Test
+    public void oversizedFrameClosesTheConnection() throws Exception {
+        start(4);
+        out.writeInt(Frames.MAX_REQUEST_SIZE + 1);
+        out.flush();
+        socket.setSoTimeout(5000);
+        assertEquals(-1, in.read());
+    }
+
+    @Test
+    public void responsesAreSentOutOfOrder() throws Exception {
+        start(4);
+        write(1, "wait");
+        write(2, "fast");
+        assertEquals(2, readFrame().getId());
+
+        write(3, "release");
+        Set<Integer> ids = new HashSet<Integer>();
+        ids.add(readFrame().getId());
+        ids.add(readFrame().getId());
+        assertEquals(new HashSet<Integer>(Arrays.asList(1, 3)), ids);
+    }
+
+    @Test
+    public void exclusiveRequestDoesNotStarveOnASingleWorker()
+        throws Exception {
+        // the requests share the only worker
+        start(1);
+        write(1, "first");
+        write(2, "!exclusive");
+        write(3, "last");
+
+        Set<Integer> ids = new HashSet<Integer>();
+        for(int i = 0; i < 3; i++) {
+            ids.add(readFrame().getId());
+        }
+        assertEquals(new HashSet<Integer>(Arrays.asList(1, 2, 3)), ids);
+    }
+
+    @Test
+    public void streamUploadsDoNotStarveOnASingleWorker() throws Exception {
+        // the first upload waits on the only worker for its chunk, while
+        // the second one is queued behind it
+        start(1);
+        write(1, "upload 1");
+        write(2, "upload 2");
+        write(2, "aa");
+        write(2, "bbb");
+        write(1, "c");
+
+        assertEquals(1, readFrame().getId());
+        Frames.Envelope second = readFrame();
+        assertEquals(2, second.getId());
+        assertEquals("echo 5",
+                     ((MessageResponse) second.getMessage()).getMessage());
+    }
+
+    @Test
+    public void requestsBeyondTheInFlightLimitAreAnswered() throws Exception {
+        start(1);
+        int count = ClientSelector.MAX_IN_FLIGHT * 3;
+        for(int id = 1; id <= count; id++) {
+            write(id, "request " + id);
+        }
+        Set<Integer> ids = new HashSet<Integer>();
+        for(int i = 0; i < count; i++) {
+            ids.add(readFrame().getId());
+        }
+        assertEquals(count, ids.size());
+    }
+
+    void start(int threads) throws Exception {
+        ServerSocket probe = new ServerSocket(0);
+        port = probe.getLocalPort();
+        probe.close();
+
+        workers = Executors.newFixedThreadPool(threads);
+        selector = new ClientSelector(port, workers,
+                                      new ClientSelector.HandlerFactory() {
+            public ClientSelector.Handler create(ClientSelector.Session s) {
+                return new EchoHandler();
+            }
+        });
+        thread = new Thread(selector);
+        thread.start();
+        connect();
+    }
+
+    void write(int id, Object message) throws IOException {
+        ByteBuffer frame = Frames.encode(id, message, version);
+        out.write(frame.array(), 0, frame.limit());
+        out.flush();
+    }
+
+    void connect() throws Exception {
+        for(int attempt = 0; ; attempt++) {
+            try {
+                socket = new Socket("localhost", port);
+                break;
+            } catch (ConnectException x) {
+                if(attempt == 50) {
+                    throw x;
+                }
+                Thread.sleep(100);
+            }
+        }
+        socket.setSoTimeout(10000);
+        in = new DataInputStream(socket.getInputStream());
+        out = new DataOutputStream(socket.getOutputStream());
+        version = Protocol.propose(in, out);
+        assertEquals(Protocol.CURRENT, version);
+    }
+
+    Frames.Envelope readFrame() throws Exception {
+        int length = Frames.checkLength(in.readInt(), Frames.MAX_SIZE);
+        return Frames.decode(Frames.readBody(in, length), version);
+    }
+
+    /**
+     * Answers a text with its length, "upload n" with the length of its
+     * next n chunks. Texts starting with '!' are exclusive.
+     */
+    class EchoHandler implements ClientSelector.Handler {
+        public Response handle(Object request, ClientSelector.Chunks chunks)
+            throws Exception {
+            if("wait".equals(request)) {
+                latch.await(10, TimeUnit.SECONDS);
+            } else if("release".equals(request)) {
+                latch.countDown();
+            } else if(((String) request).startsWith("upload ")) {
+                int count = Integer.parseInt(((String) request).substring(7));
+                int length = 0;
+                for(int i = 0; i < count; i++) {
+                    length += ((String) chunks.next(5000)).length();
+                }
+                return new MessageResponse("echo " + length);
+            }
+            return new MessageResponse("echo " +
+                                       ((String) request).length());
+        }
+
+        public boolean isExclusive(Object request) {
+            return ((String) request).startsWith("!");
+        }
+
+        public void closed() {
+        }
+    }
+}
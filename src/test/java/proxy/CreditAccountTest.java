@@ -0,0 +1,96 @@
+package proxy;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class CreditAccountTest {
+
+    @Test
+    public void concurrentReservationsNeverOverdraw() throws Exception {
+        final CreditAccount account = new CreditAccount(1000);
+        final AtomicInteger granted = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<Thread>();
+        for(int i = 0; i < 8; i++) {
+            Thread thread = new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException x) {
+                        return;
+                    }
+                    for(int j = 0; j < 100; j++) {
+                        if(account.reserve(7) != null) {
+                            granted.incrementAndGet();
+                        }
+                    }
+                }
+            };
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for(Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(1000 / 7, granted.get());
+        assertEquals(1000 % 7, account.get());
+    }
+    @Test
+    public void onlyCommittedCreditsAreKept() {
+        CreditAccount account = new CreditAccount(100);
+
+        CreditAccount.Reservation refunded = account.reserve(30);
+        assertEquals(70, account.get());
+        refunded.refund();
+        assertEquals(100, account.get());
+
+        CreditAccount.Reservation committed = account.reserve(40);
+        committed.commit();
+        // a refund after the commit gives nothing back
+        committed.refund();
+        assertEquals(60, account.get());
+
+        assertNull(account.reserve(61));
+    }
+
+    @Test
+    public void onlyCommittedCreditsAreJournaled() {
+        CreditAccount account = new CreditAccount(100);
+        final AtomicLong journaled = new AtomicLong();
+        account.setJournal(new CreditAccount.Journal() {
+            public void record(long delta) {
+                journaled.addAndGet(delta);
+            }
+        });
+
+        account.reserve(30).refund();
+        assertEquals(0, journaled.get());
+        account.reserve(40).commit();
+        account.deposit(5);
+        assertEquals(-35, journaled.get());
+        assertEquals(65, account.get());
+    }
+
+    @Test
+    public void releasedCreditsAreGivenBack() {
+        CreditAccount account = new CreditAccount(100);
+        CreditAccount.Reservation batch = account.reserve(90);
+        batch.release(30);
+        assertEquals(60, batch.getHeld());
+        assertEquals(40, account.get());
+
+        // no more than is held
+        batch.release(70);
+        assertEquals(0, batch.getHeld());
+        assertEquals(100, account.get());
+    }
+}
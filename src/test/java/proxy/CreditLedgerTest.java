@@ -0,0 +1,122 @@
+package proxy;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.Assert.assertEquals;
+
+public class CreditLedgerTest {
+
+    Path dir;
+    UserRegistry users;
+    CreditLedger ledger;
+    Thread writer;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("ledger");
+        users = open();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        stop();
+        try(DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for(Path path : stream) {
+                Files.delete(path);
+            }
+        }
+        Files.delete(dir);
+    }
+
+    @Test
+    public void balancesSurviveARestart() throws Exception {
+        users.get("alice").addCredits(50);
+        users.get("bill").addCredits(-30);
+        ledger.close();
+
+        users = open();
+        assertEquals(250, users.get("alice").getCredits());
+        assertEquals(170, users.get("bill").getCredits());
+    }
+
+    @Test
+    public void changesAfterTheSnapshotAreReplayed() throws Exception {
+        users.get("alice").addCredits(10);
+        ledger.compact();
+        users.get("alice").addCredits(5);
+        users.get("bill").addCredits(-200);
+        // a crash, the writer stops without a last snapshot
+        stop();
+
+        users = open();
+        assertEquals(215, users.get("alice").getCredits());
+        assertEquals(0, users.get("bill").getCredits());
+    }
+
+    @Test
+    public void tornChangeIsIgnored() throws Exception {
+        users.get("alice").addCredits(10);
+        stop();
+        // the name of a change, but a crash before its amount
+        Path log = null;
+        try(DirectoryStream<Path> stream =
+            Files.newDirectoryStream(dir, "ledger-*.log")) {
+            for(Path path : stream) {
+                log = path;
+            }
+        }
+        Files.write(log, new byte[] { 0, 4, 'b', 'i', 'l', 'l', 0 },
+                    StandardOpenOption.APPEND);
+
+        users = open();
+        assertEquals(210, users.get("alice").getCredits());
+        assertEquals(200, users.get("bill").getCredits());
+    }
+
+    @Test
+    public void reservedCreditsAreJournaledOnCommit() throws Exception {
+        users.get("alice").reserve(80);
+        // a restart while credits are held keeps them
+        stop();
+        users = open();
+        assertEquals(200, users.get("alice").getCredits());
+
+        CreditAccount.Reservation held = users.get("alice").reserve(80);
+        CreditAccount.Reservation refunded = users.get("bill").reserve(20);
+        held.commit();
+        refunded.refund();
+        ledger.close();
+
+        users = open();
+        assertEquals(120, users.get("alice").getCredits());
+        assertEquals(200, users.get("bill").getCredits());
+    }
+
+    /**
+     * Loads the users as configured and recovers their balances with a
+     * new ledger.
+     */
+    UserRegistry open() throws IOException {
+        UserRegistry users = new UserRegistry();
+        users.add(new User("alice", "12345", 200));
+        users.add(new User("bill", "23456", 200));
+        ledger = new CreditLedger(dir);
+        ledger.recover(users);
+        writer = new Thread(ledger);
+        writer.start();
+        return users;
+    }
+
+    void stop() throws InterruptedException {
+        writer.interrupt();
+        writer.join();
+    }
+}
@@ -0,0 +1,68 @@
+package proxy;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+
+public class FileCacheTest {
+
+    @Test
+    public void concurrentUploadsGetDistinctVersions() throws Exception {
+        final FileCache cache = new FileCache(10);
+        final Set<Integer> versions = Collections.newSetFromMap
+            (new ConcurrentHashMap<Integer, Boolean>());
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<Thread>();
+        for(int i = 0; i < 8; i++) {
+            Thread thread = new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException x) {
+                        return;
+                    }
+                    for(int j = 0; j < 100; j++) {
+                        // all of them saw the same version on the servers
+                        versions.add(cache.nextVersion("a.txt", 3));
+                    }
+                }
+            };
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for(Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(800, versions.size());
+        assertEquals(4, (int) Collections.min(versions));
+        assertEquals(803, (int) Collections.max(versions));
+    }
+
+    @Test
+    public void nextVersionFollowsNewerKnownVersions() {
+        FileCache cache = new FileCache(10);
+        assertEquals(2, cache.nextVersion("a.txt", 1));
+        assertEquals(8, cache.nextVersion("a.txt", 7));
+        assertEquals(9, cache.nextVersion("a.txt", 1));
+    }
+
+    @Test
+    public void olderUploadDoesNotReplaceNewerEntry() {
+        FileCache cache = new FileCache(10);
+        FileServer fs = new FileServer("localhost", 1, 2);
+        List<FileServer> replicas = Collections.singletonList(fs);
+        cache.put("a.txt", 10, 5, "hash5", replicas);
+        cache.put("a.txt", 20, 4, "hash4", replicas);
+
+        assertEquals(5, cache.get("a.txt").getVersion());
+        assertEquals(10, cache.get("a.txt").getSize());
+    }
+}
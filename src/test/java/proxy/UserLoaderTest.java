@@ -0,0 +1,102 @@
+package proxy;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class UserLoaderTest {
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    Path dir;
+    Path config;
+    Path snapshot;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("users");
+        config = dir.resolve("user.properties");
+        snapshot = dir.resolve("user.snapshot");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Files.deleteIfExists(config);
+        Files.deleteIfExists(snapshot);
+        Files.delete(dir);
+    }
+
+    @Test
+    public void configIsParsedInOnePass() throws Exception {
+        write("alice.credits = 200\n" +
+              "# a comment\n" +
+              "\r\n" +
+              "bill.password=23456\r\n" +
+              "alice.password = 12345\n" +
+              "bill.credits=  50  \n" +
+              "carol.password = 34567\n");
+
+        UserRegistry users = new UserRegistry();
+        UserLoader loader = new UserLoader(users);
+        assertEquals(2, loader.loadConfig(config));
+        assertEquals(1, loader.getIncomplete());
+
+        assertEquals("12345", users.get("alice").getPassword());
+        assertEquals(200, users.get("alice").getCredits());
+        assertEquals("23456", users.get("bill").getPassword());
+        assertEquals(50, users.get("bill").getCredits());
+        assertNull(users.get("carol"));
+    }
+
+    @Test
+    public void snapshotIsReadWhileNewerThanTheConfig() throws Exception {
+        write("alice.credits = 200\nalice.password = 12345\n");
+        assertEquals(1, new UserLoader(new UserRegistry())
+                     .load(config, snapshot));
+        assertTrue(Files.exists(snapshot));
+
+        // the snapshot is used, even though the config differs
+        write("alice.credits = 300\nalice.password = 12345\n");
+        touch(config, -60000);
+        UserRegistry users = new UserRegistry();
+        new UserLoader(users).load(config, snapshot);
+        assertEquals(200, users.get("alice").getCredits());
+
+        // a changed config wins over the snapshot
+        touch(config, 60000);
+        users = new UserRegistry();
+        new UserLoader(users).load(config, snapshot);
+        assertEquals(300, users.get("alice").getCredits());
+    }
+
+    @Test(expected = IOException.class)
+    public void truncatedSnapshotIsRejected() throws Exception {
+        write("alice.credits = 200\nalice.password = 12345\n");
+        new UserLoader(new UserRegistry()).load(config, snapshot);
+        byte[] data = Files.readAllBytes(snapshot);
+        Files.write(snapshot, Arrays.copyOf(data, data.length - 3));
+
+        new UserLoader(new UserRegistry()).loadSnapshot(snapshot);
+    }
+
+    void write(String content) throws IOException {
+        Files.write(config, content.getBytes(UTF8));
+    }
+
+    void touch(Path path, long offset) throws IOException {
+        FileTime time = Files.getLastModifiedTime(snapshot);
+        Files.setLastModifiedTime(path, FileTime.fromMillis
+                                  (time.toMillis() + offset));
+    }
+}
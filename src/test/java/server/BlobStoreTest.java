@@ -0,0 +1,138 @@
+package server;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import util.ChecksumUtils;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeNotNull;
+
+public class BlobStoreTest {
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    Path dir;
+    BlobStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("blobs");
+        // unreferenced blobs are swept right away
+        store = new BlobStore(dir, 0);
+        store.open();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        CatalogTest.delete(dir);
+    }
+
+    @Test
+    public void equalContentIsStoredOnce() throws Exception {
+        BlobStore.Blob first = put("content");
+        BlobStore.Blob second = put("content");
+
+        assertSame(first, second);
+        assertEquals(1, countBlobs());
+        assertEquals("content", read(first));
+    }
+
+    @Test
+    public void blobIsKeptWhileReferenced() throws Exception {
+        BlobStore.Blob blob = put("content");
+        put("content");
+
+        store.unref(blob);
+        assertEquals(0, store.sweep());
+        assertTrue(Files.exists(blob.getPath()));
+
+        store.unref(blob);
+        assertEquals(1, store.sweep());
+        assertFalse(Files.exists(blob.getPath()));
+        assertNull(store.get(blob.getHash(), blob.getSize()));
+    }
+
+    @Test
+    public void referenceFromGetKeepsBlob() throws Exception {
+        BlobStore.Blob blob = put("content");
+        assertSame(blob, store.get(blob.getHash(), blob.getSize()));
+
+        store.unref(blob);
+        assertEquals(0, store.sweep());
+        store.unref(blob);
+        assertEquals(1, store.sweep());
+    }
+
+    @Test
+    public void getOfUnknownContentIsNull() throws Exception {
+        BlobStore.Blob blob = put("content");
+
+        assertNull(store.get(hash("other"), blob.getSize()));
+        // same hash, but not the size of the stored content
+        assertNull(store.get(blob.getHash(), blob.getSize() + 1));
+    }
+
+    @Test
+    public void evictedBlobIsForgotten() throws Exception {
+        BlobStore.Blob blob = put("content");
+        store.evict(blob);
+
+        assertFalse(Files.exists(blob.getPath()));
+        assertNull(store.get(blob.getHash(), blob.getSize()));
+        // references of it are ignored
+        store.unref(blob);
+        assertEquals(0, store.sweep());
+
+        BlobStore.Blob again = put("content");
+        assertEquals("content", read(again));
+    }
+
+    @Test
+    public void unrecoveredBlobsAreSweptAfterOpen() throws Exception {
+        BlobStore.Blob kept = put("kept");
+        put("dropped");
+        // blobs are only recovered by the key of their file
+        assumeNotNull(kept.getKey());
+
+        store = new BlobStore(dir, 0);
+        store.open();
+        BlobStore.Blob recovered = store.recover(kept.getKey(),
+                                                 kept.getSize());
+        store.endRecovery();
+
+        assertEquals(1, store.sweep());
+        assertEquals(1, countBlobs());
+        assertEquals("kept", read(recovered));
+    }
+
+    BlobStore.Blob put(String content) throws IOException {
+        Path part = store.create();
+        Files.write(part, content.getBytes(UTF8));
+        return store.put(part, hash(content));
+    }
+
+    static String hash(String content) {
+        MessageDigest digest = ChecksumUtils.newDigest();
+        return ChecksumUtils.toHex(digest.digest(content.getBytes(UTF8)));
+    }
+
+    static String read(BlobStore.Blob blob) throws IOException {
+        return new String(Files.readAllBytes(blob.getPath()), UTF8);
+    }
+
+    int countBlobs() throws IOException {
+        return dir.resolve(BlobStore.DIR).toFile().list().length;
+    }
+}
@@ -0,0 +1,140 @@
+package server;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import util.ChecksumUtils;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class CatalogTest {
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    Path dir;
+    Catalog catalog;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("catalog");
+        catalog = open();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        catalog.close();
+        delete(dir);
+    }
+
+    @Test
+    public void committedVersionIsCurrent() throws Exception {
+        commit("a.txt", 2, "first");
+        commit("a.txt", 3, "second");
+
+        Catalog.Entry entry = catalog.get("a.txt");
+        assertEquals(3, entry.getVersion());
+        assertEquals("second", read(entry));
+        assertEquals("second", new String(Files.readAllBytes
+                                          (dir.resolve("a.txt")), UTF8));
+    }
+
+    @Test
+    public void versionsSurviveARestart() throws Exception {
+        commit("a.txt", 4, "uploaded");
+        commit("b.txt", 2, "other");
+        Files.write(dir.resolve("c.txt"), "outside".getBytes(UTF8));
+        catalog.close();
+
+        catalog = open();
+        assertEquals(4, catalog.get("a.txt").getVersion());
+        assertEquals("uploaded", read(catalog.get("a.txt")));
+        assertEquals(2, catalog.get("b.txt").getVersion());
+        assertEquals(Catalog.INITIAL_VERSION,
+                     catalog.get("c.txt").getVersion());
+
+        // the compacted log is appended to
+        commit("a.txt", 5, "again");
+        catalog.close();
+        catalog = open();
+        assertEquals(5, catalog.get("a.txt").getVersion());
+    }
+
+    @Test
+    public void overtakenUploadIsNotInstalled() throws Exception {
+        commit("a.txt", 5, "newer");
+        commit("a.txt", 4, "older");
+
+        Catalog.Entry entry = catalog.get("a.txt");
+        assertEquals(5, entry.getVersion());
+        assertEquals("newer", read(entry));
+    }
+
+    @Test
+    public void acquiredVersionOutlivesItsReplacement() throws Exception {
+        commit("a.txt", 2, "old");
+        Catalog.Entry old = catalog.acquire("a.txt");
+        commit("a.txt", 3, "new");
+
+        assertEquals("old", read(old));
+        catalog.release(old);
+        assertEquals("new", read(catalog.get("a.txt")));
+    }
+
+    @Test
+    public void hiddenFilesAreNotListed() throws Exception {
+        commit("a.txt", 2, "content");
+        assertEquals(1, catalog.getNames().size());
+        assertNull(catalog.get(Catalog.VERSIONS));
+    }
+
+    Catalog open() throws IOException {
+        Catalog catalog = new Catalog(dir, new BlobStore(dir));
+        catalog.load();
+        return catalog;
+    }
+
+    void commit(String filename, int version, String content)
+        throws IOException {
+        byte[] data = content.getBytes(UTF8);
+        Path part = catalog.create();
+        Files.write(part, data);
+        MessageDigest digest = ChecksumUtils.newDigest();
+        catalog.commit(filename, version, part,
+                       ChecksumUtils.toHex(digest.digest(data)));
+    }
+
+    static String read(Catalog.Entry entry) throws IOException {
+        return new String(Files.readAllBytes(entry.getPath()), UTF8);
+    }
+
+    static void delete(Path dir) throws IOException {
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file,
+                                             BasicFileAttributes attrs)
+                throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir,
+                                                      IOException x)
+                throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
@@ -27,6 +27,7 @@ public class ApiTest {
 
     @Before
     public void setUp() throws Exception {
+        Util.setTicketKey();
     }
 
 
@@ -14,6 +14,13 @@ import util.Config;
 import util.Util;
 
 import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+
 import static org.junit.Assert.assertTrue;
 
 public class SimpleTest {
@@ -21,16 +28,26 @@ public class SimpleTest {
 	IProxyCli proxy;
 	IFileServerCli server;
 	IClientCli client;
+	Path dir;
 
 	@Before
 	public void before() throws Exception {
+		Util.setTicketKey();
+		// the file server and the client get directories of their own
+		dir = Files.createTempDirectory("simpletest");
+		Path serverDir = dir.resolve("fileserver1");
+		Path clientDir = dir.resolve("client");
+		// 8 credits to download, 100 earned by the upload
+		createFile(serverDir, "short.txt", "dslab13\n");
+		createFile(clientDir, "upload.txt", "This file is uploaded by the simple test case!!!!!");
+
 		proxy = componentFactory.startProxy(new Config("proxy"), new Shell("proxy", new TestOutputStream(System.out), new TestInputStream()));
 		Thread.sleep(Util.WAIT_FOR_COMPONENT_STARTUP);
 		
-		server = componentFactory.startFileServer(new Config("fs1"), new Shell("fs1", new TestOutputStream(System.out), new TestInputStream()));
+		server = componentFactory.startFileServer(new Config("fs1").with("fileserver.dir", serverDir.toString()), new Shell("fs1", new TestOutputStream(System.out), new TestInputStream()));
 		Thread.sleep(Util.WAIT_FOR_COMPONENT_STARTUP);
 		
-		client = componentFactory.startClient(new Config("client"), new Shell("client", new TestOutputStream(System.out), new TestInputStream()));
+		client = componentFactory.startClient(new Config("client").with("download.dir", clientDir.toString()), new Shell("client", new TestOutputStream(System.out), new TestInputStream()));
 		Thread.sleep(Util.WAIT_FOR_COMPONENT_STARTUP);
 	}
 
@@ -54,6 +71,7 @@ public class SimpleTest {
 			// This should not happen. In case it does, output the stack trace for easier trouble shooting.
 			e.printStackTrace();
 		}
+		deleteDirectory(dir);
 	}
 
 
@@ -68,7 +86,7 @@ public class SimpleTest {
 		assertTrue(String.format("Response must contain '%s' but was '%s'", expected, actual), actual.contains(expected));
 
 		actual = client.download("short.txt").toString();
-		expected = "!data dslab13";
+		expected = "!data short.txt";
 		assertTrue(String.format("Response must start with '%s' but was '%s'", expected, actual), actual.startsWith(expected));
 
 		actual = client.credits().toString();
@@ -76,7 +94,7 @@ public class SimpleTest {
 		assertTrue(String.format("Response must contain '%s' but was '%s'", expected, actual), actual.contains(expected));
 		
 		actual = client.upload("upload.txt").toString();
-		expected = "success";
+		expected = "Uploaded.";
 		assertTrue(String.format("Response must contain '%s' but was '%s'", expected, actual), actual.contains(expected));
 
 		actual = client.credits().toString();
@@ -84,7 +102,28 @@ public class SimpleTest {
 		assertTrue(String.format("Response must contain '%s' but was '%s'", expected, actual), actual.contains(expected));
 
 		actual = client.logout().toString();
-		expected = "Successfully logged out.";
+		expected = "Logged out.";
 		assertTrue(String.format("Response must contain '%s' but was '%s'", expected, actual), actual.contains(expected));
 	}
+
+	static void createFile(Path dir, String filename, String content) throws IOException {
+		Files.createDirectories(dir);
+		Files.write(dir.resolve(filename), content.getBytes(Charset.forName("UTF-8")));
+	}
+
+	static void deleteDirectory(Path dir) throws IOException {
+		Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				Files.delete(file);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+				Files.delete(dir);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
 }
@@ -0,0 +1,102 @@
+package util;
+
+import org.junit.Test;
+
+import message.request.DownloadFileRequest;
+import message.response.DownloadTicketResponse;
+import message.response.UploadResponse;
+import model.DownloadTicket;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.net.InetAddress;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class BinaryCodecTest {
+
+    static final byte[] TOKEN = { 1, 2, 3, (byte) 0xfe, (byte) 0xff };
+
+    @Test
+    public void tokenHasItsOwnFieldFromSignedTickets() throws Exception {
+        DownloadTicket ticket = decode(encode(Protocol.SIGNED_TICKETS),
+                                       Protocol.SIGNED_TICKETS);
+        assertArrayEquals(TOKEN, ticket.getToken());
+        assertNull(ticket.getChecksum());
+        assertEquals("short.txt", ticket.getFilename());
+        assertEquals(11293, ticket.getPort());
+    }
+
+    @Test
+    public void olderPeersGetTheTokenAsChecksum() throws Exception {
+        byte[] bytes = encode(Protocol.MULTIPLEXED);
+        // the fields of a ticket before signed tickets, nothing else
+        DataInputStream in =
+            new DataInputStream(new ByteArrayInputStream(bytes));
+        in.readUnsignedByte();
+        assertTrue(in.readBoolean());
+        assertEquals("alice", BinaryCodec.readString(in));
+        assertEquals("short.txt", BinaryCodec.readString(in));
+        String checksum = BinaryCodec.readString(in);
+        assertEquals("hmac:010203feff", checksum);
+        BinaryCodec.readBytes(in);
+        assertEquals(11293, BinaryCodec.readVarLong(in));
+        assertEquals(0, in.available());
+    }
+
+    @Test
+    public void tokenPassedOnByAnOlderPeerIsRecovered() throws Exception {
+        DownloadTicket ticket = decode(encode(Protocol.MULTIPLEXED),
+                                       Protocol.MULTIPLEXED);
+        assertArrayEquals(TOKEN, ticket.getToken());
+        assertNull(ticket.getChecksum());
+
+        // a request carrying the ticket on to a file server
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        BinaryCodec.write(new DataOutputStream(bytes),
+                          new DownloadFileRequest(ticket),
+                          Protocol.BINARY);
+        DownloadFileRequest request = (DownloadFileRequest) BinaryCodec.read
+            (new DataInputStream(new ByteArrayInputStream
+                                 (bytes.toByteArray())), Protocol.BINARY);
+        assertArrayEquals(TOKEN, request.getTicket().getToken());
+    }
+
+    @Test
+    public void uploadResponseKeepsItsStatus() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        BinaryCodec.write(new DataOutputStream(bytes),
+                          new UploadResponse
+                          (UploadResponse.Type.CONTENT_UNKNOWN),
+                          Protocol.CURRENT);
+        UploadResponse response = (UploadResponse) BinaryCodec.read
+            (new DataInputStream(new ByteArrayInputStream
+                                 (bytes.toByteArray())), Protocol.CURRENT);
+        assertEquals(UploadResponse.Type.CONTENT_UNKNOWN, response.getType());
+        assertEquals("Content unknown.", response.getMessage());
+    }
+
+    static byte[] encode(int version) throws Exception {
+        DownloadTicket ticket =
+            new DownloadTicket("alice", "short.txt", TOKEN,
+                               InetAddress.getByName("127.0.0.1"), 11293);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        BinaryCodec.write(new DataOutputStream(bytes),
+                          new DownloadTicketResponse(ticket), version);
+        return bytes.toByteArray();
+    }
+
+    static DownloadTicket decode(byte[] bytes, int version) throws Exception {
+        DataInputStream in =
+            new DataInputStream(new ByteArrayInputStream(bytes));
+        DownloadTicketResponse response =
+            (DownloadTicketResponse) BinaryCodec.read(in, version);
+        assertEquals(0, in.available());
+        return response.getTicket();
+    }
+}
@@ -0,0 +1,82 @@
+package util;
+
+import org.junit.Test;
+
+import message.response.MessageResponse;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class FramesTest {
+
+    @Test
+    public void encodedFrameDecodesWithItsId() throws Exception {
+        ByteBuffer frame = Frames.encode(42, new MessageResponse("hello"),
+                                         Protocol.MULTIPLEXED);
+        assertEquals(frame.limit() - Frames.HEADER_SIZE, frame.getInt(0));
+
+        byte[] body = Arrays.copyOfRange(frame.array(), Frames.HEADER_SIZE,
+                                         frame.limit());
+        Frames.Envelope envelope = Frames.decode(body, Protocol.MULTIPLEXED);
+        assertEquals(42, envelope.getId());
+        assertEquals("hello",
+                     ((MessageResponse) envelope.getMessage()).getMessage());
+    }
+
+    @Test
+    public void idIsDroppedBeforeMultiplexing() throws Exception {
+        ByteBuffer frame = Frames.encode(42, "text", Protocol.BINARY);
+        byte[] body = Arrays.copyOfRange(frame.array(), Frames.HEADER_SIZE,
+                                         frame.limit());
+        Frames.Envelope envelope = Frames.decode(body, Protocol.BINARY);
+        assertEquals(0, envelope.getId());
+        assertEquals("text", envelope.getMessage());
+    }
+
+    @Test
+    public void lengthOutOfBoundsIsRejected() throws Exception {
+        assertEquals(Frames.MAX_REQUEST_SIZE,
+                     Frames.checkLength(Frames.MAX_REQUEST_SIZE,
+                                        Frames.MAX_REQUEST_SIZE));
+        try {
+            Frames.checkLength(Frames.MAX_REQUEST_SIZE + 1,
+                               Frames.MAX_REQUEST_SIZE);
+            fail("Oversized frame accepted.");
+        } catch (IOException x) {
+            // expected
+        }
+        try {
+            Frames.checkLength(-1, Frames.MAX_SIZE);
+            fail("Negative length accepted.");
+        } catch (IOException x) {
+            // expected
+        }
+    }
+
+    @Test
+    public void bodyIsReadAcrossAllocationSteps() throws Exception {
+        byte[] data = new byte[3 * Frames.ALLOCATION_STEP + 17];
+        for(int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        DataInputStream in =
+            new DataInputStream(new ByteArrayInputStream(data));
+        assertArrayEquals(data, Frames.readBody(in, data.length));
+    }
+
+    @Test(expected = EOFException.class)
+    public void truncatedBodyFails() throws Exception {
+        // a header announcing more than is sent must not be trusted
+        DataInputStream in =
+            new DataInputStream(new ByteArrayInputStream(new byte[10]));
+        Frames.readBody(in, Frames.MAX_SIZE);
+    }
+}
@@ -0,0 +1,86 @@
+package util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TicketSignerTest {
+
+    static final byte[] KEY = TicketSigner.parseKey
+        ("000102030405060708090a0b0c0d0e0f101112131415161718191a1b1c1d1e1f");
+
+    TicketSigner signer = new TicketSigner(KEY);
+
+    byte[] name = TicketSigner.encodeName("short.txt");
+
+    @Test
+    public void signedTicketVerifies() {
+        byte[] ticket = signer.sign("alice", "short.txt", 3, 14, 2000);
+        assertTrue(signer.verify(ticket, name, 3, 14, 1000));
+        // the file servers verify with their own instance of the key
+        assertTrue(new TicketSigner(KEY).verify(ticket, name, 3, 14, 1000));
+    }
+
+    @Test
+    public void ticketOfAnotherKeyFails() {
+        byte[] other = KEY.clone();
+        other[0] ^= 1;
+        byte[] ticket = new TicketSigner(other).sign("alice", "short.txt", 3,
+                                                     14, 2000);
+        assertFalse(signer.verify(ticket, name, 3, 14, 1000));
+    }
+
+    @Test
+    public void tamperedTicketFails() {
+        byte[] ticket = signer.sign("alice", "short.txt", 3, 14, 2000);
+        for(int i = 0; i < ticket.length; i++) {
+            byte[] tampered = ticket.clone();
+            tampered[i] ^= 0x40;
+            assertFalse("Byte " + i + " changed unnoticed.",
+                        signer.verify(tampered, name, 3, 14, 1000));
+        }
+    }
+
+    @Test
+    public void ticketIsBoundToFileVersionAndSize() {
+        byte[] ticket = signer.sign("alice", "short.txt", 3, 14, 2000);
+        assertFalse(signer.verify(ticket, TicketSigner.encodeName("long.txt"),
+                                  3, 14, 1000));
+        assertFalse(signer.verify(ticket, name, 4, 14, 1000));
+        assertFalse(signer.verify(ticket, name, 3, 15, 1000));
+    }
+
+    @Test
+    public void expiredTicketFails() {
+        byte[] ticket = signer.sign("alice", "short.txt", 3, 14, 2000);
+        assertTrue(signer.verify(ticket, name, 3, 14, 2000));
+        assertFalse(signer.verify(ticket, name, 3, 14, 2001));
+    }
+
+    @Test
+    public void malformedTicketsFail() {
+        byte[] ticket = signer.sign("alice", "short.txt", 3, 14, 2000);
+        assertFalse(signer.verify(null, name, 3, 14, 1000));
+        assertFalse(signer.verify(new byte[0], name, 3, 14, 1000));
+        byte[] truncated = new byte[ticket.length - 1];
+        System.arraycopy(ticket, 0, truncated, 0, truncated.length);
+        assertFalse(signer.verify(truncated, name, 3, 14, 1000));
+    }
+
+    @Test
+    public void keyIsParsedFromHex() {
+        assertArrayEquals(new byte[] { 0x0a, (byte) 0xff },
+                          TicketSigner.parseKey("0aFF"));
+        for(String bad : new String[] { "", "abc", "zz" }) {
+            try {
+                TicketSigner.parseKey(bad);
+                fail("Key '" + bad + "' accepted.");
+            } catch (IllegalArgumentException x) {
+                // expected
+            }
+        }
+    }
+}
@@ -1,7 +1,25 @@
 package util;
 
+import java.security.SecureRandom;
+
 public class Util {
 	
 	public static final int WAIT_FOR_COMPONENT_STARTUP = 2000;
 
+	/**
+	 * Sets a random key for the download tickets, shared by all components
+	 * started afterwards, unless one is set already.
+	 */
+	public static void setTicketKey() {
+		if (System.getProperty("ticket.key") != null) {
+			return;
+		}
+		byte[] key = new byte[32];
+		new SecureRandom().nextBytes(key);
+		StringBuilder hex = new StringBuilder();
+		for (byte b : key) {
+			hex.append(String.format("%02x", b & 0xFF));
+		}
+		System.setProperty("ticket.key", hex.toString());
+	}
 }